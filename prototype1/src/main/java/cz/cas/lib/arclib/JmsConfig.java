@@ -1,5 +1,7 @@
 package cz.cas.lib.arclib;
 
+import cz.cas.lib.arclib.service.CoordinatorDto;
+import cz.cas.lib.arclib.service.DispatcherService;
 import org.springframework.boot.autoconfigure.jms.DefaultJmsListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -10,6 +12,9 @@ import org.springframework.jms.support.converter.MessageConverter;
 import org.springframework.jms.support.converter.MessageType;
 
 import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
 
 @Configuration
 public class JmsConfig {
@@ -21,9 +26,34 @@ public class JmsConfig {
         return factory;
     }
 
+    /**
+     * Factory of the listeners of the topics, whose messages are delivered to every node.
+     */
+    @Bean
+    public JmsListenerContainerFactory<?> topicFactory(ConnectionFactory connectionFactory,
+                                                       DefaultJmsListenerContainerFactoryConfigurer configurer) {
+        DefaultJmsListenerContainerFactory factory = new DefaultJmsListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setPubSubDomain(true);
+        return factory;
+    }
+
+    /**
+     * Converter of the messages to JSON. Messages about SIPs also carry the id of their batch in a property, so they
+     * can be selected by the batch.
+     */
     @Bean
     public MessageConverter jacksonJmsMessageConverter() {
-        MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter();
+        MappingJackson2MessageConverter converter = new MappingJackson2MessageConverter() {
+            @Override
+            public Message toMessage(Object object, Session session) throws JMSException {
+                Message message = super.toMessage(object, session);
+                if (object instanceof CoordinatorDto) {
+                    message.setStringProperty(DispatcherService.BATCH_ID_PROPERTY, ((CoordinatorDto) object).getBatchId());
+                }
+                return message;
+            }
+        };
         converter.setTargetType(MessageType.TEXT);
         converter.setTypeIdPropertyName("_type");
         return converter;
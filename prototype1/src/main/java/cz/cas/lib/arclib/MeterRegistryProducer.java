@@ -0,0 +1,20 @@
+package cz.cas.lib.arclib;
+
+import cz.cas.lib.arclib.service.IngestMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+@Configuration
+public class MeterRegistryProducer {
+    /**
+     * Produces Micrometer {@link MeterRegistry} holding the meters of {@link IngestMetrics} in memory.
+     *
+     * @return produced {@link MeterRegistry}
+     */
+    @Bean
+    public MeterRegistry meterRegistry() {
+        return new SimpleMeterRegistry();
+    }
+}
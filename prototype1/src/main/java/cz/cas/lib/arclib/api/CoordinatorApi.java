@@ -1,6 +1,8 @@
 package cz.cas.lib.arclib.api;
 
 import cz.cas.lib.arclib.service.CoordinatorService;
+import cz.cas.lib.arclib.service.DispatchStateDto;
+import cz.cas.lib.arclib.service.DispatcherService;
 import org.springframework.web.bind.annotation.*;
 
 import javax.inject.Inject;
@@ -10,14 +12,32 @@ import javax.inject.Inject;
 public class CoordinatorApi {
 
     private CoordinatorService coordinatorService;
+    private DispatcherService dispatcherService;
 
     /**
      * Starts processing of SIPs stored in the specified folder
      * @param path path to the folder containing SIPs
+     * @param priority weight of the batch when sharing the workers with other batches
+     * @param maxInFlight maximal number of SIPs of the batch processed at once, default limit if not specified
      */
     @RequestMapping(value = "/start", method = RequestMethod.POST)
-    public String start(@RequestBody String path) {
-        return coordinatorService.start(path);
+    public String start(@RequestBody String path,
+                        @RequestParam(value = "priority", defaultValue = "1") int priority,
+                        @RequestParam(value = "maxInFlight", required = false) Integer maxInFlight) {
+        return coordinatorService.start(path, priority, maxInFlight);
+    }
+
+    /**
+     * Changes priority of the batch
+     * @param batchId id of the batch
+     * @param priority weight of the batch when sharing the workers with other batches
+     * @param maxInFlight maximal number of SIPs of the batch processed at once, default limit if not specified
+     */
+    @RequestMapping(value = "/{batchId}/priority", method = RequestMethod.POST)
+    public void prioritize(@PathVariable("batchId") String batchId,
+                           @RequestParam("priority") int priority,
+                           @RequestParam(value = "maxInFlight", required = false) Integer maxInFlight) {
+        coordinatorService.prioritize(batchId, priority, maxInFlight);
     }
 
     /**
@@ -39,17 +59,39 @@ public class CoordinatorApi {
     }
 
     /**
-     * Resumes processing of the batch
+     * Resumes processing of the batch, SIPs whose lease has expired are processed again
      * @param batchId id of the batch to resume
-     * @return true, if the batch has succeeded to resume, false otherwise
+     * @return true, the batch is always resumed
      */
     @RequestMapping(value = "/{batchId}/resume", method = RequestMethod.POST)
     public boolean resume(@PathVariable("batchId") String batchId) {
         return coordinatorService.resume(batchId);
     }
 
+    /**
+     * Rebuilds the SIP counters of the batch from the states of its SIPs
+     * @param batchId id of the batch to reconcile
+     */
+    @RequestMapping(value = "/{batchId}/reconcile", method = RequestMethod.POST)
+    public void reconcile(@PathVariable("batchId") String batchId) {
+        coordinatorService.reconcile(batchId);
+    }
+
+    /**
+     * Gets the numbers of SIPs waiting for dispatching and SIPs in flight, in total and per batch
+     */
+    @RequestMapping(value = "/dispatch", method = RequestMethod.GET)
+    public DispatchStateDto dispatchState() {
+        return dispatcherService.getState();
+    }
+
     @Inject
     public void setCoordinatorService(CoordinatorService coordinatorService) {
         this.coordinatorService = coordinatorService;
     }
+
+    @Inject
+    public void setDispatcherService(DispatcherService dispatcherService) {
+        this.dispatcherService = dispatcherService;
+    }
 }
@@ -0,0 +1,40 @@
+package cz.cas.lib.arclib.api;
+
+import cz.cas.lib.arclib.service.BatchThroughputDto;
+import cz.cas.lib.arclib.service.IngestMetrics;
+import cz.cas.lib.arclib.service.MeterDto;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.inject.Inject;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/metrics")
+public class MetricsApi {
+
+    private IngestMetrics metrics;
+
+    /**
+     * Gets the stage timers, the SIP and batch state transition counters and the dispatching and BPM gauges
+     */
+    @RequestMapping(method = RequestMethod.GET)
+    public List<MeterDto> meters() {
+        return metrics.getMeters();
+    }
+
+    /**
+     * Gets the processed SIPs and bytes and their rates per second of the recently started batches
+     */
+    @RequestMapping(value = "/batches", method = RequestMethod.GET)
+    public Map<String, BatchThroughputDto> batches() {
+        return metrics.getBatchThroughput();
+    }
+
+    @Inject
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+}
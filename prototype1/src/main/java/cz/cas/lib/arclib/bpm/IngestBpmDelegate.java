@@ -1,9 +1,15 @@
 package cz.cas.lib.arclib.bpm;
 
-import cz.cas.lib.arclib.domain.Batch;
-import cz.cas.lib.arclib.domain.BatchState;
 import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.engine.PipelineStage;
 import cz.cas.lib.arclib.exception.MissingObject;
+import cz.cas.lib.arclib.service.CancellationService;
+import cz.cas.lib.arclib.service.ConcurrencyLimiter;
+import cz.cas.lib.arclib.service.IngestCompletionService;
+import cz.cas.lib.arclib.service.IngestMetrics;
+import cz.cas.lib.arclib.service.LeaseService;
+import cz.cas.lib.arclib.staging.StagedSip;
+import cz.cas.lib.arclib.staging.WorkspaceStager;
 import cz.cas.lib.arclib.store.SipStore;
 import cz.cas.lib.arclib.store.BatchStore;
 import cz.cas.lib.arclib.domain.Sip;
@@ -11,32 +17,40 @@ import cz.cas.lib.arclib.store.Transactional;
 import lombok.extern.slf4j.Slf4j;
 import org.camunda.bpm.engine.delegate.DelegateExecution;
 import org.camunda.bpm.engine.delegate.JavaDelegate;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
-import org.springframework.util.FileSystemUtils;
 
 import javax.inject.Inject;
-import java.io.*;
-import java.nio.file.*;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
 
-import static cz.cas.lib.arclib.util.Utils.asList;
-import static cz.cas.lib.arclib.util.Utils.checked;
 import static cz.cas.lib.arclib.util.Utils.notNull;
-import static java.nio.file.Files.*;
 
 @Slf4j
 @Component
-public class IngestBpmDelegate implements JavaDelegate {
+public class IngestBpmDelegate implements JavaDelegate, PipelineStage {
 
     protected SipStore sipStore;
     protected BatchStore batchStore;
-    protected String workspace;
+    protected WorkspaceStager stager;
+    protected LeaseService leaseService;
+    protected IngestMetrics metrics;
+    protected CancellationService cancellation;
+    protected IngestCompletionService completion;
 
     /**
      * Executes the ingest process for the given SIP:
-     * 1. copies SIP to workspace
+     * 1. stages SIP to workspace
      * 2. processes SIP (...waits for a second)
-     * 3. deletes SIP from workspace
+     * 3. releases SIP from workspace
+     * 4. reports the completion of the SIP and its outcome to the coordinator
+     *
+     * If the processing fails, the SIP state changes to FAILED. If the batch is canceled or suspended, the staging and
+     * the processing are interrupted, the SIP is released from workspace and its state changes back to NEW.
+     * The lease of the SIP is prolonged by this node for the whole time of the processing. The permit of
+     * {@link ConcurrencyLimiter} is returned to the worker node which has taken it, the completion is reported to the node
+     * which has dispatched the SIP.
      *
      * @param execution parameter containing the SIP id
      * @throws FileNotFoundException
@@ -47,89 +61,106 @@ public class IngestBpmDelegate implements JavaDelegate {
     public void execute(DelegateExecution execution) throws IOException, InterruptedException {
         String sipId = (String) execution.getVariable("sipId");
         String batchId = (String) execution.getVariable("batchId");
+        String workerNode = (String) execution.getVariable("workerNode");
+        String dispatcherNode = (String) execution.getVariable("dispatcherNode");
 
         log.info("BPM process for SIP " + sipId + " started.");
+        long ingestStart = System.nanoTime();
 
+        SipState outcome = null;
+        leaseService.hold(sipId);
         try {
+            cancellation.checkpoint(sipId, batchId);
+
             Sip sip = sipStore.find(sipId);
             notNull(sip, () -> new MissingObject(Sip.class, sipId));
 
+            long size = 0;
             String sipPath = sip.getPath();
             if (sipPath != null) {
-                copySipToWorkspace(sipPath, sipId);
-
-                log.info("SIP " + sipId + " has been successfully copied to workspace.");
-
-                /*
-                Here will come the processing of SIP.
-                We use the thread sleep to simulate the time required to process the SIP.
-                */
-                Thread.sleep(1000);
-                delSipFromWorkspace(sipId);
+                StagedSip staged = cancellation.interruptibly(sipId, batchId, () -> stager.stage(sipPath, sipId));
+                try {
+                    metrics.recordStage(IngestMetrics.STAGE_STAGING, staged.getDuration());
+                    size = staged.getSize();
+
+                    cancellation.checkpoint(sipId, batchId);
+
+                    long start = System.currentTimeMillis();
+                    /*
+                    Here will come the processing of SIP.
+                    We use the thread sleep to simulate the time required to process the SIP.
+                    */
+                    cancellation.interruptibly(sipId, batchId, () -> {
+                        Thread.sleep(1000);
+                        return null;
+                    });
+                    metrics.recordStage(IngestMetrics.STAGE_PROCESSING, System.currentTimeMillis() - start);
+                } finally {
+                    long start = System.currentTimeMillis();
+                    stager.unstage(staged);
+                    metrics.recordStage(IngestMetrics.STAGE_CLEANUP, System.currentTimeMillis() - start);
+                }
             }
 
-        sip.setState(SipState.PROCESSED);
-        sipStore.save(sip);
-        log.info("SIP " + sipId + " has been processed. The SIP state changed to PROCESSED.");
-
-        } finally {
-            Batch batch = batchStore.find(batchId);
-            notNull(batch, () -> new MissingObject(Batch.class, batchId));
+            if (sipStore.changeState(sipId, SipState.PROCESSING, SipState.PROCESSED, null)) {
+                batchStore.moveSip(batchId, SipState.PROCESSING, SipState.PROCESSED);
+                metrics.sipTransition(SipState.PROCESSING, SipState.PROCESSED);
+                metrics.sipProcessed(batchId, size);
+                log.info("SIP " + sipId + " has been processed. The SIP state changed to PROCESSED.");
+                outcome = SipState.PROCESSED;
+            } else {
+                log.info("SIP " + sipId + " has been processed, but it is not in the state PROCESSING any more, " +
+                        "its lease has probably expired. The result is discarded.");
+            }
+        } catch (InterruptedException | InterruptedIOException | ClosedByInterruptException e) {
+            log.info("Processing of SIP " + sipId + " has been stopped: " + e.getMessage());
 
-            boolean allSipsProcessed = sipStore.findAllInList(asList(batch.getIds())).stream()
-                    .allMatch(s -> s.getState() == SipState.PROCESSED ||
-                                    s.getState() == SipState.FAILED);
+            completion.release(sipId, batchId);
+        } catch (IOException | RuntimeException e) {
+            log.error("Processing of SIP " + sipId + " failed.", e);
 
-            if (allSipsProcessed && batch.getState() == BatchState.PROCESSING) {
-                batch.setState(BatchState.PROCESSED);
-                batchStore.save(batch);
-                log.info("Batch " + batchId + " has been processed. The batch state changed to PROCESSED.");
+            if (completion.fail(sipId, batchId)) {
+                outcome = SipState.FAILED;
             }
+        } finally {
+            execution.setVariable(IngestCompletionService.FINISHED, true);
+            Long latency = outcome == SipState.PROCESSED ? System.nanoTime() - ingestStart : null;
+            completion.finish(sipId, batchId, outcome, latency, workerNode, dispatcherNode);
         }
     }
 
-    /**
-     * Copies folder with SIP contents to workspace
-     * @param src path to the folder where the SIP is located
-     * @param sipId id of the SIP
-     * @throws IOException
-     */
-    private void copySipToWorkspace(String src, String sipId) throws IOException {
-        checked(() -> {
-            Path folder = Paths.get(workspace);
-            if (!exists(folder)) {
-                createDirectories(folder);
-            }
+    @Inject
+    public void setSipStore(SipStore sipStore) {
+        this.sipStore = sipStore;
+    }
 
-            FileSystemUtils.copyRecursively(new File(src), new File(workspace, sipId));
-        });
+    @Inject
+    public void setBatchStore(BatchStore batchStore) {
+        this.batchStore = batchStore;
     }
 
-    /**
-     * From the workspace folder deletes file with the provided id
-     *
-     * @param sipId id of the file to delete
-     */
-    private void delSipFromWorkspace(String sipId) throws IOException {
-        Path directory = Paths.get(workspace, sipId);
+    @Inject
+    public void setStager(WorkspaceStager stager) {
+        this.stager = stager;
+    }
 
-        if (exists(directory)) {
-            FileSystemUtils.deleteRecursively(new File(directory.toAbsolutePath().toString()));
-        }
+    @Inject
+    public void setLeaseService(LeaseService leaseService) {
+        this.leaseService = leaseService;
     }
 
     @Inject
-    public void setSipStore(SipStore sipStore) {
-        this.sipStore = sipStore;
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
     }
 
     @Inject
-    public void setBatchStore(BatchStore batchStore) {
-        this.batchStore = batchStore;
+    public void setCancellation(CancellationService cancellation) {
+        this.cancellation = cancellation;
     }
 
     @Inject
-    public void setWorkspace(@Value("${arclib.workspace}") String workspace) {
-        this.workspace = workspace;
+    public void setCompletion(IngestCompletionService completion) {
+        this.completion = completion;
     }
 }
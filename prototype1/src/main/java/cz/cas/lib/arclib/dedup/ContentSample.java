@@ -0,0 +1,18 @@
+package cz.cas.lib.arclib.dedup;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class ContentSample {
+    /**
+     * Total size of the files of the SIP in bytes
+     */
+    private long size;
+
+    /**
+     * Hash of the names and sizes of the files of the SIP and of the sampled blocks of their content
+     */
+    private String hash;
+}
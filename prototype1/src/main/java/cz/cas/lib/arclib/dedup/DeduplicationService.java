@@ -0,0 +1,175 @@
+package cz.cas.lib.arclib.dedup;
+
+import cz.cas.lib.arclib.domain.Sip;
+import cz.cas.lib.arclib.domain.SipFingerprint;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.store.SipFingerprintStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.util.Collections.emptyList;
+
+/**
+ * Detection of the SIPs resubmitted with the same content as an already registered SIP.
+ * <p>
+ * Every registered SIP gets a {@link SipFingerprint} with the {@link ContentSample} of its content. A newly registered
+ * SIP is compared by the full digest only with the SIPs having the same sample, the digests of the registered SIPs are
+ * computed on the first such comparison and stored. A SIP with the same digest as a registered SIP is not processed,
+ * its state is set to DUPLICATE and it is linked to the registered SIP, whose result it shares. When the registered SIP
+ * fails later, its duplicates fail with it.
+ * </p>
+ * <p>
+ * SIPs without content and SIPs which cannot be read are never considered duplicates, the latter fail in the worker.
+ * A registered SIP which is not available on its path any more cannot be compared, its duplicates are processed again.
+ * </p>
+ */
+@Slf4j
+@Service
+public class DeduplicationService {
+
+    private boolean enabled;
+    private SipFingerprinter fingerprinter;
+    private SipFingerprintStore fingerprintStore;
+
+    /**
+     * Finds the SIPs of the chunk with the same content as an already registered SIP or as a preceding SIP of the chunk,
+     * sets their state to DUPLICATE and links them to the original SIP. Fingerprints of the other SIPs are created,
+     * they should be stored by {@link #remember(Collection)} after the SIPs are saved.
+     *
+     * @param chunk new SIPs, not saved yet
+     * @return fingerprints of the SIPs which are not duplicates
+     */
+    public List<SipFingerprint> deduplicate(List<Sip> chunk) {
+        if (!enabled) {
+            return emptyList();
+        }
+
+        Map<Sip, ContentSample> samples = new LinkedHashMap<>();
+        for (Sip sip : chunk) {
+            try {
+                ContentSample sample = fingerprinter.sample(Paths.get(sip.getPath()));
+                if (sample.getSize() > 0) {
+                    samples.put(sip, sample);
+                }
+            } catch (IOException e) {
+                log.warn("Fingerprinting of SIP " + sip.getId() + " failed, the SIP is not checked for duplicates.", e);
+            }
+        }
+
+        if (samples.isEmpty()) {
+            return emptyList();
+        }
+
+        Set<Long> sizes = samples.values().stream().map(ContentSample::getSize).collect(Collectors.toSet());
+        Set<String> hashes = samples.values().stream().map(ContentSample::getHash).collect(Collectors.toSet());
+        List<SipFingerprint> registered = fingerprintStore.findCandidates(sizes, hashes);
+        List<SipFingerprint> created = new ArrayList<>();
+
+        samples.forEach((sip, sample) -> {
+            List<SipFingerprint> candidates = Stream.concat(registered.stream(), created.stream())
+                    .filter(f -> f.getSize() == sample.getSize() && f.getSample().equals(sample.getHash()))
+                    .collect(Collectors.toList());
+
+            SipFingerprint fingerprint = new SipFingerprint();
+            fingerprint.setSipId(sip.getId());
+            fingerprint.setPath(sip.getPath());
+            fingerprint.setSize(sample.getSize());
+            fingerprint.setSample(sample.getHash());
+
+            SipFingerprint original = findOriginal(fingerprint, candidates, registered);
+            if (original != null) {
+                sip.setState(SipState.DUPLICATE);
+                sip.setDuplicateOf(original.getSipId());
+                log.debug("SIP " + sip.getId() + " has the same content as SIP " + original.getSipId() + ".");
+            } else {
+                created.add(fingerprint);
+            }
+        });
+
+        return created;
+    }
+
+    /**
+     * Stores the fingerprints of the saved SIPs, so the later registered SIPs are compared with them.
+     *
+     * @param fingerprints fingerprints returned by {@link #deduplicate(List)}
+     */
+    public void remember(Collection<SipFingerprint> fingerprints) {
+        if (!fingerprints.isEmpty()) {
+            fingerprintStore.save(fingerprints);
+        }
+    }
+
+    /**
+     * Compares the digest of the SIP with the digests of the candidates with the same sample. Digests are computed only
+     * when needed and kept in the fingerprints, the computed digests of the registered fingerprints are also stored.
+     *
+     * @param fingerprint fingerprint of the new SIP
+     * @param candidates  fingerprints with the same sample
+     * @param registered  fingerprints stored in database
+     * @return fingerprint of the SIP with the same content or null if there is none
+     */
+    private SipFingerprint findOriginal(SipFingerprint fingerprint, List<SipFingerprint> candidates,
+                                        List<SipFingerprint> registered) {
+        for (SipFingerprint candidate : candidates) {
+            if (candidate.getDigest() == null) {
+                String digest = digest(candidate);
+                if (digest == null) {
+                    continue;
+                }
+
+                candidate.setDigest(digest);
+                if (registered.contains(candidate)) {
+                    fingerprintStore.setDigest(candidate.getId(), digest);
+                }
+            }
+
+            if (fingerprint.getDigest() == null) {
+                String digest = digest(fingerprint);
+                if (digest == null) {
+                    return null;
+                }
+
+                fingerprint.setDigest(digest);
+            }
+
+            if (fingerprint.getDigest().equals(candidate.getDigest())) {
+                return candidate;
+            }
+        }
+
+        return null;
+    }
+
+    private String digest(SipFingerprint fingerprint) {
+        try {
+            return fingerprinter.digest(Paths.get(fingerprint.getPath()));
+        } catch (IOException e) {
+            log.debug("Digest of SIP " + fingerprint.getSipId() + " cannot be computed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Inject
+    public void setEnabled(@Value("${arclib.dedup.enabled}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject
+    public void setFingerprinter(SipFingerprinter fingerprinter) {
+        this.fingerprinter = fingerprinter;
+    }
+
+    @Inject
+    public void setFingerprintStore(SipFingerprintStore fingerprintStore) {
+        this.fingerprintStore = fingerprintStore;
+    }
+}
@@ -0,0 +1,159 @@
+package cz.cas.lib.arclib.dedup;
+
+import cz.cas.lib.arclib.exception.GeneralException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Computes fingerprints of the content of SIPs.
+ * <p>
+ * Both fingerprints cover the paths of the files relative to the SIP folder and their sizes, so two SIPs have the same
+ * fingerprint only if they have the same layout. The {@link ContentSample} reads only {@link #samples} blocks of
+ * {@link #blockSize} bytes spread over every file, therefore it is cheap even for big SIPs and is used to rule out SIPs
+ * with different content. The digest reads the whole content and is computed only for the SIPs whose samples match.
+ * </p>
+ */
+@Component
+public class SipFingerprinter {
+    private static final String ALGORITHM = "SHA-256";
+
+    private int blockSize;
+    private int samples;
+
+    /**
+     * Computes the size of the SIP and the hash of the sampled blocks of its files. Files not bigger than the sampled
+     * blocks together are hashed whole.
+     *
+     * @param sip path to the SIP, a folder or a single file
+     * @return the sample
+     * @throws IOException
+     */
+    public ContentSample sample(Path sip) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+        long total = 0;
+
+        for (Path file : files(sip)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                updateHeader(digest, sip, file, size);
+                total += size;
+
+                if (size <= (long) blockSize * samples) {
+                    updateContent(digest, channel, buffer, 0, size);
+                } else {
+                    for (int i = 0; i < samples; i++) {
+                        long position = i * (size - blockSize) / (samples - 1);
+                        updateContent(digest, channel, buffer, position, blockSize);
+                    }
+                }
+            }
+        }
+
+        return new ContentSample(total, hex(digest));
+    }
+
+    /**
+     * Computes the digest of the whole content of the SIP.
+     *
+     * @param sip path to the SIP, a folder or a single file
+     * @return hex encoded SHA-256 digest
+     * @throws IOException
+     */
+    public String digest(Path sip) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(blockSize);
+
+        for (Path file : files(sip)) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                updateHeader(digest, sip, file, size);
+                updateContent(digest, channel, buffer, 0, size);
+            }
+        }
+
+        return hex(digest);
+    }
+
+    /**
+     * Lists the files of the SIP ordered by their relative paths, so the fingerprints do not depend on the order
+     * the file system returns them in.
+     */
+    private List<Path> files(Path sip) throws IOException {
+        try (Stream<Path> files = Files.walk(sip)) {
+            return files.filter(Files::isRegularFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void updateHeader(MessageDigest digest, Path sip, Path file, long size) {
+        String name = sip.relativize(file).toString().replace('\\', '/');
+
+        digest.update(name.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+    }
+
+    private void updateContent(MessageDigest digest, FileChannel channel, ByteBuffer buffer, long position, long length)
+            throws IOException {
+        long end = position + length;
+
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File has been truncated while being fingerprinted.");
+            }
+
+            buffer.flip();
+            digest.update(buffer);
+            position += read;
+        }
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new GeneralException("Digest algorithm " + ALGORITHM + " is not supported.", e);
+        }
+    }
+
+    private String hex(MessageDigest digest) {
+        return DatatypeConverter.printHexBinary(digest.digest()).toLowerCase();
+    }
+
+    @Inject
+    public void setBlockSize(@Value("${arclib.dedup.blockSize}") int blockSize) {
+        if (blockSize < 1) {
+            throw new GeneralException("The size of the sampled blocks must be positive.");
+        }
+        this.blockSize = blockSize;
+    }
+
+    @Inject
+    public void setSamples(@Value("${arclib.dedup.samples}") int samples) {
+        if (samples < 2) {
+            throw new GeneralException("At least two blocks of every file must be sampled.");
+        }
+        this.samples = samples;
+    }
+}
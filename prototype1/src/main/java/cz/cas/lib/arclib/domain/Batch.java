@@ -3,12 +3,8 @@ package cz.cas.lib.arclib.domain;
 import lombok.Getter;
 import lombok.Setter;
 import org.hibernate.annotations.BatchSize;
-import org.hibernate.annotations.Fetch;
-import org.hibernate.annotations.FetchMode;
 
 import javax.persistence.*;
-import java.util.HashSet;
-import java.util.Set;
 
 @Getter
 @Setter
@@ -17,13 +13,43 @@ import java.util.Set;
 @Table(name = "arclib_batch")
 public class Batch extends DatedObject {
 
-    @BatchSize(size=100)
-    @Fetch(FetchMode.SELECT)
-    @ElementCollection(fetch = FetchType.EAGER)
-    @CollectionTable(name="arclib_batch_i", joinColumns=@JoinColumn(name="batch_id"))
-    @Column(name="id")
-    protected Set<String> ids = new HashSet<>();
-
     @Enumerated(EnumType.STRING)
     protected BatchState state;
+
+    /**
+     * Weight of the batch when sharing the worker slots with other running batches
+     */
+    protected int priority = 1;
+
+    /**
+     * Maximal number of SIPs of the batch processed at once, null for the default limit
+     */
+    protected Integer maxInFlight;
+
+    /**
+     * Whether the batch is the rolling batch of the watched folders
+     */
+    protected boolean watched;
+
+    /*
+    Registration flag and counters of the batch SIPs in the respective states. They are set on insert and afterwards
+    changed only by the update statements of BatchStore, so that saving of a stale batch instance does not overwrite them.
+     */
+    @Column(updatable = false)
+    protected boolean registering;
+
+    @Column(updatable = false)
+    protected int newCount;
+
+    @Column(updatable = false)
+    protected int processingCount;
+
+    @Column(updatable = false)
+    protected int processedCount;
+
+    @Column(updatable = false)
+    protected int failedCount;
+
+    @Column(updatable = false)
+    protected int duplicateCount;
 }
@@ -8,6 +8,7 @@ import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.Table;
+import java.time.Instant;
 
 @Getter
 @Setter
@@ -25,4 +26,24 @@ public class Sip extends DomainObject {
      */
     @Enumerated(EnumType.STRING)
     protected SipState state;
+
+    /**
+     * Id dávky, do ktorej SIP patrí
+     */
+    protected String batchId;
+
+    /**
+     * Čas, do ktorého worker spracovávajúci SIP musí obnoviť svoj prenájom, inak je SIP vrátený do fronty
+     */
+    protected Instant leaseExpiration;
+
+    /**
+     * Posledná dokončená fáza spracovania SIPu v režime IN_PROCESS
+     */
+    protected String checkpoint;
+
+    /**
+     * Id SIPu s rovnakým obsahom, ktorého výsledok spracovania SIP v stave DUPLICATE zdieľa
+     */
+    protected String duplicateOf;
 }
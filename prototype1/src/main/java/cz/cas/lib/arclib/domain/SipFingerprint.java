@@ -0,0 +1,40 @@
+package cz.cas.lib.arclib.domain;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.annotations.BatchSize;
+
+import javax.persistence.Entity;
+import javax.persistence.Table;
+
+@Getter
+@Setter
+@BatchSize(size = 100)
+@Entity
+@Table(name = "arclib_sip_fingerprint")
+public class SipFingerprint extends DomainObject {
+    /**
+     * Id SIPu, ktorého obsah odtlačok popisuje
+     */
+    protected String sipId;
+
+    /**
+     * Cesta k SIPu, z ktorej je možné dopočítať úplný odtlačok
+     */
+    protected String path;
+
+    /**
+     * Celková veľkosť súborov SIPu v bajtoch
+     */
+    protected long size;
+
+    /**
+     * Hash vybraných blokov súborov SIPu, slúži na rýchle vylúčenie SIPov s rozdielnym obsahom
+     */
+    protected String sample;
+
+    /**
+     * Hash celého obsahu SIPu, null pokiaľ ešte nebol spočítaný
+     */
+    protected String digest;
+}
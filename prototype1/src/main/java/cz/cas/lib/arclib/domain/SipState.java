@@ -7,5 +7,6 @@ public enum SipState {
     NEW,
     PROCESSING,
     PROCESSED,
-    FAILED
+    FAILED,
+    DUPLICATE
 }
@@ -0,0 +1,29 @@
+package cz.cas.lib.arclib.engine;
+
+import cz.cas.lib.arclib.service.ConcurrencyLimiter;
+import org.camunda.bpm.engine.RuntimeService;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+
+import static cz.cas.lib.arclib.util.Utils.asMap;
+
+/**
+ * Runs the ingest of the SIP as an instance of the BPM process "Ingest".
+ */
+@Component
+public class CamundaIngestEngine implements IngestEngine {
+
+    private RuntimeService runtimeService;
+
+    @Override
+    public void start(String sipId, String batchId, String dispatcher) {
+        runtimeService.startProcessInstanceByKey("Ingest", asMap("sipId", sipId, "batchId", batchId,
+                "workerNode", ConcurrencyLimiter.NODE, "dispatcherNode", dispatcher));
+    }
+
+    @Inject
+    public void setRuntimeService(RuntimeService runtimeService) {
+        this.runtimeService = runtimeService;
+    }
+}
@@ -0,0 +1,16 @@
+package cz.cas.lib.arclib.engine;
+
+/**
+ * Engine running the ingest of SIPs
+ */
+public enum EngineMode {
+    /**
+     * Every SIP is processed by its own instance of the BPM process "Ingest"
+     */
+    CAMUNDA,
+
+    /**
+     * The stages of the ingest are run in-process by {@link InProcessIngestEngine}, only checkpoints are persisted
+     */
+    IN_PROCESS
+}
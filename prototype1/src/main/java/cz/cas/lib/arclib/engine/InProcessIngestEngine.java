@@ -0,0 +1,188 @@
+package cz.cas.lib.arclib.engine;
+
+import cz.cas.lib.arclib.domain.Sip;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.exception.GeneralException;
+import cz.cas.lib.arclib.service.CancellationService;
+import cz.cas.lib.arclib.service.ConcurrencyLimiter;
+import cz.cas.lib.arclib.service.IngestCompletionService;
+import cz.cas.lib.arclib.exception.MissingObject;
+import cz.cas.lib.arclib.store.SipStore;
+import lombok.extern.slf4j.Slf4j;
+import org.camunda.bpm.engine.delegate.JavaDelegate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static cz.cas.lib.arclib.util.Utils.asMap;
+import static cz.cas.lib.arclib.util.Utils.notNull;
+
+/**
+ * Runs the ingest of the SIP in-process as a fixed chain of {@link JavaDelegate} stages, without the Camunda engine.
+ * <p>
+ * The stages are the same delegates the BPM process "Ingest" calls, configured by their bean names. The SIPs are
+ * processed by a shared pool of threads. The only thing persisted by the engine is a checkpoint: the name of the last
+ * completed stage of the SIP. When the SIP is processed again, e.g. after its lease has expired, the stages up to
+ * the checkpoint are skipped. No checkpoint is written after the last stage, its completion is recorded by the state
+ * of the SIP. When the batch of the SIP is canceled or suspended, the following stages are not run.
+ * </p>
+ * <p>
+ * The ingest delegate finishes the ingest of the SIP itself. When a stage or a checkpoint fails before that, the SIP
+ * is failed, or released back to the state NEW if the ingest has been interrupted, and the ingest is finished by
+ * the engine, so the lease, the permit and the dispatching credit of the SIP are returned.
+ * </p>
+ * <p>
+ * The delegates of the stages must be {@link PipelineStage}s, it is checked at the startup when the engine is selected.
+ * </p>
+ */
+@Slf4j
+@Component
+public class InProcessIngestEngine implements IngestEngine {
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private ExecutorService executor;
+    private Map<String, JavaDelegate> delegates;
+    private List<String> stages;
+    private SipStore sipStore;
+    private CancellationService cancellation;
+    private IngestCompletionService completion;
+    private EngineMode engineMode;
+
+    /**
+     * Checks that every stage has a delegate which can be run in-process, only if the engine is selected.
+     */
+    @PostConstruct
+    public void checkStages() {
+        if (engineMode != EngineMode.IN_PROCESS) {
+            return;
+        }
+        for (String stage : stages) {
+            JavaDelegate delegate = delegates.get(stage);
+            if (delegate == null) {
+                throw new GeneralException("There is no delegate for the ingest stage " + stage + ".");
+            }
+            if (!(delegate instanceof PipelineStage)) {
+                throw new GeneralException("The delegate of the ingest stage " + stage + " is not a "
+                        + PipelineStage.class.getSimpleName() + ", it cannot be run in-process.");
+            }
+        }
+    }
+
+    @Override
+    public void start(String sipId, String batchId, String dispatcher) {
+        running.incrementAndGet();
+
+        executor.submit(() -> {
+            PipelineExecution execution = new PipelineExecution(sipId, asMap("sipId", sipId, "batchId", batchId,
+                    "workerNode", ConcurrencyLimiter.NODE, "dispatcherNode", dispatcher));
+            try {
+                run(execution, sipId, batchId);
+            } catch (InterruptedException | InterruptedIOException | ClosedByInterruptException e) {
+                log.info("In-process ingest of SIP " + sipId + " has been stopped: " + e.getMessage());
+
+                if (!execution.hasVariable(IngestCompletionService.FINISHED)) {
+                    completion.release(sipId, batchId);
+                    completion.finish(sipId, batchId, null, null, ConcurrencyLimiter.NODE, dispatcher);
+                }
+            } catch (Exception e) {
+                log.error("In-process ingest of SIP " + sipId + " failed.", e);
+
+                if (!execution.hasVariable(IngestCompletionService.FINISHED)) {
+                    SipState outcome = completion.fail(sipId, batchId) ? SipState.FAILED : null;
+                    completion.finish(sipId, batchId, outcome, null, ConcurrencyLimiter.NODE, dispatcher);
+                }
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Gets the number of SIPs scheduled or being processed.
+     *
+     * @return number of SIPs
+     */
+    public int getRunning() {
+        return running.get();
+    }
+
+    /**
+     * Runs the stages following the checkpoint of the SIP.
+     *
+     * @param execution execution of the pipeline of the SIP
+     * @param sipId     id of the SIP
+     * @param batchId   id of the batch the SIP belongs to
+     * @throws Exception exception thrown by the stage
+     */
+    private void run(PipelineExecution execution, String sipId, String batchId) throws Exception {
+        Sip sip = sipStore.find(sipId);
+        notNull(sip, () -> new MissingObject(Sip.class, sipId));
+
+        int first = sip.getCheckpoint() != null ? stages.indexOf(sip.getCheckpoint()) + 1 : 0;
+        if (first > 0) {
+            log.info("Ingest of SIP " + sipId + " continues after the checkpoint " + sip.getCheckpoint() + ".");
+        }
+
+        for (int i = first; i < stages.size(); i++) {
+            String stage = stages.get(i);
+            delegates.get(stage).execute(execution.forStage(stage));
+
+            if (i < stages.size() - 1) {
+                cancellation.checkpoint(sipId, batchId);
+                sipStore.checkpoint(sipId, stage);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Inject
+    public void setThreads(@Value("${arclib.engine.threads}") int threads) {
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @Inject
+    public void setStages(@Value("${arclib.engine.stages}") String[] stages) {
+        this.stages = Arrays.asList(stages);
+    }
+
+    @Inject
+    public void setEngineMode(@Value("${arclib.engine.mode}") EngineMode engineMode) {
+        this.engineMode = engineMode;
+    }
+
+    @Inject
+    public void setDelegates(Map<String, JavaDelegate> delegates) {
+        this.delegates = delegates;
+    }
+
+    @Inject
+    public void setSipStore(SipStore sipStore) {
+        this.sipStore = sipStore;
+    }
+
+    @Inject
+    public void setCancellation(CancellationService cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    @Inject
+    public void setCompletion(IngestCompletionService completion) {
+        this.completion = completion;
+    }
+}
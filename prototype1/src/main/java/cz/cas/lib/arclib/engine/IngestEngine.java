@@ -0,0 +1,17 @@
+package cz.cas.lib.arclib.engine;
+
+/**
+ * Engine running the ingest of a single SIP. The ingest runs asynchronously, the method returns as soon as the ingest
+ * is scheduled.
+ */
+public interface IngestEngine {
+    /**
+     * Schedules the ingest of the SIP.
+     *
+     * @param sipId      id of the SIP
+     * @param batchId    id of the batch the SIP belongs to
+     * @param dispatcher {@link cz.cas.lib.arclib.service.ConcurrencyLimiter#NODE} of the node which has dispatched
+     *                   the SIP, the completion of the SIP is reported to it
+     */
+    void start(String sipId, String batchId, String dispatcher);
+}
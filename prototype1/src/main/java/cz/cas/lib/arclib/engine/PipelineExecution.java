@@ -0,0 +1,292 @@
+package cz.cas.lib.arclib.engine;
+
+import org.camunda.bpm.engine.ProcessEngineServices;
+import org.camunda.bpm.engine.delegate.DelegateExecution;
+import org.camunda.bpm.engine.variable.VariableMap;
+import org.camunda.bpm.engine.variable.Variables;
+import org.camunda.bpm.engine.variable.value.TypedValue;
+import org.camunda.bpm.model.bpmn.BpmnModelInstance;
+import org.camunda.bpm.model.bpmn.instance.FlowElement;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Execution of the in-process ingest pipeline of a single SIP.
+ * <p>
+ * The stages of the pipeline are {@link PipelineStage}s, therefore the execution is passed to them as
+ * a {@link DelegateExecution}. The execution is the process instance itself, it has no parent and no local scope, so
+ * the local variables are the same as the variables. The current activity is the stage being run. There is no BPM
+ * model and no process engine outside of the Camunda engine, the methods returning them return null.
+ * </p>
+ */
+public class PipelineExecution implements DelegateExecution {
+
+    private final String id;
+    private final Map<String, Object> variables = new HashMap<>();
+    private String currentStage;
+
+    public PipelineExecution(String id, Map<String, Object> variables) {
+        this.id = id;
+        this.variables.putAll(variables);
+    }
+
+    /**
+     * Sets the stage the execution is passed to.
+     *
+     * @param stage name of the stage
+     * @return the execution
+     */
+    public DelegateExecution forStage(String stage) {
+        currentStage = stage;
+        return this;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getProcessInstanceId() {
+        return id;
+    }
+
+    @Override
+    public String getActivityInstanceId() {
+        return id + ":" + currentStage;
+    }
+
+    @Override
+    public String getParentActivityInstanceId() {
+        return id;
+    }
+
+    @Override
+    public String getCurrentActivityId() {
+        return currentStage;
+    }
+
+    @Override
+    public String getCurrentActivityName() {
+        return currentStage;
+    }
+
+    @Override
+    public String getCurrentTransitionId() {
+        return null;
+    }
+
+    @Override
+    public String getEventName() {
+        return null;
+    }
+
+    @Override
+    public String getBusinessKey() {
+        return null;
+    }
+
+    @Override
+    public String getProcessBusinessKey() {
+        return null;
+    }
+
+    @Override
+    public String getProcessDefinitionId() {
+        return null;
+    }
+
+    @Override
+    public String getParentId() {
+        return null;
+    }
+
+    @Override
+    public String getTenantId() {
+        return null;
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return false;
+    }
+
+    @Override
+    public DelegateExecution getProcessInstance() {
+        return this;
+    }
+
+    @Override
+    public DelegateExecution getSuperExecution() {
+        return null;
+    }
+
+    @Override
+    public BpmnModelInstance getBpmnModelInstance() {
+        return null;
+    }
+
+    @Override
+    public FlowElement getBpmnModelElementInstance() {
+        return null;
+    }
+
+    @Override
+    public ProcessEngineServices getProcessEngineServices() {
+        return null;
+    }
+
+    @Override
+    public String getVariableScopeKey() {
+        return "execution";
+    }
+
+    @Override
+    public VariableMap getVariables() {
+        return Variables.fromMap(variables);
+    }
+
+    @Override
+    public VariableMap getVariablesLocal() {
+        return getVariables();
+    }
+
+    @Override
+    public VariableMap getVariablesTyped() {
+        return getVariables();
+    }
+
+    @Override
+    public VariableMap getVariablesTyped(boolean deserializeValues) {
+        return getVariables();
+    }
+
+    @Override
+    public VariableMap getVariablesLocalTyped() {
+        return getVariables();
+    }
+
+    @Override
+    public VariableMap getVariablesLocalTyped(boolean deserializeValues) {
+        return getVariables();
+    }
+
+    @Override
+    public Object getVariable(String variableName) {
+        return variables.get(variableName);
+    }
+
+    @Override
+    public Object getVariableLocal(String variableName) {
+        return getVariable(variableName);
+    }
+
+    @Override
+    public <T extends TypedValue> T getVariableTyped(String variableName) {
+        return getVariables().getValueTyped(variableName);
+    }
+
+    @Override
+    public <T extends TypedValue> T getVariableTyped(String variableName, boolean deserializeValue) {
+        return getVariableTyped(variableName);
+    }
+
+    @Override
+    public <T extends TypedValue> T getVariableLocalTyped(String variableName) {
+        return getVariableTyped(variableName);
+    }
+
+    @Override
+    public <T extends TypedValue> T getVariableLocalTyped(String variableName, boolean deserializeValue) {
+        return getVariableTyped(variableName);
+    }
+
+    @Override
+    public Set<String> getVariableNames() {
+        return new HashSet<>(variables.keySet());
+    }
+
+    @Override
+    public Set<String> getVariableNamesLocal() {
+        return getVariableNames();
+    }
+
+    @Override
+    public void setVariable(String variableName, Object value) {
+        variables.put(variableName, value);
+    }
+
+    @Override
+    public void setVariableLocal(String variableName, Object value) {
+        setVariable(variableName, value);
+    }
+
+    @Override
+    public void setVariables(Map<String, ?> variables) {
+        this.variables.putAll(variables);
+    }
+
+    @Override
+    public void setVariablesLocal(Map<String, ?> variables) {
+        setVariables(variables);
+    }
+
+    @Override
+    public boolean hasVariables() {
+        return !variables.isEmpty();
+    }
+
+    @Override
+    public boolean hasVariablesLocal() {
+        return hasVariables();
+    }
+
+    @Override
+    public boolean hasVariable(String variableName) {
+        return variables.containsKey(variableName);
+    }
+
+    @Override
+    public boolean hasVariableLocal(String variableName) {
+        return hasVariable(variableName);
+    }
+
+    @Override
+    public void removeVariable(String variableName) {
+        variables.remove(variableName);
+    }
+
+    @Override
+    public void removeVariableLocal(String variableName) {
+        removeVariable(variableName);
+    }
+
+    @Override
+    public void removeVariables(Collection<String> variableNames) {
+        variableNames.forEach(variables::remove);
+    }
+
+    @Override
+    public void removeVariablesLocal(Collection<String> variableNames) {
+        removeVariables(variableNames);
+    }
+
+    @Override
+    public void removeVariables() {
+        variables.clear();
+    }
+
+    @Override
+    public void removeVariablesLocal() {
+        removeVariables();
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineExecution[" + id + ", " + currentStage + "]";
+    }
+}
@@ -0,0 +1,14 @@
+package cz.cas.lib.arclib.engine;
+
+import org.camunda.bpm.engine.delegate.JavaDelegate;
+
+/**
+ * Stage of the ingest which can be run by {@link InProcessIngestEngine}.
+ * <p>
+ * The stage is a {@link JavaDelegate} which needs from its execution only what {@link PipelineExecution} provides:
+ * the variables, the ids and the name of the current stage. It does not use the BPM model or the services of
+ * the process engine.
+ * </p>
+ */
+public interface PipelineStage extends JavaDelegate {
+}
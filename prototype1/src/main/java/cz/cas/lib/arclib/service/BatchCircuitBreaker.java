@@ -0,0 +1,172 @@
+package cz.cas.lib.arclib.service;
+
+import lombok.Getter;
+
+/**
+ * Circuit breaker of a single batch fed by the outcomes of its SIPs.
+ * <p>
+ * The breaker keeps the outcomes of the last {@link #windowSize} processed SIPs. When there are at least
+ * {@link #minimumOutcomes} outcomes in the window and the ratio of the failures reaches {@link #failureThreshold},
+ * the breaker opens and the dispatching of the batch is paused. After {@link #openDuration} the breaker becomes
+ * half-open and lets {@link #probes} SIPs through. If all of them succeed, the breaker closes and the window is
+ * cleared, the first failure opens the breaker again.
+ * </p>
+ * <p>
+ * Every change of the state starts a new generation of the breaker. A dispatched SIP is tagged by the generation it
+ * was dispatched in and only the outcomes of the SIPs of the current generation are recorded, so e.g. a SIP dispatched
+ * before the breaker opened is not taken for a probe. A probe which comes back without an outcome, e.g. because it
+ * has not been started or has been stopped, frees its slot for another probe.
+ * </p>
+ */
+public class BatchCircuitBreaker {
+
+    private final int windowSize;
+    private final int minimumOutcomes;
+    private final double failureThreshold;
+    private final long openDuration;
+    private final int probes;
+
+    /**
+     * Ring buffer of the recent outcomes, true for a failure
+     */
+    private final boolean[] window;
+    private int next;
+    private int outcomes;
+    private int failures;
+
+    @Getter
+    private BreakerState state = BreakerState.CLOSED;
+    private long openedAt;
+    private int generation;
+    private int probesSent;
+    private int probesSucceeded;
+
+    public BatchCircuitBreaker(int windowSize, int minimumOutcomes, double failureThreshold, long openDuration,
+                               int probes) {
+        this.windowSize = windowSize;
+        this.minimumOutcomes = minimumOutcomes;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+        this.probes = probes;
+        this.window = new boolean[windowSize];
+    }
+
+    /**
+     * Checks whether a SIP of the batch may be dispatched. An open breaker whose pause has elapsed becomes half-open.
+     *
+     * @param now current time in milliseconds
+     * @return true if a SIP may be dispatched, false otherwise
+     */
+    public boolean allowsDispatch(long now) {
+        if (state == BreakerState.OPEN && now - openedAt >= openDuration) {
+            state = BreakerState.HALF_OPEN;
+            generation++;
+            probesSent = 0;
+            probesSucceeded = 0;
+        }
+
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                return probesSent < probes;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Notes that a SIP of the batch has been dispatched.
+     *
+     * @return generation of the breaker the SIP has been dispatched in
+     */
+    public int dispatched() {
+        if (state == BreakerState.HALF_OPEN) {
+            probesSent++;
+        }
+        return generation;
+    }
+
+    /**
+     * Notes that a SIP of the batch has come back without an outcome, a probe of the current generation frees its slot.
+     *
+     * @param dispatchedIn generation of the breaker the SIP has been dispatched in
+     */
+    public void returned(int dispatchedIn) {
+        if (state == BreakerState.HALF_OPEN && dispatchedIn == generation && probesSent > 0) {
+            probesSent--;
+        }
+    }
+
+    /**
+     * Records the outcome of a processed SIP of the batch dispatched in the current generation.
+     *
+     * @param failed true if the processing of the SIP has failed
+     * @param now    current time in milliseconds
+     */
+    public void record(boolean failed, long now) {
+        record(generation, failed, now);
+    }
+
+    /**
+     * Records the outcome of a processed SIP of the batch. Outcomes of the SIPs dispatched in a previous generation
+     * are ignored.
+     *
+     * @param dispatchedIn generation of the breaker the SIP has been dispatched in
+     * @param failed       true if the processing of the SIP has failed
+     * @param now          current time in milliseconds
+     */
+    public void record(int dispatchedIn, boolean failed, long now) {
+        if (dispatchedIn != generation) {
+            return;
+        }
+
+        switch (state) {
+            case HALF_OPEN:
+                if (failed) {
+                    open(now);
+                } else if (++probesSucceeded >= probes) {
+                    close();
+                }
+                break;
+            case CLOSED:
+                add(failed);
+                if (outcomes >= minimumOutcomes && failures >= failureThreshold * outcomes) {
+                    open(now);
+                }
+                break;
+            default:
+                /* an open breaker has no SIPs of its generation */
+        }
+    }
+
+    private void add(boolean failed) {
+        if (outcomes == windowSize) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            outcomes++;
+        }
+
+        window[next] = failed;
+        if (failed) {
+            failures++;
+        }
+        next = (next + 1) % windowSize;
+    }
+
+    private void open(long now) {
+        state = BreakerState.OPEN;
+        generation++;
+        openedAt = now;
+    }
+
+    private void close() {
+        state = BreakerState.CLOSED;
+        generation++;
+        next = 0;
+        outcomes = 0;
+        failures = 0;
+    }
+}
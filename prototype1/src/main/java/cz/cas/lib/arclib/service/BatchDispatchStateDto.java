@@ -0,0 +1,16 @@
+package cz.cas.lib.arclib.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class BatchDispatchStateDto {
+    private int queued;
+
+    private int inFlight;
+
+    private BreakerState breaker;
+}
@@ -0,0 +1,30 @@
+package cz.cas.lib.arclib.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class BatchThroughputDto {
+    /**
+     * Number of processed SIPs
+     */
+    private long sips;
+
+    /**
+     * Total size of the processed SIPs in bytes
+     */
+    private long bytes;
+
+    /**
+     * Processed SIPs per second since the start of the batch
+     */
+    private double sipsPerSecond;
+
+    /**
+     * Processed bytes per second since the start of the batch
+     */
+    private double bytesPerSecond;
+}
@@ -0,0 +1,21 @@
+package cz.cas.lib.arclib.service;
+
+/**
+ * State of the {@link BatchCircuitBreaker}
+ */
+public enum BreakerState {
+    /**
+     * SIPs of the batch are dispatched
+     */
+    CLOSED,
+
+    /**
+     * Too many recent SIPs of the batch have failed, dispatching of the batch is paused
+     */
+    OPEN,
+
+    /**
+     * The pause has elapsed, a few probe SIPs of the batch are dispatched to find out whether the failures persist
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,140 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.store.BatchStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cooperative cancellation of the ingest of SIPs whose batch has been canceled or suspended.
+ * <p>
+ * The interruptible parts of the ingest, i.e. the staging and the processing, are run by
+ * {@link #interruptibly(String, String, Interruptible)}. When the batch is canceled, every node interrupts the threads
+ * running the interruptible parts of its SIPs, see {@link CoordinatorService#stopped(String)}, so the copying and
+ * the processing stop immediately. Database calls are never run interruptibly, an interrupted JDBC call might break
+ * the connection. Between the stages the ingest calls {@link #checkpoint(String, String)}, which also checks the state
+ * of the batch in the database, so the ingest stops at the next checkpoint even when the interrupt has been missed,
+ * e.g. because the node was not running the interruptible part at the moment.
+ * </p>
+ */
+@Slf4j
+@Service
+public class CancellationService {
+
+    private final Map<String, Running> running = new HashMap<>();
+
+    private BatchStore batchStore;
+
+    /**
+     * Runs a part of the ingest of the SIP which is interrupted when the batch is canceled or suspended.
+     *
+     * @param sipId   id of the SIP
+     * @param batchId id of the batch the SIP belongs to
+     * @param task    the interruptible part of the ingest
+     * @param <T>     type of the result
+     * @return result of the task
+     * @throws IOException          exception thrown by the task, e.g. {@link java.io.InterruptedIOException} when
+     *                              the task is interrupted during an I/O operation
+     * @throws InterruptedException exception thrown by the task when it is interrupted
+     */
+    public <T> T interruptibly(String sipId, String batchId, Interruptible<T> task) throws IOException, InterruptedException {
+        enter(sipId, batchId);
+        try {
+            return task.call();
+        } finally {
+            exit(sipId);
+        }
+    }
+
+    /**
+     * Registers the current thread as running the interruptible part of the ingest of the SIP.
+     */
+    private synchronized void enter(String sipId, String batchId) {
+        running.put(sipId, new Running(batchId, Thread.currentThread()));
+    }
+
+    /**
+     * Unregisters the thread running the interruptible part of the ingest of the SIP. A pending interrupt is cleared, so
+     * it does not affect the code following the interruptible part.
+     */
+    private synchronized void exit(String sipId) {
+        Running removed = running.remove(sipId);
+        if (removed != null && removed.thread == Thread.currentThread()) {
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Checks whether the ingest of the SIP should continue.
+     *
+     * @param sipId   id of the SIP
+     * @param batchId id of the batch the SIP belongs to
+     * @throws InterruptedException if the current thread has been interrupted or the batch is not in the state PROCESSING
+     */
+    public void checkpoint(String sipId, String batchId) throws InterruptedException {
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Ingest of SIP " + sipId + " has been interrupted.");
+        }
+
+        Batch batch = batchStore.find(batchId);
+        if (batch == null || batch.getState() != BatchState.PROCESSING) {
+            throw new InterruptedException("Ingest of SIP " + sipId + " has been stopped because the batch " + batchId +
+                    " is not in the state PROCESSING.");
+        }
+    }
+
+    /**
+     * Interrupts the threads running the interruptible part of the ingest of the SIPs of the batch on this node.
+     *
+     * @param batchId id of the batch
+     * @return number of the interrupted threads
+     */
+    public synchronized int interrupt(String batchId) {
+        int interrupted = 0;
+
+        for (Map.Entry<String, Running> entry : running.entrySet()) {
+            if (entry.getValue().batchId.equals(batchId)) {
+                entry.getValue().thread.interrupt();
+                interrupted++;
+
+                log.debug("Ingest of SIP " + entry.getKey() + " has been interrupted.");
+            }
+        }
+
+        return interrupted;
+    }
+
+    /**
+     * Interruptible part of the ingest
+     *
+     * @param <T> type of the result
+     */
+    @FunctionalInterface
+    public interface Interruptible<T> {
+        T call() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Thread running the interruptible part of the ingest of a SIP
+     */
+    private static class Running {
+        private final String batchId;
+        private final Thread thread;
+
+        private Running(String batchId, Thread thread) {
+            this.batchId = batchId;
+            this.thread = thread;
+        }
+    }
+
+    @Inject
+    public void setBatchStore(BatchStore batchStore) {
+        this.batchStore = batchStore;
+    }
+}
@@ -0,0 +1,63 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.exception.GeneralException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+
+/**
+ * Creates the {@link BatchCircuitBreaker}s of the batches with the configured thresholds.
+ */
+@Component
+public class CircuitBreakerFactory {
+
+    private int windowSize;
+    private int minimumOutcomes;
+    private double failureThreshold;
+    private long openDuration;
+    private int probes;
+
+    public BatchCircuitBreaker create() {
+        return new BatchCircuitBreaker(windowSize, minimumOutcomes, failureThreshold, openDuration, probes);
+    }
+
+    @PostConstruct
+    public void checkSettings() {
+        if (windowSize < 1 || minimumOutcomes < 1 || minimumOutcomes > windowSize) {
+            throw new GeneralException("The circuit breaker settings must satisfy 1 <= minimumOutcomes <= windowSize.");
+        }
+        if (!(failureThreshold > 0 && failureThreshold <= 1)) {
+            throw new GeneralException("The circuit breaker failureThreshold must be in the interval (0, 1].");
+        }
+        if (probes < 1 || openDuration < 0) {
+            throw new GeneralException("The circuit breaker settings must satisfy probes >= 1 and openDuration >= 0.");
+        }
+    }
+
+    @Inject
+    public void setWindowSize(@Value("${arclib.breaker.windowSize}") int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    @Inject
+    public void setMinimumOutcomes(@Value("${arclib.breaker.minimumOutcomes}") int minimumOutcomes) {
+        this.minimumOutcomes = minimumOutcomes;
+    }
+
+    @Inject
+    public void setFailureThreshold(@Value("${arclib.breaker.failureThreshold}") double failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    @Inject
+    public void setOpenDuration(@Value("${arclib.breaker.openDuration}") long openDuration) {
+        this.openDuration = openDuration;
+    }
+
+    @Inject
+    public void setProbes(@Value("${arclib.breaker.probes}") int probes) {
+        this.probes = probes;
+    }
+}
@@ -0,0 +1,315 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.exception.GeneralException;
+import cz.cas.lib.arclib.store.SipStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jms.annotation.JmsListener;
+import org.springframework.jms.config.JmsListenerEndpointRegistry;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.listener.MessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Adaptive limit of the number of SIPs processed at once by this node.
+ * <p>
+ * The limit is adjusted using additive increase and multiplicative decrease (AIMD). The latencies of the processed SIPs
+ * are collected in windows of as many SIPs as the current limit. At the end of each window the average latency of the
+ * window is compared with the baseline, the long-term moving average of the latency:
+ * </p>
+ * <ul>
+ * <li>if the average latency exceeds the baseline more than {@link #tolerance} times or the disk queue of the
+ * workspace is longer than {@link #maxDiskQueue}, the node is congested and the limit is multiplied
+ * by {@link #backoff},</li>
+ * <li>otherwise, if the limit has been reached during the window, the limit is increased by one, so the parallelism
+ * grows as long as the additional SIPs do not slow the others down.</li>
+ * </ul>
+ * <p>
+ * Only the SIPs processed successfully are measured, failed and stopped SIPs usually finish faster and would make
+ * the node look less loaded than it is. The latency is measured from the start of the ingest of the SIP, the time
+ * the SIP has waited for its permit is not included.
+ * </p>
+ * <p>
+ * While the node is at the limit, its listener of the queue "worker" is stopped, so the SIPs waiting in the queue are
+ * left to the other nodes instead of being held by this one. The listener does not prefetch any messages.
+ * </p>
+ * <p>
+ * The ingest of a SIP may run on another node than the one which has taken its permit. The permit is then returned
+ * by a message sent to the queue of the node which has taken it, identified by {@link #NODE}.
+ * </p>
+ */
+@Slf4j
+@Service
+public class ConcurrencyLimiter {
+    /**
+     * Weight of the average latency of the last window in the baseline
+     */
+    private static final double SMOOTHING = 0.1;
+
+    /**
+     * Identifier of this node, the permits taken by this node are returned to the queue {@code limiter.<NODE>}
+     */
+    public static final String NODE = UUID.randomUUID().toString();
+
+    /**
+     * Id of the listener of the queue "worker", which is stopped while the node is at the limit
+     */
+    public static final String WORKER_LISTENER = "worker";
+
+    /**
+     * Start times of the SIPs holding a permit, in nanoseconds
+     */
+    private final Map<String, Long> started = new HashMap<>();
+
+    private double limit;
+    private int minLimit;
+    private int maxLimit;
+    private double tolerance;
+    private double backoff;
+    private int maxDiskQueue;
+    private long pruneDelay;
+
+    private DiskQueueProbe diskQueue;
+    private SipStore sipStore;
+    private JmsTemplate template;
+    private JmsListenerEndpointRegistry registry;
+
+    private double baseline;
+    private long windowSum;
+    private int windowSamples;
+    private int windowPeak;
+
+    /**
+     * Takes a permit for the SIP and stops the listener of the queue "worker" if the limit has been reached. Waits
+     * until the number of SIPs processed by this node is below the limit, which happens only when the SIP has been
+     * received before the listener stopped.
+     *
+     * @param sipId id of the SIP
+     * @throws InterruptedException if the thread has been interrupted while waiting
+     */
+    public synchronized void acquire(String sipId) throws InterruptedException {
+        while (started.size() >= (int) limit) {
+            wait();
+        }
+
+        started.put(sipId, System.nanoTime());
+        windowPeak = Math.max(windowPeak, started.size());
+        updateConsuming();
+    }
+
+    /**
+     * Returns the permit of the SIP and starts the listener of the queue "worker" if the node is below the limit.
+     * Releasing of a SIP without a permit is ignored.
+     *
+     * @param sipId   id of the SIP
+     * @param latency latency of the SIP in nanoseconds to adjust the limit by, null if the SIP is not measured
+     */
+    public synchronized void release(String sipId, Long latency) {
+        Long start = started.remove(sipId);
+        if (start == null) {
+            return;
+        }
+
+        if (latency != null) {
+            sample(latency);
+        }
+        notifyAll();
+        updateConsuming();
+    }
+
+    /**
+     * Stops the listener of the queue "worker" when the node is at the limit and starts it again when the node is
+     * below the limit.
+     */
+    private void updateConsuming() {
+        MessageListenerContainer container = registry != null ? registry.getListenerContainer(WORKER_LISTENER) : null;
+        if (container == null) {
+            return;
+        }
+
+        boolean below = started.size() < (int) limit;
+        if (below && !container.isRunning()) {
+            container.start();
+        } else if (!below && container.isRunning()) {
+            container.stop();
+        }
+    }
+
+    /**
+     * Returns the permit of the processed SIP to the node which has taken it.
+     *
+     * @param node       {@link #NODE} of the node which has taken the permit, null for this node
+     * @param completion SIP with the outcome of its processing, only the SIPs processed successfully are measured
+     */
+    public void release(String node, CoordinatorDto completion) {
+        if (node == null || NODE.equals(node)) {
+            released(completion);
+        } else {
+            template.convertAndSend("limiter." + node, completion);
+        }
+    }
+
+    /**
+     * Receives the permit of a SIP processed on another node.
+     *
+     * @param completion SIP with the outcome of its processing
+     */
+    @JmsListener(destination = "#{'limiter.' + T(cz.cas.lib.arclib.service.ConcurrencyLimiter).NODE}")
+    public void released(CoordinatorDto completion) {
+        release(completion.getSipId(), completion.getOutcome() == SipState.PROCESSED ? completion.getLatency() : null);
+    }
+
+    /**
+     * Returns the permits of the SIPs which are not in the state PROCESSING any more, but whose permits have not been
+     * returned, e.g. because the node processing them has crashed. SIPs holding their permit only for a short time are
+     * skipped, their ingest may not have been started yet.
+     */
+    @Scheduled(fixedDelayString = "${arclib.lease.heartbeat}")
+    public void prune() {
+        long threshold = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(pruneDelay);
+
+        List<String> candidates;
+        synchronized (this) {
+            candidates = started.entrySet().stream()
+                    .filter(entry -> entry.getValue() < threshold)
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toList());
+        }
+
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        Set<String> finished = new HashSet<>(candidates);
+        finished.removeAll(sipStore.findProcessing(candidates));
+        finished.forEach(sipId -> release(sipId, null));
+    }
+
+    /**
+     * Adds the latency of a processed SIP to the current window and adjusts the limit at the end of the window.
+     *
+     * @param latency latency of the SIP in nanoseconds
+     */
+    synchronized void sample(long latency) {
+        windowSum += latency;
+        windowSamples++;
+        if (windowSamples < (int) limit) {
+            return;
+        }
+
+        double average = (double) windowSum / windowSamples;
+        int queue = diskQueue.getQueueLength();
+        boolean slow = baseline > 0 && average > baseline * tolerance;
+        boolean congested = slow || (maxDiskQueue > 0 && queue > maxDiskQueue);
+
+        int previous = (int) limit;
+        if (congested) {
+            limit = Math.max(minLimit, limit * backoff);
+        } else if (windowPeak >= previous) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+
+        baseline = baseline > 0 ? baseline * (1 - SMOOTHING) + average * SMOOTHING : average;
+        windowSum = 0;
+        windowSamples = 0;
+        windowPeak = started.size();
+
+        if ((int) limit != previous) {
+            log.debug("Concurrency limit changed from " + previous + " to " + (int) limit + ", average latency "
+                    + TimeUnit.NANOSECONDS.toMillis((long) average) + " ms, disk queue " + queue + ".");
+            notifyAll();
+            updateConsuming();
+        }
+    }
+
+    /**
+     * Gets the current limit of SIPs processed at once.
+     *
+     * @return the limit
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Gets the number of SIPs holding a permit.
+     *
+     * @return number of SIPs
+     */
+    public synchronized int getInFlight() {
+        return started.size();
+    }
+
+    @PostConstruct
+    public void checkLimits() {
+        if (minLimit < 1 || maxLimit < minLimit || limit < minLimit || limit > maxLimit) {
+            throw new GeneralException("The concurrency limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit.");
+        }
+    }
+
+    @Inject
+    public void setInitialLimit(@Value("${arclib.limiter.initialLimit}") int initialLimit) {
+        this.limit = initialLimit;
+    }
+
+    @Inject
+    public void setMinLimit(@Value("${arclib.limiter.minLimit}") int minLimit) {
+        this.minLimit = minLimit;
+    }
+
+    @Inject
+    public void setMaxLimit(@Value("${arclib.limiter.maxLimit}") int maxLimit) {
+        this.maxLimit = maxLimit;
+    }
+
+    @Inject
+    public void setTolerance(@Value("${arclib.limiter.tolerance}") double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    @Inject
+    public void setBackoff(@Value("${arclib.limiter.backoff}") double backoff) {
+        if (backoff <= 0 || backoff >= 1) {
+            throw new GeneralException("The backoff of the concurrency limit must be between 0 and 1.");
+        }
+        this.backoff = backoff;
+    }
+
+    @Inject
+    public void setMaxDiskQueue(@Value("${arclib.limiter.maxDiskQueue}") int maxDiskQueue) {
+        this.maxDiskQueue = maxDiskQueue;
+    }
+
+    @Inject
+    public void setPruneDelay(@Value("${arclib.lease.heartbeat}") long pruneDelay) {
+        this.pruneDelay = pruneDelay;
+    }
+
+    @Inject
+    public void setDiskQueue(DiskQueueProbe diskQueue) {
+        this.diskQueue = diskQueue;
+    }
+
+    @Inject
+    public void setSipStore(SipStore sipStore) {
+        this.sipStore = sipStore;
+    }
+
+    @Inject
+    public void setTemplate(JmsTemplate template) {
+        this.template = template;
+    }
+
+    @Inject
+    public void setRegistry(JmsListenerEndpointRegistry registry) {
+        this.registry = registry;
+    }
+}
@@ -1,5 +1,6 @@
 package cz.cas.lib.arclib.service;
 
+import cz.cas.lib.arclib.domain.SipState;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.Setter;
@@ -11,4 +12,28 @@ public class CoordinatorDto {
     private String sipId;
 
     private String batchId;
+
+    /**
+     * State of the SIP after its processing, null if the SIP has not been processed
+     */
+    private SipState outcome;
+
+    /**
+     * {@link ConcurrencyLimiter#NODE} of the node which has dispatched the SIP, its completion is reported to the queue
+     * of the node, see {@link DispatcherService#completedDestination(String)}
+     */
+    private String dispatcher;
+
+    /**
+     * Latency of the ingest of the SIP in nanoseconds, measured from its start, null if the SIP has not been processed
+     */
+    private Long latency;
+
+    public CoordinatorDto(String sipId, String batchId) {
+        this(sipId, batchId, null, null, null);
+    }
+
+    public CoordinatorDto(String sipId, String batchId, SipState outcome) {
+        this(sipId, batchId, outcome, null, null);
+    }
 }
@@ -1,6 +1,9 @@
 package cz.cas.lib.arclib.service;
 
+import cz.cas.lib.arclib.dedup.DeduplicationService;
+import cz.cas.lib.arclib.domain.SipFingerprint;
 import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.exception.BadArgument;
 import cz.cas.lib.arclib.exception.GeneralException;
 import cz.cas.lib.arclib.exception.MissingObject;
 import cz.cas.lib.arclib.store.SipStore;
@@ -10,81 +13,223 @@ import cz.cas.lib.arclib.domain.Sip;
 import cz.cas.lib.arclib.store.BatchStore;
 import cz.cas.lib.arclib.store.Transactional;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jms.annotation.JmsListener;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.stereotype.Service;
 
-import java.util.List;
-import java.util.stream.Collectors;
-
+import javax.annotation.PostConstruct;
 import javax.inject.Inject;
-import java.io.File;
-import java.util.Arrays;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
-import static cz.cas.lib.arclib.util.Utils.asList;
 import static cz.cas.lib.arclib.util.Utils.notNull;
 
 @Slf4j
 @Service
 public class CoordinatorService {
+    /**
+     * Number of sip packages loaded from database at once when iterating over a batch
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * Ids of the batches whose sip packages are being registered by this node
+     */
+    private final Set<String> registering = ConcurrentHashMap.newKeySet();
 
     private SipStore sipStore;
     private BatchStore batchStore;
-    private JmsTemplate template;
+    private DispatcherService dispatcher;
+    private LeaseService leaseService;
+    private DeduplicationService deduplication;
+    private CancellationService cancellation;
+    private IngestMetrics metrics;
+    private JmsTemplate topicTemplate;
+    private int chunkSize;
+    private boolean coordinator;
+
+    /**
+     * Rebuilds the dispatching queues after the start of the coordinator node: queues the sip packages with the state
+     * NEW of every batch with the state PROCESSING for dispatching. The queues live only in the memory of the node,
+     * without this the batches running before the restart would stall.
+     */
+    @PostConstruct
+    public void recover() {
+        if (!coordinator) {
+            return;
+        }
+
+        for (Batch batch : batchStore.findByState(BatchState.PROCESSING)) {
+            int queued = enqueueNew(batch);
+            if (queued > 0) {
+                log.info(queued + " SIPs of batch " + batch.getId() + " with the state NEW have been queued again.");
+            }
+        }
+    }
 
     /**
-     * Creates and starts new batch. For each file in the specified folder creates sip package and assigns it to the batch.
-     * Then it sets the state of batch to PROCESSING and sends a JMS message to Worker for each sip package.
+     * Creates and starts new batch with the state PROCESSING. The files in the specified folder are streamed in chunks,
+     * for each file there is a sip package created and assigned to the batch. As soon as a chunk of sip packages is
+     * saved, it is queued for dispatching to Worker, so the processing of the batch starts while the later chunks are
+     * still being registered. The batch is closed for registering even if the registration fails, the sip packages
+     * registered until then are processed.
      *
-     * @param path path to the folder with files to be processed
+     * @param path        path to the folder with files to be processed
+     * @param priority    weight of the batch when sharing the workers with other batches
+     * @param maxInFlight maximal number of sip packages of the batch processed at once, null for the default limit
      * @return id of the created batch
      */
-    public String start(String path) {
-        File folder = new File(path);
-        if (!folder.exists()) {
+    public String start(String path, int priority, Integer maxInFlight) {
+        Path folder = Paths.get(path);
+        if (!Files.exists(folder)) {
             throw new GeneralException("There is no folder on the path " + path + ". Please specify a valid path.");
         }
 
-        Set<String> sipIds = processFolder(folder);
+        Batch batch = open(priority, maxInFlight);
+
+        registering.add(batch.getId());
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            register(batch, files);
+        } catch (IOException e) {
+            throw new GeneralException("Reading of the folder " + folder + " of batch " + batch.getId() + " failed.", e);
+        } finally {
+            registering.remove(batch.getId());
+            close(batch.getId());
+        }
+
+        return batch.getId();
+    }
+
+    /**
+     * Creates new batch with the state PROCESSING, which is open for registering of sip packages until it is closed
+     * by {@link #close(String)}.
+     *
+     * @param priority    weight of the batch when sharing the workers with other batches
+     * @param maxInFlight maximal number of sip packages of the batch processed at once, null for the default limit
+     * @return the created batch
+     */
+    public Batch open(int priority, Integer maxInFlight) {
+        return open(priority, maxInFlight, false);
+    }
+
+    /**
+     * Creates new batch with the state PROCESSING, which is open for registering of sip packages until it is closed
+     * by {@link #close(String)}.
+     *
+     * @param priority    weight of the batch when sharing the workers with other batches
+     * @param maxInFlight maximal number of sip packages of the batch processed at once, null for the default limit
+     * @param watched     whether the batch is the rolling batch of the watched folders
+     * @return the created batch
+     */
+    public Batch open(int priority, Integer maxInFlight, boolean watched) {
+        checkPriority(priority, maxInFlight);
 
         Batch batch = new Batch();
-        batch.setIds(sipIds);
         batch.setState(BatchState.PROCESSING);
+        batch.setRegistering(true);
+        batch.setPriority(priority);
+        batch.setMaxInFlight(maxInFlight);
+        batch.setWatched(watched);
         batchStore.save(batch);
+        metrics.batchTransition(null, BatchState.PROCESSING);
+        metrics.batchStarted(batch.getId());
         log.info("New Batch with id " + batch.getId() + " created. The batch state is set to PROCESSING.");
 
+        return batch;
+    }
 
-        sipIds.forEach(id -> {
-            template.convertAndSend("worker", new CoordinatorDto(id, batch.getId()));
-        });
-        return batch.getId();
+    /**
+     * For each file creates sip package of the open batch and sets its state to NEW. The sip packages are saved
+     * to database and dispatched to Worker in chunks of {@link #chunkSize}.
+     *
+     * @param batch batch the sip packages belong to
+     * @param files files to be processed
+     */
+    public void register(Batch batch, Iterable<Path> files) {
+        List<Sip> chunk = new ArrayList<>(chunkSize);
+
+        for (Path file : files) {
+            Sip sip = new Sip();
+            sip.setState(SipState.NEW);
+            sip.setPath(file.toString());
+            sip.setBatchId(batch.getId());
+            chunk.add(sip);
+
+            if (chunk.size() == chunkSize) {
+                dispatchChunk(chunk, batch);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+
+        if (!chunk.isEmpty()) {
+            dispatchChunk(chunk, batch);
+        }
+    }
+
+    /**
+     * Closes the batch for registering of sip packages. If all its sip packages have already been processed, the batch
+     * state changes to PROCESSED.
+     *
+     * @param batchId id of the batch
+     */
+    public void close(String batchId) {
+        batchStore.finishRegistration(batchId);
+        log.info("All SIPs of batch " + batchId + " have been registered.");
+
+        if (batchStore.markProcessedIfFinished(batchId)) {
+            metrics.batchTransition(BatchState.PROCESSING, BatchState.PROCESSED);
+            log.info("Batch " + batchId + " has been processed. The batch state changed to PROCESSED.");
+        }
     }
 
     /**
-     * For each file in the folder creates sip package, sets its state to PROCESSING and saves it to database.
+     * Saves the chunk of sip packages in a single JDBC batch, adds them to the counters of the batch and passes them
+     * to {@link DispatcherService} which sends them to Worker. Sip packages with the same content as an already
+     * registered sip package get the state DUPLICATE and are not sent to Worker at all.
      *
-     * @param folder folder containing files to be processed
-     * @return ids of the created sip packages
+     * @param chunk sip packages to dispatch
+     * @param batch batch the sip packages belong to
      */
-    private Set<String> processFolder(File folder) {
-        return Arrays
-                .stream(folder.listFiles())
-                .map(f -> {
-                    Sip sip = new Sip();
-                    sip.setState(SipState.NEW);
-                    sip.setPath(f.getPath());
-                    sipStore.save(sip);
+    private void dispatchChunk(List<Sip> chunk, Batch batch) {
+        List<SipFingerprint> fingerprints = deduplication.deduplicate(chunk);
+        sipStore.save(chunk);
+        deduplication.remember(fingerprints);
 
-                    log.info("New SIP with id " + sip.getId() + " and path " + f.getPath() + " created. The SIP state is set to NEW.");
+        List<String> newSipIds = chunk.stream()
+                .filter(sip -> sip.getState() == SipState.NEW)
+                .map(Sip::getId)
+                .collect(Collectors.toList());
+        int duplicates = chunk.size() - newSipIds.size();
 
-                    return sip.getId();
-                })
-                .collect(Collectors.toSet());
+        batchStore.addSips(batch.getId(), newSipIds.size());
+        metrics.sipTransition(null, SipState.NEW, newSipIds.size());
+        if (duplicates > 0) {
+            batchStore.addDuplicates(batch.getId(), duplicates);
+            metrics.sipTransition(null, SipState.DUPLICATE, duplicates);
+        }
+
+        chunk.forEach(sip -> log.debug("New SIP with id " + sip.getId() + " and path " + sip.getPath() + " created."));
+        log.info(newSipIds.size() + " new SIPs of batch " + batch.getId() + " created. The SIP state is set to NEW.");
+        if (duplicates > 0) {
+            log.info(duplicates + " SIPs of batch " + batch.getId() + " are duplicates of already registered SIPs. " +
+                    "The SIP state is set to DUPLICATE.");
+        }
+
+        dispatcher.enqueue(batch, newSipIds);
     }
 
     /**
-     * Cancels processing of the batch by updating its state to CANCELED.
+     * Cancels processing of the batch by updating its state to CANCELED. The sip packages of the batch waiting for
+     * dispatching are dropped and the processing of the sip packages already dispatched is stopped.
      *
      * @param batchId id of the batch
      */
@@ -95,14 +240,19 @@ public class CoordinatorService {
 
         notNull(batch, () -> new MissingObject(Batch.class, batchId));
 
+        BatchState previousState = batch.getState();
         batch.setState(BatchState.CANCELED);
         batchStore.save(batch);
+        metrics.batchTransition(previousState, BatchState.CANCELED);
+        stopProcessing(batchId);
 
         log.info("Batch " + batch.getId() + " has been canceled. The batch state changed to CANCELED.");
     }
 
     /**
-     * Suspends processing of the batch by updating its state to SUSPENDED.
+     * Suspends processing of the batch by updating its state to SUSPENDED. The sip packages of the batch waiting for
+     * dispatching are dropped and the processing of the sip packages already dispatched is stopped, they are queued
+     * again on resume.
      *
      * @param batchId id of the batch
      */
@@ -112,51 +262,207 @@ public class CoordinatorService {
 
         notNull(batch, () -> new MissingObject(Batch.class, batchId));
 
+        BatchState previousState = batch.getState();
         batch.setState(BatchState.SUSPENDED);
         batchStore.save(batch);
+        metrics.batchTransition(previousState, BatchState.SUSPENDED);
+        stopProcessing(batchId);
 
         log.info("Batch " + batch.getId() + " has been suspended. The batch state changed to SUSPENDED.");
     }
 
+    /**
+     * Stops the processing of the sip packages of the batch:
+     * 1. drops the sip packages waiting for dispatching
+     * 2. removes the messages of the batch not yet consumed by Worker from the JMS queue
+     * 3. publishes the batch to the topic "stopped", so every node stops the processing of its sip packages of
+     * the batch, see {@link #stopped(String)}
+     *
+     * @param batchId id of the batch
+     */
+    private void stopProcessing(String batchId) {
+        dispatcher.discard(batchId);
+        dispatcher.purge(batchId);
+
+        topicTemplate.convertAndSend("stopped", batchId);
+    }
+
+    /**
+     * Receives the batch whose processing has been stopped on any node:
+     * 1. drops the sip packages of the batch waiting for dispatching at this node
+     * 2. interrupts the staging and processing of the sip packages of the batch running on this node, the interrupted
+     * sip packages are released from workspace and their state changes back to NEW
+     *
+     * Sip packages which are not being staged or processed right now are stopped at their next checkpoint.
+     *
+     * @param batchId id of the batch
+     */
+    @JmsListener(destination = "stopped", containerFactory = "topicFactory")
+    public void stopped(String batchId) {
+        dispatcher.discard(batchId);
+
+        int interrupted = cancellation.interrupt(batchId);
+        if (interrupted > 0) {
+            log.info("Processing of " + interrupted + " SIPs of batch " + batchId + " has been interrupted.");
+        }
+    }
+
     /**
      * Resumes processing of the batch.
-     * a) If the batch contains any sip package with the state PROCESSING, stops the resume process and returns false.
-     * b) Otherwise, updates state of the batch to PROCESSING
-     * and for each sip package of the batch with the state NEW sends a JMS message to Worker.
-     * In this case method returns true.
-     * If there are only si ppackages with the state PROCESSED or FAILED, the batch state changes to PROCESSED.
+     * 1. updates state of the batch to PROCESSING
+     * 2. puts the sip packages of the batch with the state PROCESSING whose lease has expired back to the state NEW,
+     * sip packages with valid lease are still being processed by a worker and are left alone
+     * 3. queues each sip package of the batch with the state NEW for dispatching to Worker
+     * If there are only sip packages with the state PROCESSED, FAILED or DUPLICATE, the batch state changes to PROCESSED.
+     *
      * @param batchId id of the batch
+     * @return true, the batch is always resumed
      */
     public Boolean resume(String batchId) {
         Batch batch = batchStore.find(batchId);
         notNull(batch, () -> new MissingObject(Batch.class, batchId));
 
-        boolean hasProcessingSip = sipStore.findAllInList(asList(batch.getIds())).stream()
-                .anyMatch(sip -> sip.getState() == SipState.PROCESSING);
-        if (hasProcessingSip) {
-            log.info("Batch " + batch.getId() + " has still some sip packages in the state PROCESSING. Processing of " +
-                            "batch cannot be resumed.");
-            return false;
-        }
-
+        BatchState previousState = batch.getState();
         batch.setState(BatchState.PROCESSING);
         batchStore.save(batch);
+        metrics.batchTransition(previousState, BatchState.PROCESSING);
+        metrics.batchStarted(batchId);
         log.info("Processing of batch " + batch.getId() + " has successfully resumed. The batch state changed to PROCESSING.");
 
-        List<Sip> unprocessedSips = sipStore.findAllInList(asList(batch.getIds())).stream()
-                .filter(sip -> sip.getState() == SipState.NEW).collect(Collectors.toList());
-        if (unprocessedSips.isEmpty()) {
-            batch.setState(BatchState.PROCESSED);
-            batchStore.save(batch);
+        int reaped = leaseService.reap(batchId);
+        if (reaped > 0) {
+            log.info(reaped + " SIPs of batch " + batchId + " with expired lease have been put back to the state NEW.");
+        }
+
+        if (batchStore.markProcessedIfFinished(batchId)) {
+            metrics.batchTransition(BatchState.PROCESSING, BatchState.PROCESSED);
             log.info("Batch " + batchId + " has been processed. The batch state changed to PROCESSED.");
+            return true;
         }
-        unprocessedSips.forEach(sip -> template.convertAndSend("worker", new CoordinatorDto(sip.getId(), batch.getId())));
+
+        enqueueNew(batch);
         return true;
     }
 
+    /**
+     * Queues each sip package of the batch with the state NEW for dispatching to Worker.
+     *
+     * @param batch batch the sip packages belong to
+     * @return number of queued sip packages
+     */
+    private int enqueueNew(Batch batch) {
+        int queued = 0;
+        String lastSipId = null;
+        List<Sip> unprocessedSips;
+        do {
+            unprocessedSips = sipStore.findByBatch(batch.getId(), SipState.NEW, lastSipId, PAGE_SIZE);
+            dispatcher.enqueue(batch, unprocessedSips.stream().map(Sip::getId).collect(Collectors.toList()));
+            queued += unprocessedSips.size();
+
+            if (!unprocessedSips.isEmpty()) {
+                lastSipId = unprocessedSips.get(unprocessedSips.size() - 1).getId();
+            }
+        } while (unprocessedSips.size() == PAGE_SIZE);
+        return queued;
+    }
+
+    /**
+     * Changes the priority and the limit of sip packages processed at once of the batch. The change applies
+     * to the sip packages of the batch which have not been dispatched to Worker yet.
+     *
+     * @param batchId     id of the batch
+     * @param priority    weight of the batch when sharing the workers with other batches
+     * @param maxInFlight maximal number of sip packages of the batch processed at once, null for the default limit
+     */
+    @Transactional
+    public void prioritize(String batchId, int priority, Integer maxInFlight) {
+        checkPriority(priority, maxInFlight);
+
+        Batch batch = batchStore.find(batchId);
+        notNull(batch, () -> new MissingObject(Batch.class, batchId));
+
+        batch.setPriority(priority);
+        batch.setMaxInFlight(maxInFlight);
+        batchStore.save(batch);
+        dispatcher.update(batch);
+
+        log.info("Priority of batch " + batchId + " changed to " + priority + ".");
+    }
+
+    private void checkPriority(int priority, Integer maxInFlight) {
+        if (priority < 1) {
+            throw new BadArgument("priority");
+        }
+        if (maxInFlight != null && maxInFlight < 1) {
+            throw new BadArgument("maxInFlight");
+        }
+    }
+
+    /**
+     * Rebuilds the SIP counters of the batch from the states of its sip packages. Should be called after a crash of a
+     * node, when the counters might not correspond to the states of the sip packages.
+     * <p>
+     * A batch left open for registering by the crash is closed, unless it is the rolling batch of the watched folders
+     * or its sip packages are being registered by this node. A batch whose registration is still running on another
+     * node must not be reconciled until the registration ends.
+     * </p>
+     *
+     * @param batchId id of the batch
+     */
+    public void reconcile(String batchId) {
+        Batch batch = batchStore.find(batchId);
+        notNull(batch, () -> new MissingObject(Batch.class, batchId));
+
+        batchStore.recount(batchId);
+
+        log.info("SIP counters of batch " + batchId + " have been rebuilt from the states of its sip packages.");
+
+        if (batch.isRegistering() && !batch.isWatched() && !registering.contains(batchId)) {
+            log.info("Registration of batch " + batchId + " has been interrupted, the batch is closed.");
+            close(batchId);
+        }
+    }
+
     @Inject
     public void setTemplate(JmsTemplate template) {
-        this.template = template;
+        this.topicTemplate = new JmsTemplate(template.getConnectionFactory());
+        this.topicTemplate.setMessageConverter(template.getMessageConverter());
+        this.topicTemplate.setPubSubDomain(true);
+    }
+
+    @Inject
+    public void setChunkSize(@Value("${arclib.registration.chunkSize}") int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    @Inject
+    public void setCoordinator(@Value("${arclib.coordinator}") boolean coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    @Inject
+    public void setDispatcher(DispatcherService dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Inject
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Inject
+    public void setDeduplication(DeduplicationService deduplication) {
+        this.deduplication = deduplication;
+    }
+
+    @Inject
+    public void setCancellation(CancellationService cancellation) {
+        this.cancellation = cancellation;
+    }
+
+    @Inject
+    public void setLeaseService(LeaseService leaseService) {
+        this.leaseService = leaseService;
     }
 
     @Inject
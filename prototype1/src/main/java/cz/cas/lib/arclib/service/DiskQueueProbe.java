@@ -0,0 +1,75 @@
+package cz.cas.lib.arclib.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * Reads the number of I/O requests in progress on the block device of the workspace.
+ * <p>
+ * The number is read from {@code /sys/class/block/<device>/inflight} and is therefore available only on Linux when
+ * the workspace is on a block device, e.g. not on a network file system. Otherwise the probe reports -1.
+ * </p>
+ */
+@Slf4j
+@Component
+public class DiskQueueProbe {
+
+    private Path inflight;
+
+    /**
+     * Gets the number of read and write requests in progress on the device of the workspace.
+     *
+     * @return number of the requests or -1 if it is not available
+     */
+    public int getQueueLength() {
+        if (inflight == null) {
+            return -1;
+        }
+
+        try {
+            List<String> lines = Files.readAllLines(inflight);
+            int length = 0;
+            for (String count : lines.get(0).trim().split("\\s+")) {
+                length += Integer.parseInt(count);
+            }
+            return length;
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    @Inject
+    public void setWorkspace(@Value("${arclib.workspace}") String workspace) {
+        try {
+            Path folder = Paths.get(workspace).toAbsolutePath();
+            while (folder != null && !Files.exists(folder)) {
+                folder = folder.getParent();
+            }
+            if (folder == null) {
+                return;
+            }
+
+            Path device = Paths.get(Files.getFileStore(folder).name());
+            if (Files.exists(device)) {
+                device = device.toRealPath();
+            }
+
+            Path candidate = Paths.get("/sys/class/block", device.getFileName().toString(), "inflight");
+            if (Files.isReadable(candidate)) {
+                inflight = candidate;
+            } else {
+                log.info("Disk queue of the workspace " + workspace + " cannot be observed.");
+            }
+        } catch (IOException | RuntimeException e) {
+            log.info("Disk queue of the workspace " + workspace + " cannot be observed.", e);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package cz.cas.lib.arclib.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class DispatchStateDto {
+    /**
+     * Number of SIPs waiting in coordinator for a free credit
+     */
+    private int queued;
+
+    /**
+     * Number of SIPs sent to workers and not yet completed
+     */
+    private int inFlight;
+
+    /**
+     * Queued and in flight SIPs of the particular batches
+     */
+    private Map<String, BatchDispatchStateDto> batches;
+}
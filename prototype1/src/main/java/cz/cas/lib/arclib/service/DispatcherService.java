@@ -0,0 +1,373 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.SipState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jms.annotation.JmsListener;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.util.*;
+
+/**
+ * Credit based flow control of the JMS messages sent from the coordinator to the workers.
+ * <p>
+ * SIPs of the batches are queued in memory and sent to the queue "worker" only while the number of SIPs in flight
+ * is below {@link #maxInFlight} and the number of SIPs of the same batch in flight is below {@link #maxInFlightPerBatch}.
+ * Every SIP sent to a worker holds a credit until its completion is reported to the queue of the dispatching node,
+ * see {@link #completedDestination(String)}, then the next queued SIP is sent.
+ * </p>
+ * <p>
+ * The queues live in the memory of the coordinator node, they are rebuilt from the database when the coordinator
+ * starts, see {@link CoordinatorService#recover()}. The messages carry the {@link ConcurrencyLimiter#NODE} of
+ * the dispatching node, so the completions reach it regardless of the node which has processed the SIP.
+ * </p>
+ * <p>
+ * The free credits are shared by the batches with queued SIPs using smooth weighted round-robin, the weight of a batch
+ * is its {@link Batch#priority}. A batch may also have its own {@link Batch#maxInFlight} limit. Therefore a small batch
+ * started while a huge batch is running gets its share of the workers immediately instead of waiting behind the huge
+ * batch.
+ * </p>
+ * <p>
+ * Every batch has its {@link BatchCircuitBreaker} fed by the outcomes of its SIPs reported to its node.
+ * While the breaker of a batch is open, no SIP of the batch is sent, so a misconfigured batch stops after a few
+ * failures instead of failing all its SIPs. SIPs completed without an outcome or reclaimed give their probe slot back
+ * to the breaker.
+ * </p>
+ * <p>
+ * The messages carry the id of the batch in the property {@link #BATCH_ID_PROPERTY}, so the messages of a canceled
+ * batch not yet consumed by any worker can be removed from the queue.
+ * </p>
+ */
+@Slf4j
+@Service
+public class DispatcherService {
+    public static final String BATCH_ID_PROPERTY = "batchId";
+
+    /**
+     * Time in milliseconds to wait for the next message of the batch when purging the queue "worker"
+     */
+    private static final long PURGE_TIMEOUT = 100;
+
+    private final Map<String, BatchQueue> queues = new LinkedHashMap<>();
+    private int inFlight;
+
+    private int maxInFlight;
+    private int maxInFlightPerBatch;
+    private JmsTemplate template;
+    private JmsTemplate purgeTemplate;
+    private CircuitBreakerFactory breakerFactory;
+
+    /**
+     * Queues the SIPs of the batch and sends as many of them to workers as the free credits allow. SIPs already queued
+     * or in flight are skipped.
+     *
+     * @param batch  the batch
+     * @param sipIds ids of the SIPs to queue
+     */
+    public void enqueue(Batch batch, Collection<String> sipIds) {
+        synchronized (this) {
+            BatchQueue queue = queues.computeIfAbsent(batch.getId(), id -> new BatchQueue(breakerFactory.create()));
+            queue.configure(batch);
+            sipIds.stream()
+                    .filter(sipId -> !queue.inFlight.containsKey(sipId))
+                    .forEach(queue.queued::add);
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Applies changed priority and limit of the batch to its queued SIPs.
+     *
+     * @param batch the batch
+     */
+    public void update(Batch batch) {
+        synchronized (this) {
+            BatchQueue queue = queues.get(batch.getId());
+            if (queue == null) {
+                return;
+            }
+
+            queue.configure(batch);
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Receives JMS message reporting that the worker has finished with the SIP, records its outcome in the circuit
+     * breaker of the batch, frees its credit and sends the next queued SIPs. Completions of SIPs which are not
+     * in flight, e.g. repeated reports of a retried process, are ignored.
+     *
+     * @param dto object with the batch id and sip id
+     */
+    @JmsListener(destination = "#{'completed.' + T(cz.cas.lib.arclib.service.ConcurrencyLimiter).NODE}")
+    public void complete(CoordinatorDto dto) {
+        synchronized (this) {
+            BatchQueue queue = queues.get(dto.getBatchId());
+            Integer generation = queue != null ? queue.inFlight.remove(dto.getSipId()) : null;
+            if (generation == null) {
+                return;
+            }
+
+            inFlight--;
+            if (dto.getOutcome() != null) {
+                BreakerState previousState = queue.breaker.getState();
+                queue.breaker.record(generation, dto.getOutcome() == SipState.FAILED, System.currentTimeMillis());
+
+                if (queue.breaker.getState() != previousState) {
+                    log.info("Circuit breaker of batch " + dto.getBatchId() + " changed to " + queue.breaker.getState() + ".");
+                }
+            } else {
+                queue.breaker.returned(generation);
+            }
+            if (queue.isEmpty()) {
+                queues.remove(dto.getBatchId());
+            }
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Periodically sends the queued SIPs of the batches whose circuit breaker has become half-open, because there
+     * might be no completion to trigger the dispatching.
+     */
+    @Scheduled(fixedDelayString = "${arclib.breaker.openDuration}")
+    public void retryOpenBreakers() {
+        dispatch();
+    }
+
+    /**
+     * Frees the credits of the SIPs whose worker is gone and which will therefore never be reported as completed.
+     *
+     * @param batchId id of the batch
+     * @param sipIds  ids of the SIPs
+     */
+    public void reclaim(String batchId, Collection<String> sipIds) {
+        synchronized (this) {
+            BatchQueue queue = queues.get(batchId);
+            if (queue == null) {
+                return;
+            }
+
+            for (String sipId : sipIds) {
+                Integer generation = queue.inFlight.remove(sipId);
+                if (generation != null) {
+                    inFlight--;
+                    queue.breaker.returned(generation);
+                }
+            }
+            if (queue.isEmpty()) {
+                queues.remove(batchId);
+            }
+        }
+
+        dispatch();
+    }
+
+    /**
+     * Drops the queued SIPs of the batch. SIPs already in flight keep their credits until they are completed.
+     *
+     * @param batchId id of the batch
+     */
+    public synchronized void discard(String batchId) {
+        BatchQueue queue = queues.get(batchId);
+        if (queue == null) {
+            return;
+        }
+
+        log.info("Dropped " + queue.queued.size() + " queued SIPs of batch " + batchId + ".");
+
+        queue.queued.clear();
+        if (queue.isEmpty()) {
+            queues.remove(batchId);
+        }
+    }
+
+    /**
+     * Removes the messages of the batch sent to the queue "worker" and not yet consumed by any worker and frees their
+     * credits. The credits of the messages sent by another node are freed by reporting the removed SIPs to that node
+     * as completed without an outcome. Messages already prefetched by a worker are not removed, the worker skips them
+     * because of the state of the batch.
+     *
+     * @param batchId id of the batch
+     * @return number of removed messages
+     */
+    public int purge(String batchId) {
+        String selector = BATCH_ID_PROPERTY + " = '" + batchId.replace("'", "''") + "'";
+        List<String> purged = new ArrayList<>();
+        int removed = 0;
+
+        Object message;
+        while ((message = purgeTemplate.receiveSelectedAndConvert("worker", selector)) != null) {
+            CoordinatorDto dto = (CoordinatorDto) message;
+            if (dto.getDispatcher() == null || ConcurrencyLimiter.NODE.equals(dto.getDispatcher())) {
+                purged.add(dto.getSipId());
+            } else {
+                template.convertAndSend(completedDestination(dto.getDispatcher()), dto);
+            }
+            removed++;
+        }
+
+        if (removed > 0) {
+            log.info("Removed " + removed + " messages of batch " + batchId + " from the queue worker.");
+            reclaim(batchId, purged);
+        }
+
+        return removed;
+    }
+
+    /**
+     * Gets the queue the completions of the SIPs dispatched by the node are reported to.
+     *
+     * @param dispatcher {@link ConcurrencyLimiter#NODE} of the node which has dispatched the SIP, null for this node
+     * @return name of the queue
+     */
+    public static String completedDestination(String dispatcher) {
+        return "completed." + (dispatcher != null ? dispatcher : ConcurrencyLimiter.NODE);
+    }
+
+    /**
+     * Gets the numbers of queued and in flight SIPs.
+     *
+     * @return current state of dispatching
+     */
+    public synchronized DispatchStateDto getState() {
+        Map<String, BatchDispatchStateDto> batches = new LinkedHashMap<>();
+        int queued = 0;
+
+        for (Map.Entry<String, BatchQueue> entry : queues.entrySet()) {
+            BatchQueue queue = entry.getValue();
+            batches.put(entry.getKey(), new BatchDispatchStateDto(queue.queued.size(), queue.inFlight.size(),
+                    queue.breaker.getState()));
+            queued += queue.queued.size();
+        }
+
+        return new DispatchStateDto(queued, inFlight, batches);
+    }
+
+    /**
+     * Takes queued SIPs while there are free credits and sends them to workers. The messages are sent outside of
+     * the lock so the completions are not blocked by the JMS broker.
+     */
+    private void dispatch() {
+        List<CoordinatorDto> messages = new ArrayList<>();
+
+        synchronized (this) {
+            while (inFlight < maxInFlight) {
+                String batchId = selectBatch();
+                if (batchId == null) {
+                    break;
+                }
+
+                String sipId = queues.get(batchId).take();
+                inFlight++;
+                messages.add(new CoordinatorDto(sipId, batchId, null, ConcurrencyLimiter.NODE, null));
+            }
+        }
+
+        messages.forEach(dto -> template.convertAndSend("worker", dto));
+    }
+
+    /**
+     * Selects the batch to send the next SIP from, using smooth weighted round-robin: every eligible batch increases
+     * its current weight by its priority, the batch with the highest current weight is selected and its current weight
+     * is decreased by the sum of priorities of all the eligible batches.
+     *
+     * @return id of the selected batch or null if no batch has queued SIPs, free credits and closed circuit breaker
+     */
+    private String selectBatch() {
+        String selectedId = null;
+        BatchQueue selected = null;
+        int totalWeight = 0;
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<String, BatchQueue> entry : queues.entrySet()) {
+            BatchQueue queue = entry.getValue();
+            int limit = queue.maxInFlight != null ? queue.maxInFlight : maxInFlightPerBatch;
+            if (queue.queued.isEmpty() || queue.inFlight.size() >= limit || !queue.breaker.allowsDispatch(now)) {
+                continue;
+            }
+
+            queue.currentWeight += queue.priority;
+            totalWeight += queue.priority;
+
+            if (selected == null || queue.currentWeight > selected.currentWeight) {
+                selectedId = entry.getKey();
+                selected = queue;
+            }
+        }
+
+        if (selected != null) {
+            selected.currentWeight -= totalWeight;
+        }
+        return selectedId;
+    }
+
+    /**
+     * Queued and in flight SIPs of a single batch
+     */
+    private static class BatchQueue {
+        private final Set<String> queued = new LinkedHashSet<>();
+        /**
+         * SIPs in flight with the generations of the breaker they have been dispatched in
+         */
+        private final Map<String, Integer> inFlight = new HashMap<>();
+        private final BatchCircuitBreaker breaker;
+
+        private int priority = 1;
+        private Integer maxInFlight;
+        private int currentWeight;
+
+        private BatchQueue(BatchCircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+
+        private void configure(Batch batch) {
+            priority = Math.max(batch.getPriority(), 1);
+            maxInFlight = batch.getMaxInFlight();
+        }
+
+        private String take() {
+            Iterator<String> iterator = queued.iterator();
+            String sipId = iterator.next();
+            iterator.remove();
+
+            inFlight.put(sipId, breaker.dispatched());
+            return sipId;
+        }
+
+        private boolean isEmpty() {
+            return queued.isEmpty() && inFlight.isEmpty();
+        }
+    }
+
+    @Inject
+    public void setMaxInFlight(@Value("${arclib.dispatch.maxInFlight}") int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    @Inject
+    public void setMaxInFlightPerBatch(@Value("${arclib.dispatch.maxInFlightPerBatch}") int maxInFlightPerBatch) {
+        this.maxInFlightPerBatch = maxInFlightPerBatch;
+    }
+
+    @Inject
+    public void setTemplate(JmsTemplate template) {
+        this.template = template;
+
+        this.purgeTemplate = new JmsTemplate(template.getConnectionFactory());
+        this.purgeTemplate.setMessageConverter(template.getMessageConverter());
+        this.purgeTemplate.setReceiveTimeout(PURGE_TIMEOUT);
+    }
+
+    @Inject
+    public void setBreakerFactory(CircuitBreakerFactory breakerFactory) {
+        this.breakerFactory = breakerFactory;
+    }
+}
@@ -0,0 +1,151 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.domain.Sip;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.store.BatchStore;
+import cz.cas.lib.arclib.store.SipStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+
+/**
+ * Completion of the ingest of a single SIP, shared by the ingest delegate and by the engines running the stages
+ * of the ingest.
+ * <p>
+ * Every ingest started by a worker ends by {@link #finish(String, String, SipState, Long, String, String)}, which
+ * returns the lease, the permit of {@link ConcurrencyLimiter} and the dispatching credit of the SIP, whatever
+ * the outcome.
+ * </p>
+ */
+@Slf4j
+@Service
+public class IngestCompletionService {
+    /**
+     * Variable of the execution set once the ingest of the SIP has been finished
+     */
+    public static final String FINISHED = "finished";
+
+    private SipStore sipStore;
+    private BatchStore batchStore;
+    private JmsTemplate template;
+    private LeaseService leaseService;
+    private IngestMetrics metrics;
+    private ConcurrencyLimiter limiter;
+
+    /**
+     * Changes the state of the SIP whose processing has been stopped back to NEW, so it is processed again when its
+     * batch is resumed.
+     *
+     * @param sipId   id of the SIP
+     * @param batchId id of the batch the SIP belongs to
+     */
+    public void release(String sipId, String batchId) {
+        if (!sipStore.changeState(sipId, SipState.PROCESSING, SipState.NEW, null)) {
+            return;
+        }
+
+        batchStore.moveSip(batchId, SipState.PROCESSING, SipState.NEW);
+        metrics.sipTransition(SipState.PROCESSING, SipState.NEW);
+        log.info("The state of SIP " + sipId + " changed back to NEW.");
+    }
+
+    /**
+     * Changes the state of the SIP from PROCESSING to FAILED.
+     *
+     * @param sipId   id of the SIP
+     * @param batchId id of the batch the SIP belongs to
+     * @return true if the state of the SIP has been changed, false if the SIP does not exist or is not in the state
+     * PROCESSING any more
+     */
+    public boolean fail(String sipId, String batchId) {
+        if (!sipStore.changeState(sipId, SipState.PROCESSING, SipState.FAILED, null)) {
+            return false;
+        }
+
+        batchStore.moveSip(batchId, SipState.PROCESSING, SipState.FAILED);
+        metrics.sipTransition(SipState.PROCESSING, SipState.FAILED);
+        log.info("The state of SIP " + sipId + " changed to FAILED.");
+
+        failDuplicates(sipId);
+
+        return true;
+    }
+
+    /**
+     * Finishes the ingest of the SIP: stops prolonging its lease, returns the permit to the worker node which has
+     * taken it, changes the state of the batch to PROCESSED if it was its last SIP and reports the completion of
+     * the SIP to the node which has dispatched it.
+     *
+     * @param sipId          id of the SIP
+     * @param batchId        id of the batch the SIP belongs to
+     * @param outcome        state of the SIP after its processing, null if the SIP has not been processed
+     * @param latency        latency of the ingest in nanoseconds, measured from its start, null if not measured
+     * @param workerNode     {@link ConcurrencyLimiter#NODE} of the node which has taken the permit
+     * @param dispatcherNode {@link ConcurrencyLimiter#NODE} of the node which has dispatched the SIP
+     */
+    public void finish(String sipId, String batchId, SipState outcome, Long latency, String workerNode,
+                       String dispatcherNode) {
+        leaseService.drop(sipId);
+        metrics.sipFinished(sipId);
+        CoordinatorDto completion = new CoordinatorDto(sipId, batchId, outcome);
+        completion.setLatency(latency);
+        limiter.release(workerNode, completion);
+
+        if (batchStore.markProcessedIfFinished(batchId)) {
+            metrics.batchTransition(BatchState.PROCESSING, BatchState.PROCESSED);
+            log.info("Batch " + batchId + " has been processed. The batch state changed to PROCESSED.");
+        }
+
+        template.convertAndSend(DispatcherService.completedDestination(dispatcherNode), completion);
+    }
+
+    /**
+     * Changes the state of the duplicates of the failed SIP to FAILED, they share its result. Resubmitted SIPs with
+     * the same content are then processed again, because failed SIPs are not considered originals.
+     *
+     * @param sipId id of the failed SIP
+     */
+    private void failDuplicates(String sipId) {
+        for (Sip duplicate : sipStore.findDuplicates(sipId)) {
+            if (sipStore.changeState(duplicate.getId(), SipState.DUPLICATE, SipState.FAILED, null)) {
+                batchStore.moveSip(duplicate.getBatchId(), SipState.DUPLICATE, SipState.FAILED);
+                metrics.sipTransition(SipState.DUPLICATE, SipState.FAILED);
+                log.info("The state of SIP " + duplicate.getId() + ", duplicate of the failed SIP " + sipId +
+                        ", changed to FAILED.");
+            }
+        }
+    }
+
+    @Inject
+    public void setSipStore(SipStore sipStore) {
+        this.sipStore = sipStore;
+    }
+
+    @Inject
+    public void setBatchStore(BatchStore batchStore) {
+        this.batchStore = batchStore;
+    }
+
+    @Inject
+    public void setTemplate(JmsTemplate template) {
+        this.template = template;
+    }
+
+    @Inject
+    public void setLeaseService(LeaseService leaseService) {
+        this.leaseService = leaseService;
+    }
+
+    @Inject
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Inject
+    public void setLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+}
@@ -0,0 +1,277 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.engine.InProcessIngestEngine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Measurement;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import org.camunda.bpm.engine.RuntimeService;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metrics of the ingest.
+ * <p>
+ * Records the durations of the stages of the SIP processing, the transitions of the SIPs and batches between
+ * their states and the throughput of the particular batches. Observes the number of SIPs waiting for dispatching
+ * and in flight, the number of SIPs processed by the BPM processes and by the in-process engine and the concurrency
+ * limit of the node.
+ * </p>
+ */
+@Service
+public class IngestMetrics {
+    /**
+     * Number of the most recently started batches whose throughput is kept
+     */
+    private static final int MAX_BATCHES = 100;
+
+    public static final String STAGE_STAGING = "staging";
+    public static final String STAGE_PROCESSING = "processing";
+    public static final String STAGE_CLEANUP = "cleanup";
+
+    private final Map<String, BatchThroughput> batches = new LinkedHashMap<String, BatchThroughput>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BatchThroughput> eldest) {
+            return size() > MAX_BATCHES;
+        }
+    };
+
+    private final Map<String, Long> startedSips = new ConcurrentHashMap<>();
+
+    private MeterRegistry registry;
+    private DispatcherService dispatcher;
+    private RuntimeService runtimeService;
+    private InProcessIngestEngine inProcessEngine;
+    private ConcurrencyLimiter limiter;
+
+    @PostConstruct
+    public void registerGauges() {
+        Gauge.builder("arclib.dispatch.queued", dispatcher, d -> d.getState().getQueued())
+                .description("SIPs waiting in coordinator for a free credit")
+                .register(registry);
+
+        Gauge.builder("arclib.dispatch.inFlight", dispatcher, d -> d.getState().getInFlight())
+                .description("SIPs sent to workers and not yet completed")
+                .register(registry);
+
+        Gauge.builder("arclib.bpm.instances", runtimeService,
+                r -> r.createProcessInstanceQuery().processDefinitionKey("Ingest").active().count())
+                .description("Active ingest BPM processes")
+                .register(registry);
+
+        Gauge.builder("arclib.engine.running", inProcessEngine, InProcessIngestEngine::getRunning)
+                .description("SIPs scheduled or processed by the in-process engine")
+                .register(registry);
+
+        Gauge.builder("arclib.worker.limit", limiter, ConcurrencyLimiter::getLimit)
+                .description("Current adaptive limit of SIPs processed at once by this node")
+                .register(registry);
+
+        Gauge.builder("arclib.worker.inFlight", limiter, ConcurrencyLimiter::getInFlight)
+                .description("SIPs holding a permit of the concurrency limiter of this node")
+                .register(registry);
+    }
+
+    /**
+     * Records the duration of a stage of the SIP processing.
+     *
+     * @param stage    one of {@link #STAGE_STAGING}, {@link #STAGE_PROCESSING} and {@link #STAGE_CLEANUP}
+     * @param duration duration of the stage in milliseconds
+     */
+    public void recordStage(String stage, long duration) {
+        registry.timer("arclib.ingest.stage", "stage", stage).record(duration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts measuring the latency of the SIP, i.e. the time from the start of its ingest by a worker to its finish.
+     *
+     * @param sipId id of the SIP
+     */
+    public void sipStarted(String sipId) {
+        startedSips.put(sipId, System.nanoTime());
+    }
+
+    /**
+     * Records the latency of the SIP whose ingest has finished, successfully or not. SIPs whose ingest has been
+     * started by another node are skipped.
+     *
+     * @param sipId id of the SIP
+     */
+    public void sipFinished(String sipId) {
+        Long started = startedSips.remove(sipId);
+        if (started != null) {
+            latency().record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Gets the timer of the SIP latencies publishing the median and the 99th percentile.
+     *
+     * @return the timer
+     */
+    public Timer latency() {
+        return Timer.builder("arclib.sip.latency")
+                .description("Time from the start of the ingest of a SIP by a worker to its finish")
+                .publishPercentiles(0.5, 0.99)
+                .register(registry);
+    }
+
+    /**
+     * Counts transitions of SIPs from one state to another.
+     *
+     * @param from  previous state of the SIPs, null for newly created SIPs
+     * @param to    new state of the SIPs
+     * @param count number of the SIPs
+     */
+    public void sipTransition(SipState from, SipState to, int count) {
+        if (from == to) {
+            return;
+        }
+
+        registry.counter("arclib.sip.transitions", "from", String.valueOf(from), "to", to.name()).increment(count);
+    }
+
+    /**
+     * Counts a transition of a SIP from one state to another.
+     *
+     * @param from previous state of the SIP, null for a newly created SIP
+     * @param to   new state of the SIP
+     */
+    public void sipTransition(SipState from, SipState to) {
+        sipTransition(from, to, 1);
+    }
+
+    /**
+     * Counts a transition of a batch from one state to another.
+     *
+     * @param from previous state of the batch, null for a newly created batch
+     * @param to   new state of the batch
+     */
+    public void batchTransition(BatchState from, BatchState to) {
+        if (from == to) {
+            return;
+        }
+
+        registry.counter("arclib.batch.transitions", "from", String.valueOf(from), "to", to.name()).increment();
+    }
+
+    /**
+     * Starts measuring the throughput of the batch. The throughput of a resumed batch is measured from its resume.
+     *
+     * @param batchId id of the batch
+     */
+    public synchronized void batchStarted(String batchId) {
+        batches.put(batchId, new BatchThroughput(Instant.now()));
+    }
+
+    /**
+     * Adds a processed SIP to the throughput of its batch.
+     *
+     * @param batchId id of the batch
+     * @param bytes   size of the SIP in bytes
+     */
+    public synchronized void sipProcessed(String batchId, long bytes) {
+        BatchThroughput throughput = batches.computeIfAbsent(batchId, id -> new BatchThroughput(Instant.now()));
+
+        throughput.sips++;
+        throughput.bytes += bytes;
+        throughput.last = Instant.now();
+    }
+
+    /**
+     * Gets the throughput of the recently started batches. The rates are computed from the start of the batch to
+     * the completion of its last processed SIP.
+     *
+     * @return throughput by batch id
+     */
+    public synchronized Map<String, BatchThroughputDto> getBatchThroughput() {
+        Map<String, BatchThroughputDto> result = new LinkedHashMap<>();
+
+        batches.forEach((batchId, throughput) -> {
+            double seconds = Duration.between(throughput.started, throughput.last).toMillis() / 1000.0;
+            double sipsPerSecond = seconds > 0 ? throughput.sips / seconds : 0;
+            double bytesPerSecond = seconds > 0 ? throughput.bytes / seconds : 0;
+
+            result.put(batchId, new BatchThroughputDto(throughput.sips, throughput.bytes, sipsPerSecond, bytesPerSecond));
+        });
+
+        return result;
+    }
+
+    /**
+     * Gets the current values of all the meters.
+     *
+     * @return {@link List} of meters sorted by name
+     */
+    public List<MeterDto> getMeters() {
+        List<MeterDto> result = new ArrayList<>();
+
+        for (Meter meter : registry.getMeters()) {
+            Map<String, String> tags = new LinkedHashMap<>();
+            for (Tag tag : meter.getId().getTags()) {
+                tags.put(tag.getKey(), tag.getValue());
+            }
+
+            Map<String, Double> measurements = new LinkedHashMap<>();
+            for (Measurement measurement : meter.measure()) {
+                measurements.put(measurement.getStatistic().name(), measurement.getValue());
+            }
+
+            result.add(new MeterDto(meter.getId().getName(), tags, measurements));
+        }
+
+        result.sort(Comparator.comparing(MeterDto::getName));
+        return result;
+    }
+
+    /**
+     * Processed SIPs of a single batch
+     */
+    private static class BatchThroughput {
+        private final Instant started;
+        private Instant last;
+        private long sips;
+        private long bytes;
+
+        private BatchThroughput(Instant started) {
+            this.started = started;
+            this.last = started;
+        }
+    }
+
+    @Inject
+    public void setRegistry(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Inject
+    public void setDispatcher(DispatcherService dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Inject
+    public void setRuntimeService(RuntimeService runtimeService) {
+        this.runtimeService = runtimeService;
+    }
+
+    @Inject
+    public void setInProcessEngine(InProcessIngestEngine inProcessEngine) {
+        this.inProcessEngine = inProcessEngine;
+    }
+
+    @Inject
+    public void setLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+}
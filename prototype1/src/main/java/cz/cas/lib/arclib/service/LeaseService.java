@@ -0,0 +1,187 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.domain.Sip;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.store.BatchStore;
+import cz.cas.lib.arclib.store.SipStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Leases of the SIPs in the state PROCESSING.
+ * <p>
+ * When a worker starts processing a SIP, the SIP gets a lease which the node holding it periodically prolongs. When
+ * the node dies, its leases are not prolonged any more and after their expiration the SIPs are put back to the state
+ * NEW and queued for dispatching again, so the batch does not stall.
+ * </p>
+ */
+@Slf4j
+@Service
+public class LeaseService {
+    /**
+     * Number of sip packages with expired lease loaded from database at once
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    private final Set<String> held = ConcurrentHashMap.newKeySet();
+
+    private SipStore sipStore;
+    private BatchStore batchStore;
+    private DispatcherService dispatcher;
+    private IngestMetrics metrics;
+    private Duration duration;
+    private boolean coordinator;
+
+    /**
+     * Computes the expiration of a lease starting now.
+     *
+     * @return expiration of the lease
+     */
+    public Instant nextExpiration() {
+        return Instant.now().plus(duration);
+    }
+
+    /**
+     * Starts prolonging the lease of the SIP by this node.
+     *
+     * @param sipId id of the SIP
+     */
+    public void hold(String sipId) {
+        held.add(sipId);
+    }
+
+    /**
+     * Stops prolonging the lease of the SIP by this node.
+     *
+     * @param sipId id of the SIP
+     */
+    public void drop(String sipId) {
+        held.remove(sipId);
+    }
+
+    /**
+     * Prolongs the leases of the SIPs held by this node which are still in the state PROCESSING. SIPs which are not
+     * in the state PROCESSING any more are no longer held.
+     */
+    @Scheduled(fixedDelayString = "${arclib.lease.heartbeat}")
+    public void heartbeat() {
+        if (held.isEmpty()) {
+            return;
+        }
+
+        List<String> processing = sipStore.findProcessing(new ArrayList<>(held));
+        held.retainAll(processing);
+
+        if (!processing.isEmpty()) {
+            sipStore.renewLeases(processing, nextExpiration());
+        }
+    }
+
+    /**
+     * Puts the SIPs of all the batches whose lease has expired back to the state NEW and queues them for dispatching.
+     * Runs only on the coordinator node, which owns the dispatching.
+     */
+    @Scheduled(fixedDelayString = "${arclib.lease.reapInterval}")
+    public void reap() {
+        if (!coordinator) {
+            return;
+        }
+
+        int reaped = reap(null);
+
+        if (reaped > 0) {
+            log.info(reaped + " SIPs with expired lease have been put back to the state NEW.");
+        }
+    }
+
+    /**
+     * Puts the SIPs whose lease has expired back to the state NEW. The SIPs of the batches in the state PROCESSING are
+     * queued for dispatching again, the SIPs of other batches are dispatched when the batch is resumed.
+     *
+     * @param batchId id of the batch, null for SIPs of all the batches
+     * @return number of SIPs put back to the state NEW
+     */
+    public int reap(String batchId) {
+        Instant now = Instant.now();
+        Map<String, List<String>> released = new HashMap<>();
+
+        String lastSipId = null;
+        List<Sip> expiredSips;
+        do {
+            expiredSips = sipStore.findExpired(batchId, now, lastSipId, PAGE_SIZE);
+
+            for (Sip sip : expiredSips) {
+                if (sipStore.releaseExpired(sip.getId(), now)) {
+                    batchStore.moveSip(sip.getBatchId(), SipState.PROCESSING, SipState.NEW);
+                    metrics.sipTransition(SipState.PROCESSING, SipState.NEW);
+                    released.computeIfAbsent(sip.getBatchId(), id -> new ArrayList<>()).add(sip.getId());
+
+                    log.debug("Lease of SIP " + sip.getId() + " has expired. The SIP state changed to NEW.");
+                }
+            }
+
+            if (!expiredSips.isEmpty()) {
+                lastSipId = expiredSips.get(expiredSips.size() - 1).getId();
+            }
+        } while (expiredSips.size() == PAGE_SIZE);
+
+        released.forEach(this::requeue);
+
+        return released.values().stream().mapToInt(List::size).sum();
+    }
+
+    /**
+     * Frees the dispatching credits of the released SIPs and queues them again if the batch is in the state PROCESSING.
+     *
+     * @param batchId id of the batch
+     * @param sipIds  ids of the released SIPs
+     */
+    private void requeue(String batchId, List<String> sipIds) {
+        dispatcher.reclaim(batchId, sipIds);
+
+        Batch batch = batchStore.find(batchId);
+        if (batch != null && batch.getState() == BatchState.PROCESSING) {
+            dispatcher.enqueue(batch, sipIds);
+        }
+    }
+
+    @Inject
+    public void setDuration(@Value("${arclib.lease.duration}") long duration) {
+        this.duration = Duration.ofMillis(duration);
+    }
+
+    @Inject
+    public void setCoordinator(@Value("${arclib.coordinator}") boolean coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    @Inject
+    public void setSipStore(SipStore sipStore) {
+        this.sipStore = sipStore;
+    }
+
+    @Inject
+    public void setBatchStore(BatchStore batchStore) {
+        this.batchStore = batchStore;
+    }
+
+    @Inject
+    public void setDispatcher(DispatcherService dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    @Inject
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+}
@@ -0,0 +1,27 @@
+package cz.cas.lib.arclib.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.Map;
+
+@Getter
+@Setter
+@AllArgsConstructor
+public class MeterDto {
+    /**
+     * Name of the meter
+     */
+    private String name;
+
+    /**
+     * Tags distinguishing the meters with the same name
+     */
+    private Map<String, String> tags;
+
+    /**
+     * Current values of the meter by statistic, e.g. COUNT, TOTAL_TIME, MAX or VALUE
+     */
+    private Map<String, Double> measurements;
+}
@@ -0,0 +1,376 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.exception.GeneralException;
+import cz.cas.lib.arclib.store.BatchStore;
+import cz.cas.lib.arclib.store.SipStore;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Continuous ingest of the SIPs dropped to the watched folders.
+ * <p>
+ * New entries of the folders are reported by a {@link WatchService}, in case some events are lost the folders are also
+ * periodically rescanned. A new SIP is registered only after it is stable, i.e. the total size of its files and their
+ * latest modification time have not changed between two checks and for at least {@link #stableFor} milliseconds.
+ * Stable SIPs are appended to a rolling batch and dispatched right away. The rolling batch is closed and a new one is
+ * opened after {@link #batchSize} SIPs, or when no SIP has been appended to it for {@link #idleTimeout} milliseconds.
+ * </p>
+ * <p>
+ * Rolling batches left open by a crash of the previous run are closed on startup and their SIPs in the state NEW are
+ * dispatched again, the new SIPs are appended to a new rolling batch. When the rolling batch is canceled or suspended,
+ * the next SIPs are appended to a new rolling batch.
+ * </p>
+ * <p>
+ * The folders are watched only by the coordinator node, which owns the dispatching, so the rolling batches left open
+ * are always those of its previous run and never a rolling batch of another running node.
+ * </p>
+ */
+@Slf4j
+@Service
+public class WatchFolderService {
+
+    /**
+     * Entries of the watched folders waiting until they are stable, with their last snapshot
+     */
+    private final Map<Path, Snapshot> candidates = new ConcurrentHashMap<>();
+
+    /**
+     * Entries of the watched folders already registered as SIPs
+     */
+    private final Set<Path> registered = ConcurrentHashMap.newKeySet();
+
+    private List<Path> folders;
+    private long stableFor;
+    private int batchSize;
+    private long idleTimeout;
+    private boolean coordinatorNode;
+
+    private CoordinatorService coordinator;
+    private SipStore sipStore;
+    private BatchStore batchStore;
+
+    private WatchService watchService;
+    private Thread watcher;
+
+    private Batch rollingBatch;
+    private int rollingCount;
+    private long rollingAppended;
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!coordinatorNode) {
+            return;
+        }
+
+        closeLeftovers();
+
+        if (folders.isEmpty()) {
+            return;
+        }
+
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Path folder : folders) {
+            Files.createDirectories(folder);
+            folder.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+            log.info("Watching folder " + folder + " for new SIPs.");
+        }
+
+        watcher = new Thread(this::watch, "watch-folder");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @PreDestroy
+    public synchronized void stop() throws IOException {
+        if (watchService == null) {
+            return;
+        }
+
+        watcher.interrupt();
+        watchService.close();
+
+        if (rollingBatch != null) {
+            coordinator.close(rollingBatch.getId());
+            rollingBatch = null;
+        }
+    }
+
+    /**
+     * Closes the rolling batches which the previous run left open for registering. The batches which are being
+     * processed are resumed, so that their SIPs left in the state NEW are dispatched again and the batches reach
+     * the state PROCESSED.
+     */
+    private void closeLeftovers() {
+        for (Batch batch : batchStore.findWatchedRegistering()) {
+            log.info("Closing rolling batch " + batch.getId() + " left open by the previous run.");
+
+            if (batch.getState() == BatchState.PROCESSING) {
+                batchStore.finishRegistration(batch.getId());
+                coordinator.resume(batch.getId());
+            } else {
+                coordinator.close(batch.getId());
+            }
+        }
+    }
+
+    /**
+     * Closes the rolling batch if no SIP has been appended to it for {@link #idleTimeout} milliseconds, so that
+     * the batch reaches the state PROCESSED while the folders are quiet.
+     */
+    @Scheduled(fixedDelayString = "${arclib.watch.checkInterval}")
+    public synchronized void closeIdle() {
+        if (rollingBatch != null && System.currentTimeMillis() - rollingAppended >= idleTimeout) {
+            log.info("Closing idle rolling batch " + rollingBatch.getId() + ".");
+            coordinator.close(rollingBatch.getId());
+            rollingBatch = null;
+        }
+    }
+
+    /**
+     * Adds the entries reported by the {@link WatchService} to the candidates. Runs until the watch service is closed.
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path folder = (Path) key.watchable();
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        rescan();
+                    } else {
+                        offer(folder.resolve((Path) event.context()));
+                    }
+                }
+
+                key.reset();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Watching of the folders stopped.");
+        }
+    }
+
+    /**
+     * Lists the watched folders and adds the entries neither registered nor waiting to the candidates. Entries which
+     * do not exist any more are forgotten.
+     */
+    @Scheduled(fixedDelayString = "${arclib.watch.rescanInterval}")
+    public void rescan() {
+        if (folders.isEmpty() || !coordinatorNode) {
+            return;
+        }
+
+        Set<Path> entries = new HashSet<>();
+        for (Path folder : folders) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+                stream.forEach(entries::add);
+            } catch (IOException e) {
+                log.error("Rescan of the folder " + folder + " failed.", e);
+            }
+        }
+
+        registered.retainAll(entries);
+        entries.stream()
+                .filter(entry -> !registered.contains(entry) && !candidates.containsKey(entry))
+                .forEach(entry -> {
+                    if (sipStore.existsByPath(entry.toString())) {
+                        registered.add(entry);
+                    } else {
+                        offer(entry);
+                    }
+                });
+    }
+
+    /**
+     * Takes new snapshots of the candidates and registers the stable ones.
+     */
+    @Scheduled(fixedDelayString = "${arclib.watch.checkInterval}")
+    public void checkCandidates() {
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        List<Path> stable = new ArrayList<>();
+
+        for (Map.Entry<Path, Snapshot> entry : candidates.entrySet()) {
+            Path path = entry.getKey();
+            Snapshot current = Snapshot.of(path);
+
+            if (current == null) {
+                candidates.remove(path);
+            } else if (current.equals(entry.getValue()) && now - current.lastModified >= stableFor) {
+                stable.add(path);
+            } else {
+                entry.setValue(current);
+            }
+        }
+
+        if (!stable.isEmpty()) {
+            stable.forEach(candidates::remove);
+            registered.addAll(stable);
+            append(stable);
+        }
+    }
+
+    /**
+     * Appends the SIPs to the rolling batch, which is replaced by a new one when it is full or when it is not being
+     * processed any more, e.g. it has been canceled or suspended.
+     *
+     * @param sips paths to the SIPs
+     */
+    private synchronized void append(List<Path> sips) {
+        if (rollingBatch != null) {
+            Batch current = batchStore.find(rollingBatch.getId());
+
+            if (current == null || current.getState() != BatchState.PROCESSING) {
+                log.info("Rolling batch " + rollingBatch.getId() + " is not being processed any more, " +
+                        "a new rolling batch is opened.");
+                if (current != null) {
+                    coordinator.close(rollingBatch.getId());
+                }
+                rollingBatch = null;
+            } else if (rollingCount >= batchSize) {
+                coordinator.close(rollingBatch.getId());
+                rollingBatch = null;
+            }
+        }
+        if (rollingBatch == null) {
+            rollingBatch = coordinator.open(1, null, true);
+            rollingCount = 0;
+        }
+
+        coordinator.register(rollingBatch, sips);
+        rollingCount += sips.size();
+        rollingAppended = System.currentTimeMillis();
+
+        log.info(sips.size() + " SIPs from the watched folders appended to batch " + rollingBatch.getId() + ".");
+    }
+
+    private void offer(Path entry) {
+        if (!registered.contains(entry)) {
+            candidates.putIfAbsent(entry, Snapshot.NONE);
+        }
+    }
+
+    /**
+     * Total size and latest modification time of the files of a SIP
+     */
+    private static class Snapshot {
+        private static final Snapshot NONE = new Snapshot(-1, -1);
+
+        private final long size;
+        private final long lastModified;
+
+        private Snapshot(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Takes a snapshot of the SIP.
+         *
+         * @param path path to the SIP, a folder or a single file
+         * @return the snapshot or null if the SIP does not exist any more
+         */
+        private static Snapshot of(Path path) {
+            long size = 0;
+            long lastModified = 0;
+
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    lastModified = Math.max(lastModified, Files.getLastModifiedTime(file).toMillis());
+                    if (Files.isRegularFile(file)) {
+                        size += Files.size(file);
+                    }
+                }
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException | UncheckedIOException e) {
+                /* the SIP is being changed right now, it is not stable */
+                return NONE;
+            }
+
+            return new Snapshot(size, lastModified);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Snapshot)) {
+                return false;
+            }
+
+            Snapshot snapshot = (Snapshot) o;
+            return this != NONE && size == snapshot.size && lastModified == snapshot.lastModified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, lastModified);
+        }
+    }
+
+    @Inject
+    public void setFolders(@Value("${arclib.watch.folders}") String[] folders) {
+        this.folders = Arrays.stream(folders)
+                .map(String::trim)
+                .filter(folder -> !folder.isEmpty())
+                .map(Paths::get)
+                .collect(Collectors.toList());
+    }
+
+    @Inject
+    public void setStableFor(@Value("${arclib.watch.stableFor}") long stableFor) {
+        this.stableFor = stableFor;
+    }
+
+    @Inject
+    public void setBatchSize(@Value("${arclib.watch.batchSize}") int batchSize) {
+        if (batchSize < 1) {
+            throw new GeneralException("The size of the rolling batch must be positive.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    @Inject
+    public void setIdleTimeout(@Value("${arclib.watch.idleTimeout}") long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    @Inject
+    public void setCoordinatorNode(@Value("${arclib.coordinator}") boolean coordinatorNode) {
+        this.coordinatorNode = coordinatorNode;
+    }
+
+    @Inject
+    public void setCoordinator(CoordinatorService coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    @Inject
+    public void setSipStore(SipStore sipStore) {
+        this.sipStore = sipStore;
+    }
+
+    @Inject
+    public void setBatchStore(BatchStore batchStore) {
+        this.batchStore = batchStore;
+    }
+}
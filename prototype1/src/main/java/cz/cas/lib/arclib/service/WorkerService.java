@@ -3,6 +3,10 @@ package cz.cas.lib.arclib.service;
 import cz.cas.lib.arclib.domain.Batch;
 import cz.cas.lib.arclib.domain.BatchState;
 import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.engine.CamundaIngestEngine;
+import cz.cas.lib.arclib.engine.EngineMode;
+import cz.cas.lib.arclib.engine.InProcessIngestEngine;
+import cz.cas.lib.arclib.engine.IngestEngine;
 import cz.cas.lib.arclib.exception.ForbiddenObject;
 import cz.cas.lib.arclib.exception.MissingObject;
 import cz.cas.lib.arclib.store.BatchStore;
@@ -10,16 +14,13 @@ import cz.cas.lib.arclib.store.SipStore;
 import cz.cas.lib.arclib.domain.Sip;
 import cz.cas.lib.arclib.util.Utils;
 import lombok.extern.slf4j.Slf4j;
-import org.camunda.bpm.engine.RuntimeService;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.jms.annotation.JmsListener;
 import org.springframework.jms.core.JmsTemplate;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import javax.inject.Inject;
 
-import static cz.cas.lib.arclib.util.Utils.asMap;
-
 @Slf4j
 @Service
 public class WorkerService {
@@ -27,22 +28,55 @@ public class WorkerService {
     private SipStore sipStore;
     private BatchStore batchStore;
     private JmsTemplate template;
-    private RuntimeService runtimeService;
+    private EngineMode engineMode;
+    private CamundaIngestEngine camundaEngine;
+    private InProcessIngestEngine inProcessEngine;
+    private LeaseService leaseService;
+    private IngestMetrics metrics;
+    private ConcurrencyLimiter limiter;
 
     /**
      * Receives JMS message from the coordinator and does the following:
      * <p>
-     * 1. retrieves the specified batch from database, if the batch has got more than 1/2 failures in processing of its SIPs,
+     * 1. takes a permit of {@link ConcurrencyLimiter}, when the limit is reached the listener stops until a permit is
+     * returned, the next messages stay in the queue in the meantime and are consumed by other nodes, the listener does
+     * not prefetch any messages
+     * <p>
+     * 2. retrieves the specified batch from database, if the batch has got more than 1/2 failures in processing of its SIPs,
      * method stops evaluation, otherwise continues with the next step
      * <p>
-     * 2. checks that the batch state is PROCESSING, updates the SIP with state PROCESSING and starts BPM process for the SIP
+     * 3. checks that the batch state is PROCESSING, updates the SIP with state PROCESSING, takes the lease of the SIP
+     * and starts the ingest of the SIP by the engine selected by {@link EngineMode}
+     * <p>
+     * 4. if the ingest has not been started, returns the permit and reports the completion of the SIP to the coordinator,
+     * so that its dispatching credit is freed, if the engine failed to schedule the ingest, the lease of the SIP is
+     * dropped and the SIP is put back to its previous state
      *
      * @param dto object with the batch id and sip id
      * @throws InterruptedException
      */
-    @Async
-    @JmsListener(destination = "worker")
+    @JmsListener(id = ConcurrencyLimiter.WORKER_LISTENER, destination = "worker?consumer.prefetchSize=0")
     public void processSip(CoordinatorDto dto) throws InterruptedException {
+        limiter.acquire(dto.getSipId());
+
+        boolean started = false;
+        try {
+            started = startIngest(dto);
+        } finally {
+            if (!started) {
+                limiter.release(dto.getSipId(), null);
+                template.convertAndSend(DispatcherService.completedDestination(dto.getDispatcher()), dto);
+            }
+        }
+    }
+
+    /**
+     * Starts the ingest of the SIP if the batch is in the state PROCESSING and has not got too many failures.
+     *
+     * @param dto object with the batch id and sip id
+     * @return true if the ingest has been started, false otherwise
+     */
+    private boolean startIngest(CoordinatorDto dto) {
         String sipId = dto.getSipId();
         String batchId = dto.getBatchId();
 
@@ -51,45 +85,81 @@ public class WorkerService {
         Batch batch = batchStore.find(batchId);
 
         Utils.notNull(batch, () -> new MissingObject(Batch.class, batchId));
-        Utils.in(sipId, batch.getIds(), () -> new ForbiddenObject(Batch.class, batchId));
+        if (!sipStore.isInBatch(sipId, batchId)) {
+            throw new ForbiddenObject(Batch.class, batchId);
+        }
 
         if (tooManyFailedSips(batch)) {
             template.convertAndSend("cancel", batch.getId());
 
             log.info("Processing of batch " + batchId + " stopped because of too many SIP failures.");
 
-            return;
+            return false;
         }
 
         if (batch.getState() == BatchState.PROCESSING) {
             Sip sip = sipStore.find(sipId);
-            sip.setState(SipState.PROCESSING);
-            sipStore.save(sip);
-
-            log.info("State of SIP " + sip.getId() + " changed to PROCESSING.");
-
-            runtimeService.startProcessInstanceByKey("Ingest", asMap("sipId", sipId, "batchId", batchId))
-                    .getProcessInstanceId();
+            SipState previousState = sip.getState();
+            if (previousState == SipState.PROCESSING
+                    || !sipStore.changeState(sipId, previousState, SipState.PROCESSING, leaseService.nextExpiration())) {
+                log.info("Cannot process SIP " + sipId + " because its state has been changed by another node.");
+                return false;
+            }
+            batchStore.moveSip(batchId, previousState, SipState.PROCESSING);
+            metrics.sipTransition(previousState, SipState.PROCESSING);
+            leaseService.hold(sipId);
+            metrics.sipStarted(sipId);
+
+            log.info("State of SIP " + sipId + " changed to PROCESSING.");
+
+            try {
+                engine().start(sipId, batchId, dto.getDispatcher());
+            } catch (RuntimeException e) {
+                revert(sipId, batchId, previousState);
+                throw e;
+            }
+            return true;
         } else {
             log.info("Cannot proccess SIP " + sipId + " because the batch " + batchId + " is in the state " + batch.getState() + ".");
+            return false;
         }
     }
 
     /**
-     * Counts the number of SIPs with the state FAILED for the given batch. If the count is bigger than 1/2 of all the SIPs of the batch,
-     * sets the batch state to CANCELED and returns true, otherwise returns false.
+     * Reverts the start of the ingest which the engine failed to schedule: drops the lease of the SIP and changes its
+     * state back from PROCESSING to the previous state, so it is not left PROCESSING without anyone processing it.
+     *
+     * @param sipId         id of the SIP
+     * @param batchId       id of the batch the SIP belongs to
+     * @param previousState state of the SIP before the ingest
+     */
+    private void revert(String sipId, String batchId, SipState previousState) {
+        leaseService.drop(sipId);
+        metrics.sipFinished(sipId);
+
+        if (sipStore.changeState(sipId, SipState.PROCESSING, previousState, null)) {
+            batchStore.moveSip(batchId, SipState.PROCESSING, previousState);
+            metrics.sipTransition(SipState.PROCESSING, previousState);
+            log.info("Ingest of SIP " + sipId + " could not be started. The SIP state changed back to " + previousState + ".");
+        }
+    }
+
+    /**
+     * Checks the SIP counters of the given batch. If the count of SIPs with the state FAILED is bigger than 1/2 of all
+     * the SIPs of the batch returns true, otherwise returns false.
      *
      * @param batch
      * @return
      */
     private boolean tooManyFailedSips(Batch batch) {
-        int allSipsCount = batch.getIds().size();
+        int allSipsCount = batch.getNewCount() + batch.getProcessingCount() + batch.getProcessedCount() +
+                batch.getFailedCount();
 
-        long failedSipsCount = sipStore.findAllInList(Utils.asList(batch.getIds())).stream()
-                .filter(sip -> sip.getState() == SipState.FAILED)
-                .count();
+        return batch.getFailedCount() > (allSipsCount / 2);
+    }
 
-        return failedSipsCount > (allSipsCount / 2);
+    private IngestEngine engine() {
+        return engineMode == EngineMode.IN_PROCESS ? inProcessEngine : camundaEngine;
     }
 
     @Inject
@@ -108,7 +178,32 @@ public class WorkerService {
     }
 
     @Inject
-    public void setRuntimeService(RuntimeService runtimeService) {
-        this.runtimeService = runtimeService;
+    public void setEngineMode(@Value("${arclib.engine.mode}") EngineMode engineMode) {
+        this.engineMode = engineMode;
+    }
+
+    @Inject
+    public void setCamundaEngine(CamundaIngestEngine camundaEngine) {
+        this.camundaEngine = camundaEngine;
+    }
+
+    @Inject
+    public void setInProcessEngine(InProcessIngestEngine inProcessEngine) {
+        this.inProcessEngine = inProcessEngine;
+    }
+
+    @Inject
+    public void setLeaseService(LeaseService leaseService) {
+        this.leaseService = leaseService;
+    }
+
+    @Inject
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Inject
+    public void setLimiter(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
     }
 }
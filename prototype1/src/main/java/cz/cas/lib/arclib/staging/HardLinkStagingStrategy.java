@@ -0,0 +1,35 @@
+package cz.cas.lib.arclib.staging;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Stages the SIP by recreating its folder tree in the workspace and hard linking its files. No file data are copied,
+ * therefore the staging time depends only on the number of files. Requires the SIP and the workspace to be on the same
+ * file store.
+ */
+@Component
+public class HardLinkStagingStrategy implements StagingStrategy {
+
+    @Override
+    public Path stage(Path source, Path target) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.createLink(target.resolve(source.relativize(file).toString()), file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        return target;
+    }
+}
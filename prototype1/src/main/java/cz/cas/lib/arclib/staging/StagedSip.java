@@ -0,0 +1,30 @@
+package cz.cas.lib.arclib.staging;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+@Getter
+@AllArgsConstructor
+public class StagedSip {
+    /**
+     * Path where the processing reads the SIP from
+     */
+    private Path path;
+
+    /**
+     * Mode used for the staging
+     */
+    private StagingMode mode;
+
+    /**
+     * Duration of the staging in milliseconds
+     */
+    private long duration;
+
+    /**
+     * Total size of the files of the SIP in bytes
+     */
+    private long size;
+}
@@ -0,0 +1,20 @@
+package cz.cas.lib.arclib.staging;
+
+public enum StagingMode {
+    /**
+     * {@link #LINK} if the SIP and the workspace are on the same file store, {@link #COPY} otherwise
+     */
+    AUTO,
+    /**
+     * Files of the SIP are hard linked to the workspace
+     */
+    LINK,
+    /**
+     * Files of the SIP are copied to the workspace in parallel
+     */
+    COPY,
+    /**
+     * SIP is processed at its original location
+     */
+    IN_PLACE
+}
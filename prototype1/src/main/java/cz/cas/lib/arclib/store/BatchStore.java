@@ -1,12 +1,213 @@
 package cz.cas.lib.arclib.store;
 
+import com.querydsl.core.types.dsl.NumberExpression;
+import com.querydsl.core.types.dsl.NumberPath;
+import com.querydsl.jpa.impl.JPAUpdateClause;
 import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
 import cz.cas.lib.arclib.domain.QBatch;
+import cz.cas.lib.arclib.domain.QSip;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.exception.MissingObject;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static cz.cas.lib.arclib.util.Utils.notNull;
+
 @Repository
 public class BatchStore extends DatedStore<Batch, QBatch> {
     public BatchStore() {
         super(Batch.class, QBatch.class);
     }
+
+    /**
+     * Moves one SIP of the batch from the counter of its previous state to the counter of its new state.
+     *
+     * <p>
+     *     Both counters are changed by a single UPDATE statement, therefore concurrent transitions of SIPs
+     *     of the same batch are serialized by the database and none of them is lost.
+     * </p>
+     * <p>
+     *     Should be called only after the state of the SIP has been changed by {@link SipStore#changeState}, and only
+     *     if the change succeeded, so a SIP is never moved twice.
+     * </p>
+     *
+     * @param batchId id of the batch
+     * @param from    previous state of the SIP
+     * @param to      new state of the SIP
+     */
+    public void moveSip(String batchId, SipState from, SipState to) {
+        if (from == to) {
+            return;
+        }
+
+        QBatch batch = qObject();
+        JPAUpdateClause update = queryFactory.update(batch).where(batch.id.eq(batchId));
+
+        if (from != null) {
+            NumberPath<Integer> fromCounter = counter(batch, from);
+            update.set(fromCounter, fromCounter.subtract(1));
+        }
+
+        NumberPath<Integer> toCounter = counter(batch, to);
+        update.set(toCounter, toCounter.add(1));
+        update.execute();
+    }
+
+    /**
+     * Adds newly registered SIPs to the counter of SIPs with the state NEW.
+     *
+     * @param batchId id of the batch
+     * @param count   number of the added SIPs
+     */
+    public void addSips(String batchId, int count) {
+        QBatch batch = qObject();
+        queryFactory.update(batch)
+                .where(batch.id.eq(batchId))
+                .set(batch.newCount, batch.newCount.add(count))
+                .execute();
+    }
+
+    /**
+     * Adds newly registered SIPs which are duplicates of already registered SIPs to the counter of SIPs with the state
+     * DUPLICATE.
+     *
+     * @param batchId id of the batch
+     * @param count   number of the added SIPs
+     */
+    public void addDuplicates(String batchId, int count) {
+        QBatch batch = qObject();
+        queryFactory.update(batch)
+                .where(batch.id.eq(batchId))
+                .set(batch.duplicateCount, batch.duplicateCount.add(count))
+                .execute();
+    }
+
+    /**
+     * Marks that all the SIPs of the batch have been registered.
+     *
+     * @param batchId id of the batch
+     */
+    public void finishRegistration(String batchId) {
+        QBatch batch = qObject();
+        queryFactory.update(batch)
+                .where(batch.id.eq(batchId))
+                .set(batch.registering, false)
+                .execute();
+    }
+
+    /**
+     * Finds the batches in the state.
+     *
+     * @param state state of the batches
+     * @return {@link List} of the batches
+     */
+    public List<Batch> findByState(BatchState state) {
+        QBatch batch = qObject();
+        List<String> ids = query().select(batch.id)
+                .where(batch.state.eq(state))
+                .fetch();
+
+        return findAllInList(ids);
+    }
+
+    /**
+     * Finds the rolling batches of the watched folders which are still open for registering, e.g. left open by
+     * a crash of the previous run.
+     *
+     * @return {@link List} of the batches
+     */
+    public List<Batch> findWatchedRegistering() {
+        QBatch batch = qObject();
+        List<String> ids = query().select(batch.id)
+                .where(batch.watched.isTrue())
+                .where(batch.registering.isTrue())
+                .where(batch.state.ne(BatchState.CANCELED))
+                .fetch();
+
+        return findAllInList(ids);
+    }
+
+    /**
+     * Changes the state of the batch from PROCESSING to PROCESSED if all its SIPs have been registered and there is
+     * no SIP left in the state NEW or PROCESSING.
+     *
+     * <p>
+     *     The check and the change are done by a single UPDATE statement, therefore when the last SIPs of the batch
+     *     finish concurrently, exactly one of the callers changes the state.
+     * </p>
+     *
+     * @param batchId id of the batch
+     * @return true if the state of the batch has been changed, false otherwise
+     */
+    public boolean markProcessedIfFinished(String batchId) {
+        QBatch batch = qObject();
+        long updated = queryFactory.update(batch)
+                .where(batch.id.eq(batchId))
+                .where(batch.state.eq(BatchState.PROCESSING))
+                .where(batch.registering.isFalse())
+                .where(batch.newCount.eq(0))
+                .where(batch.processingCount.eq(0))
+                .set(batch.state, BatchState.PROCESSED)
+                .set(batch.updated, Instant.now())
+                .execute();
+
+        return updated > 0;
+    }
+
+    /**
+     * Rebuilds the counters of the batch from the states of its SIPs.
+     *
+     * <p>
+     *     Costs a full scan of the batch SIPs, therefore should be used only for the recovery after a crash, when
+     *     the counters might not correspond to the SIPs any more.
+     * </p>
+     *
+     * @param batchId id of the batch
+     */
+    public void recount(String batchId) {
+        Batch found = find(batchId);
+        notNull(found, () -> new MissingObject(Batch.class, batchId));
+
+        QSip sip = QSip.sip;
+        NumberExpression<Long> count = sip.count();
+        Map<SipState, Integer> counts = new EnumMap<>(SipState.class);
+
+        query(sip).select(sip.state, count)
+                .where(sip.batchId.eq(batchId))
+                .groupBy(sip.state)
+                .fetch()
+                .forEach(t -> counts.put(t.get(sip.state), t.get(count).intValue()));
+
+        QBatch batch = qObject();
+        queryFactory.update(batch)
+                .where(batch.id.eq(batchId))
+                .set(batch.newCount, counts.getOrDefault(SipState.NEW, 0))
+                .set(batch.processingCount, counts.getOrDefault(SipState.PROCESSING, 0))
+                .set(batch.processedCount, counts.getOrDefault(SipState.PROCESSED, 0))
+                .set(batch.failedCount, counts.getOrDefault(SipState.FAILED, 0))
+                .set(batch.duplicateCount, counts.getOrDefault(SipState.DUPLICATE, 0))
+                .execute();
+    }
+
+    private NumberPath<Integer> counter(QBatch batch, SipState state) {
+        switch (state) {
+            case NEW:
+                return batch.newCount;
+            case PROCESSING:
+                return batch.processingCount;
+            case PROCESSED:
+                return batch.processedCount;
+            case FAILED:
+                return batch.failedCount;
+            case DUPLICATE:
+                return batch.duplicateCount;
+            default:
+                throw new IllegalArgumentException("Unknown SIP state " + state);
+        }
+    }
 }
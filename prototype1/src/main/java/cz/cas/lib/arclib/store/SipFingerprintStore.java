@@ -0,0 +1,67 @@
+package cz.cas.lib.arclib.store;
+
+import com.querydsl.jpa.JPAExpressions;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.domain.QBatch;
+import cz.cas.lib.arclib.domain.QSip;
+import cz.cas.lib.arclib.domain.QSipFingerprint;
+import cz.cas.lib.arclib.domain.SipFingerprint;
+import cz.cas.lib.arclib.domain.SipState;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public class SipFingerprintStore extends DomainStore<SipFingerprint, QSipFingerprint> {
+    public SipFingerprintStore() {
+        super(SipFingerprint.class, QSipFingerprint.class);
+    }
+
+    /**
+     * Finds the fingerprints of the existing SIPs which may have the same content as the SIPs with the specified sizes
+     * and samples. Fingerprints of SIPs in the state FAILED and of SIPs of canceled batches are skipped, so a resubmitted
+     * SIP whose previous ingest has failed or has never finished is processed again.
+     *
+     * <p>
+     *     The fingerprints are matched by both the sizes and the samples using the index on these columns, the exact
+     *     pairs should be filtered by the caller.
+     * </p>
+     *
+     * @param sizes   sizes of the SIPs in bytes
+     * @param samples samples of the SIPs
+     * @return {@link List} of candidate fingerprints
+     */
+    public List<SipFingerprint> findCandidates(Collection<Long> sizes, Collection<String> samples) {
+        QSipFingerprint fingerprint = qObject();
+        QSip sip = QSip.sip;
+        QBatch batch = QBatch.batch;
+
+        List<String> ids = query().select(fingerprint.id)
+                .where(fingerprint.size.in(sizes))
+                .where(fingerprint.sample.in(samples))
+                .where(fingerprint.sipId.in(JPAExpressions.select(sip.id)
+                        .from(sip)
+                        .where(sip.state.ne(SipState.FAILED))
+                        .where(sip.batchId.notIn(JPAExpressions.select(batch.id)
+                                .from(batch)
+                                .where(batch.state.eq(BatchState.CANCELED))))))
+                .fetch();
+
+        return findAllInList(ids);
+    }
+
+    /**
+     * Stores the full digest of the SIP content computed afterwards.
+     *
+     * @param id     id of the fingerprint
+     * @param digest digest of the SIP content
+     */
+    public void setDigest(String id, String digest) {
+        QSipFingerprint fingerprint = qObject();
+        queryFactory.update(fingerprint)
+                .where(fingerprint.id.eq(id))
+                .set(fingerprint.digest, digest)
+                .execute();
+    }
+}
@@ -1,12 +1,226 @@
 package cz.cas.lib.arclib.store;
 
+import com.querydsl.jpa.impl.JPAQuery;
+import com.querydsl.jpa.impl.JPAUpdateClause;
 import cz.cas.lib.arclib.domain.QSip;
 import cz.cas.lib.arclib.domain.Sip;
+import cz.cas.lib.arclib.domain.SipState;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
 @Repository
 public class SipStore extends DomainStore<Sip, QSip> {
     public SipStore() {
         super(Sip.class, QSip.class);
     }
+
+    /**
+     * Finds a page of SIPs belonging to the batch ordered by their ids.
+     *
+     * <p>
+     *     Pages are addressed by the id of the last SIP of the previous page instead of an offset, so retrieving
+     *     a page costs the same no matter how deep in the batch it is.
+     * </p>
+     *
+     * @param batchId id of the batch
+     * @param state   state of the SIPs to find, null for SIPs in any state
+     * @param afterId id of the last SIP of the previous page, null for the first page
+     * @param limit   maximal number of SIPs in the page
+     * @return ordered {@link List} of SIPs
+     */
+    public List<Sip> findByBatch(String batchId, SipState state, String afterId, int limit) {
+        QSip sip = qObject();
+
+        JPAQuery<String> query = query().select(sip.id).where(sip.batchId.eq(batchId));
+        if (state != null) {
+            query.where(sip.state.eq(state));
+        }
+        if (afterId != null) {
+            query.where(sip.id.gt(afterId));
+        }
+
+        List<String> ids = query.orderBy(sip.id.asc()).limit(limit).fetch();
+
+        return findAllInList(ids);
+    }
+
+    /**
+     * Checks whether the SIP belongs to the batch.
+     *
+     * @param sipId   id of the SIP
+     * @param batchId id of the batch
+     * @return true if the SIP belongs to the batch, false otherwise
+     */
+    public boolean isInBatch(String sipId, String batchId) {
+        QSip sip = qObject();
+
+        return query().select(sip.id)
+                .where(sip.id.eq(sipId))
+                .where(sip.batchId.eq(batchId))
+                .fetchFirst() != null;
+    }
+
+    /**
+     * Checks whether there is a SIP with the path.
+     *
+     * @param path path to the SIP
+     * @return true if there is a SIP with the path, false otherwise
+     */
+    public boolean existsByPath(String path) {
+        QSip sip = qObject();
+
+        return query().select(sip.id)
+                .where(sip.path.eq(path))
+                .fetchFirst() != null;
+    }
+
+    /**
+     * Finds a page of SIPs in the state PROCESSING whose lease has expired, ordered by their ids. SIPs in the state
+     * PROCESSING without any lease are considered expired as well.
+     *
+     * @param batchId id of the batch, null for SIPs of all the batches
+     * @param now     current time
+     * @param afterId id of the last SIP of the previous page, null for the first page
+     * @param limit   maximal number of SIPs in the page
+     * @return ordered {@link List} of SIPs
+     */
+    public List<Sip> findExpired(String batchId, Instant now, String afterId, int limit) {
+        QSip sip = qObject();
+
+        JPAQuery<String> query = query().select(sip.id)
+                .where(sip.state.eq(SipState.PROCESSING))
+                .where(sip.leaseExpiration.isNull().or(sip.leaseExpiration.lt(now)));
+        if (batchId != null) {
+            query.where(sip.batchId.eq(batchId));
+        }
+        if (afterId != null) {
+            query.where(sip.id.gt(afterId));
+        }
+
+        List<String> ids = query.orderBy(sip.id.asc()).limit(limit).fetch();
+
+        return findAllInList(ids);
+    }
+
+    /**
+     * Finds the SIPs in the state DUPLICATE which share the result of the SIP.
+     *
+     * @param sipId id of the original SIP
+     * @return {@link List} of the duplicates
+     */
+    public List<Sip> findDuplicates(String sipId) {
+        QSip sip = qObject();
+
+        List<String> ids = query().select(sip.id)
+                .where(sip.duplicateOf.eq(sipId))
+                .where(sip.state.eq(SipState.DUPLICATE))
+                .fetch();
+
+        return findAllInList(ids);
+    }
+
+    /**
+     * Filters the SIPs which are in the state PROCESSING.
+     *
+     * @param sipIds ids of the SIPs
+     * @return ids of the SIPs in the state PROCESSING
+     */
+    public List<String> findProcessing(Collection<String> sipIds) {
+        QSip sip = qObject();
+
+        return query().select(sip.id)
+                .where(sip.id.in(sipIds))
+                .where(sip.state.eq(SipState.PROCESSING))
+                .fetch();
+    }
+
+    /**
+     * Prolongs the leases of the SIPs in the state PROCESSING.
+     *
+     * @param sipIds     ids of the SIPs
+     * @param expiration new expiration of the leases
+     */
+    public void renewLeases(Collection<String> sipIds, Instant expiration) {
+        QSip sip = qObject();
+        queryFactory.update(sip)
+                .where(sip.id.in(sipIds))
+                .where(sip.state.eq(SipState.PROCESSING))
+                .set(sip.leaseExpiration, expiration)
+                .execute();
+    }
+
+    /**
+     * Records the last completed stage of the in-process ingest of the SIP.
+     *
+     * @param sipId id of the SIP
+     * @param stage name of the completed stage
+     */
+    public void checkpoint(String sipId, String stage) {
+        QSip sip = qObject();
+        queryFactory.update(sip)
+                .where(sip.id.eq(sipId))
+                .set(sip.checkpoint, stage)
+                .execute();
+    }
+
+    /**
+     * Changes the state of the SIP if it is still in the expected state and sets its lease. Other attributes of the SIP
+     * are not changed.
+     *
+     * <p>
+     *     The check and the change are done by a single UPDATE statement, therefore when the SIP is changed
+     *     concurrently, e.g. released by the reaper of expired leases while a worker finishes it, exactly one of
+     *     the transitions succeeds. The counters of the batch should be moved only by the caller whose transition
+     *     succeeded.
+     * </p>
+     *
+     * @param sipId           id of the SIP
+     * @param from            expected state of the SIP
+     * @param to              new state of the SIP
+     * @param leaseExpiration new expiration of the lease, null for no lease
+     * @return true if the state of the SIP has been changed, false otherwise
+     */
+    public boolean changeState(String sipId, SipState from, SipState to, Instant leaseExpiration) {
+        QSip sip = qObject();
+        JPAUpdateClause update = queryFactory.update(sip)
+                .where(sip.id.eq(sipId))
+                .where(sip.state.eq(from))
+                .set(sip.state, to);
+
+        if (leaseExpiration != null) {
+            update.set(sip.leaseExpiration, leaseExpiration);
+        } else {
+            update.setNull(sip.leaseExpiration);
+        }
+
+        return update.execute() > 0;
+    }
+
+    /**
+     * Changes the state of the SIP from PROCESSING back to NEW if its lease has expired.
+     *
+     * <p>
+     *     The check and the change are done by a single UPDATE statement, therefore when more nodes try to release
+     *     the same SIP, exactly one of them succeeds.
+     * </p>
+     *
+     * @param sipId id of the SIP
+     * @param now   current time
+     * @return true if the SIP has been released, false otherwise
+     */
+    public boolean releaseExpired(String sipId, Instant now) {
+        QSip sip = qObject();
+        long updated = queryFactory.update(sip)
+                .where(sip.id.eq(sipId))
+                .where(sip.state.eq(SipState.PROCESSING))
+                .where(sip.leaseExpiration.isNull().or(sip.leaseExpiration.lt(now)))
+                .set(sip.state, SipState.NEW)
+                .setNull(sip.leaseExpiration)
+                .execute();
+
+        return updated > 0;
+    }
 }
@@ -91,6 +91,12 @@ public class Utils {
         return map;
     }
 
+    public static <T, U> Map<T, U> asMap(T key1, U value1, T key2, U value2, T key3, U value3) {
+        Map<T, U> map = asMap(key1, value1, key2, value2);
+        map.put(key3, value3);
+        return map;
+    }
+
     public static <T> List<T> asList(Collection<T> a) {
         return a.stream().collect(Collectors.toList());
     }
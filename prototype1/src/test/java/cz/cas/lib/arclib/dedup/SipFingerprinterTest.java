@@ -0,0 +1,87 @@
+package cz.cas.lib.arclib.dedup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.junit.Assert.assertThat;
+
+public class SipFingerprinterTest {
+
+    private Path root;
+    private SipFingerprinter fingerprinter;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("fingerprint");
+
+        fingerprinter = new SipFingerprinter();
+        fingerprinter.setBlockSize(4);
+        fingerprinter.setSamples(2);
+    }
+
+    @After
+    public void tearDown() {
+        FileSystemUtils.deleteRecursively(root.toFile());
+    }
+
+    /**
+     * Test of ({@link SipFingerprinter#sample(Path)}) and ({@link SipFingerprinter#digest(Path)}) methods. The test
+     * asserts that two SIPs with the same files in different folders have the same sample and the same digest and that
+     * the sample contains the total size of the files.
+     */
+    @Test
+    public void sameContentTest() throws IOException {
+        Path sip1 = createSip("sip1", "0123456789abcdef");
+        Path sip2 = createSip("sip2", "0123456789abcdef");
+
+        ContentSample sample1 = fingerprinter.sample(sip1);
+        ContentSample sample2 = fingerprinter.sample(sip2);
+
+        assertThat(sample1.getSize(), is(20L));
+        assertThat(sample1.getHash(), is(sample2.getHash()));
+        assertThat(fingerprinter.digest(sip1), is(fingerprinter.digest(sip2)));
+    }
+
+    /**
+     * Test of ({@link SipFingerprinter#sample(Path)}) and ({@link SipFingerprinter#digest(Path)}) methods. Two SIPs
+     * differ only in the middle of a file, which is not sampled. The test asserts that the samples are the same while
+     * the digests differ.
+     */
+    @Test
+    public void differentUnsampledContentTest() throws IOException {
+        Path sip1 = createSip("sip1", "0123456789abcdef");
+        Path sip2 = createSip("sip2", "0123xxxxxxxxcdef");
+
+        assertThat(fingerprinter.sample(sip1).getHash(), is(fingerprinter.sample(sip2).getHash()));
+        assertThat(fingerprinter.digest(sip1), not(fingerprinter.digest(sip2)));
+    }
+
+    /**
+     * Test of ({@link SipFingerprinter#sample(Path)}) method. The test asserts that SIPs with the same content of files
+     * with different names have different samples.
+     */
+    @Test
+    public void differentNamesTest() throws IOException {
+        Path sip1 = createSip("sip1", "0123456789abcdef");
+        Path sip2 = createSip("sip2", "0123456789abcdef");
+        Files.move(sip2.resolve("data.bin"), sip2.resolve("other.bin"));
+
+        assertThat(fingerprinter.sample(sip1).getHash(), not(fingerprinter.sample(sip2).getHash()));
+    }
+
+    private Path createSip(String name, String data) throws IOException {
+        Path sip = root.resolve(name);
+        Files.createDirectories(sip.resolve("meta"));
+        Files.write(sip.resolve("meta").resolve("info.xml"), "info".getBytes());
+        Files.write(sip.resolve("data.bin"), data.getBytes());
+        return sip;
+    }
+}
@@ -0,0 +1,126 @@
+package cz.cas.lib.arclib.engine;
+
+import cz.cas.lib.arclib.domain.Sip;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.service.CancellationService;
+import cz.cas.lib.arclib.service.ConcurrencyLimiter;
+import cz.cas.lib.arclib.service.IngestCompletionService;
+import cz.cas.lib.arclib.store.SipStore;
+import org.camunda.bpm.engine.delegate.DelegateExecution;
+import org.camunda.bpm.engine.delegate.JavaDelegate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class InProcessIngestEngineTest {
+
+    private InProcessIngestEngine engine;
+
+    private PipelineStage first;
+
+    private PipelineStage last;
+
+    private IngestCompletionService completion;
+
+    @Before
+    public void setUp() {
+        Sip sip = new Sip();
+        sip.setId("sip1");
+        sip.setState(SipState.PROCESSING);
+
+        SipStore sipStore = mock(SipStore.class);
+        when(sipStore.find("sip1")).thenReturn(sip);
+
+        first = mock(PipelineStage.class);
+        last = mock(PipelineStage.class);
+        completion = mock(IngestCompletionService.class);
+
+        Map<String, JavaDelegate> delegates = new HashMap<>();
+        delegates.put("first", first);
+        delegates.put("last", last);
+
+        engine = new InProcessIngestEngine();
+        engine.setThreads(1);
+        engine.setStages(new String[]{"first", "last"});
+        engine.setEngineMode(EngineMode.IN_PROCESS);
+        engine.setDelegates(delegates);
+        engine.setSipStore(sipStore);
+        engine.setCancellation(mock(CancellationService.class));
+        engine.setCompletion(completion);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private void awaitIngest() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getRunning() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(engine.getRunning(), is(0));
+    }
+
+    /**
+     * Test of ({@link InProcessIngestEngine#start(String, String, String)}) method. The first stage fails before the
+     * ingest delegate has run. The test asserts that the following stage is not run, the SIP is failed and its ingest
+     * is finished by the engine, so its lease, permit and dispatching credit are returned.
+     */
+    @Test
+    public void firstStageFailsTest() throws Exception {
+        doThrow(new IllegalStateException("stage failed")).when(first).execute(any(DelegateExecution.class));
+        when(completion.fail("sip1", "batch1")).thenReturn(true);
+
+        engine.start("sip1", "batch1", "dispatcher1");
+        awaitIngest();
+
+        verify(last, never()).execute(any(DelegateExecution.class));
+        verify(completion).fail("sip1", "batch1");
+        verify(completion).finish("sip1", "batch1", SipState.FAILED, null, ConcurrencyLimiter.NODE, "dispatcher1");
+    }
+
+    /**
+     * Test of ({@link InProcessIngestEngine#start(String, String, String)}) method. The first stage is interrupted.
+     * The test asserts that the SIP is released back to the state NEW and its ingest is finished without an outcome.
+     */
+    @Test
+    public void firstStageInterruptedTest() throws Exception {
+        doThrow(new InterruptedException("batch canceled")).when(first).execute(any(DelegateExecution.class));
+
+        engine.start("sip1", "batch1", "dispatcher1");
+        awaitIngest();
+
+        verify(last, never()).execute(any(DelegateExecution.class));
+        verify(completion).release("sip1", "batch1");
+        verify(completion, never()).fail(any(), any());
+        verify(completion).finish("sip1", "batch1", null, null, ConcurrencyLimiter.NODE, "dispatcher1");
+    }
+
+    /**
+     * Test of ({@link InProcessIngestEngine#start(String, String, String)}) method. A stage fails after the ingest has
+     * already been finished by an earlier stage. The test asserts that the ingest is not finished twice.
+     */
+    @Test
+    public void stageFailsAfterFinishTest() throws Exception {
+        doAnswer(invocation -> {
+            ((DelegateExecution) invocation.getArguments()[0]).setVariable(IngestCompletionService.FINISHED, true);
+            return null;
+        }).when(first).execute(any(DelegateExecution.class));
+        doThrow(new IllegalStateException("stage failed")).when(last).execute(any(DelegateExecution.class));
+
+        engine.start("sip1", "batch1", "dispatcher1");
+        awaitIngest();
+
+        verify(completion, never()).fail(any(), any());
+        verify(completion, never()).finish(any(), any(), any(), any(), any(), any());
+    }
+}
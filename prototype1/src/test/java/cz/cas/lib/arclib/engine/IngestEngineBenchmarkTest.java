@@ -0,0 +1,102 @@
+package cz.cas.lib.arclib.engine;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.domain.Sip;
+import cz.cas.lib.arclib.domain.SipState;
+import cz.cas.lib.arclib.store.BatchStore;
+import cz.cas.lib.arclib.store.SipStore;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import javax.inject.Inject;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Comparison of the throughput of {@link CamundaIngestEngine} and {@link InProcessIngestEngine}.
+ * <p>
+ * The SIPs have no path, therefore the ingest delegate skips the staging and the simulated processing and the measured
+ * throughput is the overhead of the engine and of the SIP updates. The number of SIPs is set by the system property
+ * "benchmark.sips".
+ * </p>
+ */
+@Slf4j
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class IngestEngineBenchmarkTest {
+
+    private static final int SIPS = Integer.getInteger("benchmark.sips", 200);
+
+    private static final long TIMEOUT = 300_000;
+
+    @Inject
+    private CamundaIngestEngine camundaEngine;
+
+    @Inject
+    private InProcessIngestEngine inProcessEngine;
+
+    @Inject
+    private BatchStore batchStore;
+
+    @Inject
+    private SipStore sipStore;
+
+    /**
+     * Runs a batch of SIPs by each of the engines and logs the SIPs processed per second. The test asserts that both
+     * engines process all the SIPs of the batch.
+     */
+    @Test
+    public void compareEnginesTest() throws InterruptedException {
+        double camunda = measure(camundaEngine);
+        double inProcess = measure(inProcessEngine);
+
+        log.info(String.format("Ingest of %d SIPs: CAMUNDA %.1f SIPs/s, IN_PROCESS %.1f SIPs/s.", SIPS, camunda, inProcess));
+    }
+
+    private double measure(IngestEngine engine) throws InterruptedException {
+        Batch batch = new Batch();
+        batch.setState(BatchState.PROCESSING);
+        batchStore.save(batch);
+
+        List<Sip> sips = new ArrayList<>();
+        for (int i = 0; i < SIPS; i++) {
+            Sip sip = new Sip();
+            sip.setState(SipState.PROCESSING);
+            sip.setLeaseExpiration(Instant.now().plusMillis(TIMEOUT));
+            sip.setBatchId(batch.getId());
+            sips.add(sip);
+        }
+        sipStore.save(sips);
+        batchStore.recount(batch.getId());
+
+        long start = System.currentTimeMillis();
+        sips.forEach(sip -> engine.start(sip.getId(), batch.getId(), null));
+
+        Batch processed = batchStore.find(batch.getId());
+        while (processed.getState() != BatchState.PROCESSED && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(100);
+            processed = batchStore.find(batch.getId());
+        }
+        long duration = System.currentTimeMillis() - start;
+
+        assertThat(processed.getProcessedCount(), is(SIPS));
+
+        return SIPS * 1000.0 / duration;
+    }
+
+    @After
+    public void testTearDown() {
+        sipStore.findAll().forEach(sipStore::delete);
+
+        batchStore.findAll().forEach(batchStore::delete);
+    }
+}
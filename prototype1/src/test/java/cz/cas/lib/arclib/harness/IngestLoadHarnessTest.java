@@ -0,0 +1,128 @@
+package cz.cas.lib.arclib.harness;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.service.CoordinatorService;
+import cz.cas.lib.arclib.service.IngestMetrics;
+import cz.cas.lib.arclib.store.BatchStore;
+import cz.cas.lib.arclib.store.SipStore;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileSystemUtils;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Load harness of the whole ingest of a batch.
+ * <p>
+ * Generates synthetic SIPs modelled on the template SIP, runs them as a single batch through
+ * {@link CoordinatorService#start(String, int, Integer)} with the embedded ActiveMQ broker and the H2 database of
+ * the tests and reports the throughput in SIPs per second, the median and the 99th percentile of the SIP latency and
+ * the number of database statements per SIP.
+ * </p>
+ * <p>
+ * The harness is configured by the system properties "harness.sips" (number of SIPs), "harness.template" (path to
+ * the template SIP) and "harness.timeout" (maximal duration of the batch in seconds), e.g.
+ * {@code mvn test -Dtest=IngestLoadHarnessTest -Dharness.sips=1000}.
+ * </p>
+ */
+@Slf4j
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class IngestLoadHarnessTest {
+
+    private static final int SIPS = Integer.getInteger("harness.sips", 50);
+    private static final String TEMPLATE = System.getProperty("harness.template", "../SIP_packages/KPW01169310");
+    private static final long TIMEOUT = TimeUnit.SECONDS.toMillis(Long.getLong("harness.timeout", 600));
+
+    @TestConfiguration
+    static class StatementCounting {
+        @Bean
+        public static StatementCounter statementCounter() {
+            return new StatementCounter();
+        }
+    }
+
+    @Inject
+    private CoordinatorService coordinatorService;
+
+    @Inject
+    private BatchStore batchStore;
+
+    @Inject
+    private SipStore sipStore;
+
+    @Inject
+    private IngestMetrics metrics;
+
+    @Inject
+    private StatementCounter statementCounter;
+
+    private Path folder;
+
+    /**
+     * Runs a batch of synthetic SIPs and logs the report. The test asserts that all the SIPs of the batch are processed
+     * within the timeout.
+     */
+    @Test
+    public void loadTest() throws IOException, InterruptedException {
+        folder = Files.createTempDirectory("harness");
+        new SyntheticSipGenerator(Paths.get(TEMPLATE)).generate(folder, SIPS);
+
+        statementCounter.reset();
+        long start = System.currentTimeMillis();
+
+        String batchId = coordinatorService.start(folder.toString(), 1, null);
+
+        Batch batch = batchStore.find(batchId);
+        while (batch.getState() != BatchState.PROCESSED && System.currentTimeMillis() - start < TIMEOUT) {
+            Thread.sleep(100);
+            batch = batchStore.find(batchId);
+        }
+
+        long duration = System.currentTimeMillis() - start;
+        long statements = statementCounter.getCount();
+
+        assertThat(batch.getState(), is(BatchState.PROCESSED));
+        assertThat(batch.getProcessedCount(), is(SIPS));
+
+        HistogramSnapshot latency = metrics.latency().takeSnapshot();
+        StringBuilder report = new StringBuilder()
+                .append(String.format("Ingest of %d SIPs finished in %d ms.%n", SIPS, duration))
+                .append(String.format("Throughput: %.2f SIPs/s%n", SIPS * 1000.0 / duration));
+        for (ValueAtPercentile percentile : latency.percentileValues()) {
+            report.append(String.format("Latency p%.0f: %.0f ms%n", percentile.percentile() * 100,
+                    percentile.value(TimeUnit.MILLISECONDS)));
+        }
+        report.append(String.format("DB statements per SIP: %.1f", (double) statements / SIPS));
+
+        log.info(report.toString());
+    }
+
+    @After
+    public void testTearDown() {
+        if (folder != null) {
+            FileSystemUtils.deleteRecursively(folder.toFile());
+        }
+
+        sipStore.findAll().forEach(sipStore::delete);
+
+        batchStore.findAll().forEach(batchStore::delete);
+    }
+}
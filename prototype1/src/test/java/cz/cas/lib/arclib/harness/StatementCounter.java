@@ -0,0 +1,68 @@
+package cz.cas.lib.arclib.harness;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.util.ClassUtils;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the statements executed against the data sources of the application, including the statements of Hibernate
+ * and of the Camunda engine. A JDBC batch is counted as a single statement, because it costs a single round trip
+ * to the database.
+ */
+public class StatementCounter implements BeanPostProcessor {
+
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Gets the number of statements executed since the last reset.
+     *
+     * @return number of statements
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public void reset() {
+        count.set(0);
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof DataSource) {
+            return wrap(bean);
+        }
+        return bean;
+    }
+
+    private Object wrap(Object target) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), ClassUtils.getAllInterfaces(target),
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("execute") && target instanceof Statement) {
+                        count.incrementAndGet();
+                    }
+
+                    Object result;
+                    try {
+                        result = method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+
+                    if (result instanceof Connection || result instanceof Statement) {
+                        return wrap(result);
+                    }
+                    return result;
+                });
+    }
+}
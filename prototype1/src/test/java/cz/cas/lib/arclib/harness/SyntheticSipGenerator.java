@@ -0,0 +1,57 @@
+package cz.cas.lib.arclib.harness;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Generates synthetic SIPs by copying a template SIP. Every occurrence of the id of the template in the names of
+ * the folders and files is replaced by the id of the generated SIP, so the SIPs have the same layout as the SIPs
+ * in SIP_packages, e.g. masterCopy/MC_KPW01169310_0001.JP2 becomes masterCopy/MC_SYN0000001_0001.JP2.
+ */
+public class SyntheticSipGenerator {
+
+    private final Path template;
+    private final String templateId;
+
+    public SyntheticSipGenerator(Path template) {
+        this.template = template;
+        this.templateId = template.getFileName().toString();
+    }
+
+    /**
+     * Generates SIPs into the folder.
+     *
+     * @param folder folder to generate the SIPs into
+     * @param count  number of SIPs to generate
+     * @throws IOException
+     */
+    public void generate(Path folder, int count) throws IOException {
+        Files.createDirectories(folder);
+
+        for (int i = 1; i <= count; i++) {
+            String sipId = String.format("SYN%07d", i);
+            copy(folder.resolve(sipId), sipId);
+        }
+    }
+
+    private void copy(Path target, String sipId) throws IOException {
+        Files.walkFileTree(template, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(resolve(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, resolve(file));
+                return FileVisitResult.CONTINUE;
+            }
+
+            private Path resolve(Path path) {
+                return target.resolve(template.relativize(path).toString().replace(templateId, sipId));
+            }
+        });
+    }
+}
@@ -0,0 +1,163 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.exception.GeneralException;
+import cz.cas.lib.arclib.helper.ThrowableAssertion;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class BatchCircuitBreakerTest {
+
+    private BatchCircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        breaker = new BatchCircuitBreaker(10, 5, 0.5, 1000, 2);
+    }
+
+    /**
+     * Test of ({@link BatchCircuitBreaker#record(boolean, long)}) method. The test asserts that the breaker stays closed
+     * until the minimal number of outcomes is recorded and opens when the ratio of the failures in the window reaches
+     * the threshold.
+     */
+    @Test
+    public void opensOnFailuresTest() {
+        for (int i = 0; i < 4; i++) {
+            breaker.record(true, 0);
+        }
+        assertThat(breaker.getState(), is(BreakerState.CLOSED));
+        assertThat(breaker.allowsDispatch(0), is(true));
+
+        breaker.record(true, 0);
+        assertThat(breaker.getState(), is(BreakerState.OPEN));
+        assertThat(breaker.allowsDispatch(999), is(false));
+    }
+
+    /**
+     * Test of ({@link BatchCircuitBreaker#record(boolean, long)}) method. The test asserts that old outcomes slide out
+     * of the window, so occasional failures spread over a long run of successes do not open the breaker.
+     */
+    @Test
+    public void windowSlidesTest() {
+        for (int i = 0; i < 100; i++) {
+            breaker.record(i % 3 == 0, 0);
+        }
+
+        assertThat(breaker.getState(), is(BreakerState.CLOSED));
+    }
+
+    /**
+     * Test of ({@link BatchCircuitBreaker#allowsDispatch(long)}) method. The test asserts that after the pause the breaker
+     * becomes half-open and lets through only the probes, and that it closes when all the probes succeed.
+     */
+    @Test
+    public void closesAfterSuccessfulProbesTest() {
+        open();
+
+        assertThat(breaker.allowsDispatch(1000), is(true));
+        assertThat(breaker.getState(), is(BreakerState.HALF_OPEN));
+        breaker.dispatched();
+        breaker.dispatched();
+        assertThat(breaker.allowsDispatch(1000), is(false));
+
+        breaker.record(false, 1100);
+        assertThat(breaker.getState(), is(BreakerState.HALF_OPEN));
+        breaker.record(false, 1200);
+        assertThat(breaker.getState(), is(BreakerState.CLOSED));
+        assertThat(breaker.allowsDispatch(1200), is(true));
+    }
+
+    /**
+     * Test of ({@link BatchCircuitBreaker#record(boolean, long)}) method. The test asserts that a failed probe opens
+     * the breaker again for the whole pause.
+     */
+    @Test
+    public void reopensAfterFailedProbeTest() {
+        open();
+
+        assertThat(breaker.allowsDispatch(1000), is(true));
+        breaker.dispatched();
+        breaker.record(true, 1500);
+
+        assertThat(breaker.getState(), is(BreakerState.OPEN));
+        assertThat(breaker.allowsDispatch(2000), is(false));
+        assertThat(breaker.allowsDispatch(2500), is(true));
+    }
+
+    /**
+     * Test of ({@link BatchCircuitBreaker#returned(int)}) method. The test asserts that a probe which comes back without
+     * an outcome frees its slot, so the half-open breaker does not stall.
+     */
+    @Test
+    public void returnedProbeFreesSlotTest() {
+        open();
+
+        assertThat(breaker.allowsDispatch(1000), is(true));
+        int generation = breaker.dispatched();
+        breaker.dispatched();
+        assertThat(breaker.allowsDispatch(1000), is(false));
+
+        breaker.returned(generation);
+        assertThat(breaker.allowsDispatch(1000), is(true));
+    }
+
+    /**
+     * Test of ({@link BatchCircuitBreaker#record(int, boolean, long)}) method. The test asserts that the outcomes of the
+     * SIPs dispatched before the breaker opened are not taken for the outcomes of the probes.
+     */
+    @Test
+    public void staleOutcomeIgnoredTest() {
+        int closedGeneration = breaker.dispatched();
+        open();
+
+        assertThat(breaker.allowsDispatch(1000), is(true));
+        int probeGeneration = breaker.dispatched();
+        breaker.dispatched();
+
+        breaker.record(closedGeneration, false, 1100);
+        breaker.record(closedGeneration, false, 1100);
+        assertThat(breaker.getState(), is(BreakerState.HALF_OPEN));
+
+        breaker.record(probeGeneration, false, 1200);
+        breaker.record(probeGeneration, false, 1200);
+        assertThat(breaker.getState(), is(BreakerState.CLOSED));
+    }
+
+    /**
+     * Test of ({@link CircuitBreakerFactory#checkSettings()}) method. The test asserts that the settings which would make
+     * the breaker never open, or never close again, are rejected at the startup.
+     */
+    @Test
+    public void checkSettingsTest() {
+        CircuitBreakerFactory factory = new CircuitBreakerFactory();
+        factory.setWindowSize(10);
+        factory.setMinimumOutcomes(5);
+        factory.setFailureThreshold(0.5);
+        factory.setOpenDuration(1000);
+        factory.setProbes(2);
+        factory.checkSettings();
+
+        factory.setMinimumOutcomes(11);
+        ThrowableAssertion.assertThrown(factory::checkSettings).isInstanceOf(GeneralException.class);
+        factory.setMinimumOutcomes(5);
+
+        factory.setFailureThreshold(0);
+        ThrowableAssertion.assertThrown(factory::checkSettings).isInstanceOf(GeneralException.class);
+        factory.setFailureThreshold(1.5);
+        ThrowableAssertion.assertThrown(factory::checkSettings).isInstanceOf(GeneralException.class);
+        factory.setFailureThreshold(1);
+        factory.checkSettings();
+
+        factory.setProbes(0);
+        ThrowableAssertion.assertThrown(factory::checkSettings).isInstanceOf(GeneralException.class);
+    }
+
+    private void open() {
+        for (int i = 0; i < 5; i++) {
+            breaker.record(true, 0);
+        }
+        assertThat(breaker.getState(), is(BreakerState.OPEN));
+    }
+}
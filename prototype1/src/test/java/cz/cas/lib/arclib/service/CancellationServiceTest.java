@@ -0,0 +1,89 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.helper.ThrowableAssertion;
+import cz.cas.lib.arclib.store.BatchStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class CancellationServiceTest {
+
+    private CancellationService service;
+    private BatchStore batchStore;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        batchStore = mock(BatchStore.class);
+
+        service = new CancellationService();
+        service.setBatchStore(batchStore);
+
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Test of ({@link CancellationService#interrupt(String)}) method. A SIP of the batch is being processed
+     * interruptibly. The test asserts that the processing stops right after the interrupt, that the interrupt of another
+     * batch does not affect it and that the thread is not left interrupted afterwards.
+     */
+    @Test
+    public void interruptTest() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        Future<Boolean> result = executor.submit(() -> {
+            try {
+                service.interruptibly("sip1", "batch1", () -> {
+                    started.countDown();
+                    Thread.sleep(60000);
+                    return null;
+                });
+                return false;
+            } catch (InterruptedException e) {
+                return !Thread.currentThread().isInterrupted();
+            }
+        });
+
+        started.await();
+        assertThat(service.interrupt("batch2"), is(0));
+
+        long start = System.currentTimeMillis();
+        assertThat(service.interrupt("batch1"), is(1));
+
+        assertThat(result.get(5, TimeUnit.SECONDS), is(true));
+        assertThat(System.currentTimeMillis() - start, lessThan(5000L));
+        assertThat(service.interrupt("batch1"), is(0));
+    }
+
+    /**
+     * Test of ({@link CancellationService#checkpoint(String, String)}) method. The test asserts that the checkpoint
+     * passes while the batch is in the state PROCESSING and throws InterruptedException when the batch has been canceled.
+     */
+    @Test
+    public void checkpointTest() throws Exception {
+        Batch batch = new Batch();
+        batch.setId("batch1");
+        batch.setState(BatchState.PROCESSING);
+        when(batchStore.find("batch1")).thenReturn(batch);
+
+        service.checkpoint("sip1", "batch1");
+
+        batch.setState(BatchState.CANCELED);
+        ThrowableAssertion.assertThrown(() -> service.checkpoint("sip1", "batch1"))
+                .isInstanceOf(InterruptedException.class);
+    }
+}
@@ -0,0 +1,193 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.SipState;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jms.config.JmsListenerEndpointRegistry;
+import org.springframework.jms.core.JmsTemplate;
+import org.springframework.jms.listener.MessageListenerContainer;
+
+import java.util.concurrent.*;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConcurrencyLimiterTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    private ConcurrencyLimiter limiter;
+    private DiskQueueProbe diskQueue;
+    private JmsTemplate template;
+
+    @Before
+    public void setUp() {
+        diskQueue = mock(DiskQueueProbe.class);
+        when(diskQueue.getQueueLength()).thenReturn(-1);
+
+        limiter = new ConcurrencyLimiter();
+        limiter.setInitialLimit(2);
+        limiter.setMinLimit(1);
+        limiter.setMaxLimit(10);
+        limiter.setTolerance(2.0);
+        limiter.setBackoff(0.5);
+        limiter.setMaxDiskQueue(8);
+        limiter.setDiskQueue(diskQueue);
+
+        template = mock(JmsTemplate.class);
+        limiter.setTemplate(template);
+        limiter.checkLimits();
+    }
+
+    /**
+     * Test of ({@link ConcurrencyLimiter#acquire(String)}) method. The test asserts that no more SIPs than the limit get
+     * a permit and that a waiting SIP gets its permit when another SIP releases its one.
+     */
+    @Test
+    public void acquireRespectsLimitTest() throws Exception {
+        limiter.acquire("sip1");
+        limiter.acquire("sip2");
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> third = executor.submit(() -> {
+                limiter.acquire("sip3");
+                return null;
+            });
+
+            Thread.sleep(200);
+            assertThat(third.isDone(), is(false));
+
+            limiter.release("sip1", null);
+            third.get(5, TimeUnit.SECONDS);
+            assertThat(limiter.getInFlight(), is(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test of ({@link ConcurrencyLimiter#acquire(String)}) method. The test asserts that the listener of the queue
+     * "worker" is stopped when the limit is reached, so the node does not hold the SIPs waiting in the queue, and that
+     * it is started again when a permit is returned.
+     */
+    @Test
+    public void consumingPausedAtLimitTest() throws Exception {
+        boolean[] running = {true};
+        MessageListenerContainer container = mock(MessageListenerContainer.class);
+        when(container.isRunning()).thenAnswer(invocation -> running[0]);
+        doAnswer(invocation -> running[0] = false).when(container).stop();
+        doAnswer(invocation -> running[0] = true).when(container).start();
+
+        JmsListenerEndpointRegistry registry = mock(JmsListenerEndpointRegistry.class);
+        when(registry.getListenerContainer(ConcurrencyLimiter.WORKER_LISTENER)).thenReturn(container);
+        limiter.setRegistry(registry);
+
+        limiter.acquire("sip1");
+        verify(container, never()).stop();
+
+        limiter.acquire("sip2");
+        verify(container).stop();
+        assertThat(running[0], is(false));
+
+        limiter.release("sip1", null);
+        verify(container).start();
+        assertThat(running[0], is(true));
+    }
+
+    /**
+     * Test of ({@link ConcurrencyLimiter#released(CoordinatorDto)}) method. The test asserts that only the latency
+     * of a processed SIP, measured by its ingest, is sampled.
+     */
+    @Test
+    public void releasedSamplesLatencyTest() throws Exception {
+        limiter.setInitialLimit(1);
+        limiter.acquire("sip1");
+        CoordinatorDto failed = new CoordinatorDto("sip1", "batch1", SipState.FAILED);
+        failed.setLatency(100 * MILLIS);
+        limiter.released(failed);
+        assertThat(limiter.getLimit(), is(1));
+
+        limiter.acquire("sip2");
+        CoordinatorDto processed = new CoordinatorDto("sip2", "batch1", SipState.PROCESSED);
+        processed.setLatency(100 * MILLIS);
+        limiter.released(processed);
+
+        assertThat(limiter.getLimit(), is(2));
+    }
+
+    /**
+     * Test of ({@link ConcurrencyLimiter#release(String, CoordinatorDto)}) method. The test asserts that the permit
+     * taken by this node is returned right away and that the permit taken by another node is sent to its queue.
+     */
+    @Test
+    public void releaseToNodeTest() throws Exception {
+        limiter.acquire("sip1");
+        limiter.release(ConcurrencyLimiter.NODE, new CoordinatorDto("sip1", "batch1", SipState.PROCESSED));
+        assertThat(limiter.getInFlight(), is(0));
+
+        CoordinatorDto completion = new CoordinatorDto("sip2", "batch1", SipState.FAILED);
+        limiter.release("otherNode", completion);
+        verify(template).convertAndSend("limiter.otherNode", completion);
+    }
+
+    /**
+     * Test of ({@link ConcurrencyLimiter#sample(long)}) method. The test asserts that the limit grows while it is
+     * reached and the latency stays the same and that it drops when the latency climbs.
+     */
+    @Test
+    public void limitFollowsLatencyTest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            saturate();
+            for (int j = 0; j < limiter.getLimit(); j++) {
+                limiter.sample(100 * MILLIS);
+            }
+        }
+        int grown = limiter.getLimit();
+        assertThat(grown, greaterThan(2));
+
+        saturate();
+        for (int j = 0; j < grown; j++) {
+            limiter.sample(1000 * MILLIS);
+        }
+        assertThat(limiter.getLimit(), lessThan(grown));
+    }
+
+    /**
+     * Test of ({@link ConcurrencyLimiter#sample(long)}) method. The test asserts that the limit drops when the disk queue
+     * of the workspace is too long even though the latency does not change.
+     */
+    @Test
+    public void longDiskQueueTest() throws Exception {
+        saturate();
+        limiter.sample(100 * MILLIS);
+        limiter.sample(100 * MILLIS);
+        int limit = limiter.getLimit();
+
+        when(diskQueue.getQueueLength()).thenReturn(100);
+        for (int j = 0; j < limit; j++) {
+            limiter.sample(100 * MILLIS);
+        }
+        assertThat(limiter.getLimit(), lessThan(limit));
+    }
+
+    /**
+     * Takes all the permits and returns them without measuring, so the limit is reached in the current window.
+     */
+    private void saturate() throws InterruptedException {
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire("sip" + i);
+        }
+        for (int i = 0; i < limit; i++) {
+            limiter.release("sip" + i, null);
+        }
+    }
+}
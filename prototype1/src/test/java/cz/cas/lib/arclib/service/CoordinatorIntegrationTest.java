@@ -13,15 +13,18 @@ import org.junit.runner.RunWith;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.jms.core.JmsTemplate;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.util.FileSystemUtils;
 
 import javax.inject.Inject;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Collection;
 import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
 
-import static cz.cas.lib.arclib.util.Utils.asSet;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
@@ -49,12 +52,12 @@ public class CoordinatorIntegrationTest implements ApiTest {
     public static final String SIP_SOURCES = "../SIP_packages";
 
     /**
-     * Test of ({@link CoordinatorService#start(String)}) method. The method is passed a path to the test folder containing three empty
+     * Test of ({@link CoordinatorService#start(String, int, Integer)}) method. The method is passed a path to the test folder containing three empty
      * files. The test asserts that:
      *
      * 1. there is a new instance of batch created and its state is PROCESSING
      * 2. there are three SIP packages created (one for each file) and their state is PROCESSED
-     * 3. SIP ids that belong to the batch are the same as the ids of the SIP packages stored in database
+     * 3. all the SIP packages stored in database belong to the batch
      */
     @Test
     public void startTest() throws Exception {
@@ -79,18 +82,15 @@ public class CoordinatorIntegrationTest implements ApiTest {
         allSips.forEach(sip -> {
             assertThat(sip.getState(), Is.is(SipState.PROCESSED));
         });
-
-        List<String> allSipsIds = allSips.stream()
-                .map(DomainObject::getId)
-                .collect(Collectors.toList());
-        Set<String> batchSipIds = batch.getIds();
-        assertThat(batchSipIds.toArray(), is(allSipsIds.toArray()));
+        allSips.forEach(sip -> {
+            assertThat(sip.getBatchId(), is(batchId));
+        });
     }
 
 
     /**
      * Test of ({@link CoordinatorService#cancel(String)}) method. There are two methods called in a row:
-     * 1. method ({@link CoordinatorService#start(String)}) passed a path to the test folder containing three empty files
+     * 1. method ({@link CoordinatorService#start(String, int, Integer)}) passed a path to the test folder containing three empty files
      * 2. method ({@link CoordinatorService#cancel(String)}) that cancels the batch
      *
      * The test asserts that:
@@ -119,7 +119,7 @@ public class CoordinatorIntegrationTest implements ApiTest {
 
     /**
      * Test of ({@link CoordinatorService#cancel(String)}) method. There are two methods called in a row:
-     * 1. method ({@link CoordinatorService#start(String)}) passed a path to the test folder containing three empty files
+     * 1. method ({@link CoordinatorService#start(String, int, Integer)}) passed a path to the test folder containing three empty files
      * 2. method ({@link CoordinatorService#suspend(String)}) that suspends the batch
      *
      * 1. the state of the batch is SUSPENDED
@@ -155,7 +155,7 @@ public class CoordinatorIntegrationTest implements ApiTest {
      * The test asserts that:
      * 1. the batch is in the state PROCESSING
      * 2. there are three SIP packages created (one for each file) and their state is PROCESSED
-     * 3. sip ids that belong to the batch are the same as the ids of the sip packages stored in database
+     * 3. all the sip packages stored in database belong to the batch
      */
     @Test
     public void resumeTest() throws Exception {
@@ -188,47 +188,95 @@ public class CoordinatorIntegrationTest implements ApiTest {
         allSips.forEach(sip -> {
             assertThat(sip.getState(), is(SipState.PROCESSED));
         });
-
-        List<String> allSipsIds = allSips.stream()
-                .map(DomainObject::getId)
-                .collect(Collectors.toList());
-        Set<String> batchSipIds = batch.getIds();
-        assertThat(batchSipIds.toArray(), is(allSipsIds.toArray()));
+        allSips.forEach(sip -> {
+            assertThat(sip.getBatchId(), is(batchId));
+        });
     }
 
     /**
      * Test of ({@link CoordinatorService#resume(String}) method. The method is passed ID of a batch that:
      * 1. is in the state SUSPENDED
-     * 2. has a SIP package in the state PROCESSING
+     * 2. has a SIP package in the state PROCESSING with a valid lease
      *
      * The test asserts that:
-     * 1. the batch has not resumed (the return value of the method is false)
-     * 2. the batch state is SUSPENDED
+     * 1. the batch has resumed (the return value of the method is true)
+     * 2. the batch state is PROCESSING
+     * 3. the SIP package is left in the state PROCESSING
      */
     @Test
-    public void resumeTestSipWithStateProcessing() throws Exception {
+    public void resumeTestSipWithValidLease() throws Exception {
+        Batch batch = new Batch();
+        batch.setState(BatchState.SUSPENDED);
+        batchStore.save(batch);
+
         Sip sip = new Sip();
         sip.setState(SipState.PROCESSING);
+        sip.setLeaseExpiration(Instant.now().plus(1, ChronoUnit.HOURS));
+        sip.setBatchId(batch.getId());
         sipStore.save(sip);
 
+        service.reconcile(batch.getId());
+
+        final String[] result = new String[1];
+
+        mvc(api).perform(post("/api/coordinator/" + batch.getId() + "/resume"))
+                .andExpect(status().is2xxSuccessful())
+                .andDo(r -> result[0] = r.getResponse().getContentAsString());
+
+        Boolean hasResumed = Boolean.valueOf(result[0]);
+
+        Thread.sleep(2000);
+
+        assertThat(hasResumed, is(true));
+        batch = batchStore.find(batch.getId());
+        assertThat(batch.getState(), is(BatchState.PROCESSING));
+        assertThat(batch.getProcessingCount(), is(1));
+
+        sip = sipStore.find(sip.getId());
+        assertThat(sip.getState(), is(SipState.PROCESSING));
+    }
+
+    /**
+     * Test of ({@link CoordinatorService#resume(String}) method. The method is passed ID of a batch that:
+     * 1. is in the state SUSPENDED
+     * 2. has a SIP package in the state PROCESSING whose lease has expired
+     *
+     * The test asserts that:
+     * 1. the batch has resumed (the return value of the method is true)
+     * 2. the SIP package has been processed again and its state is PROCESSED
+     * 3. the batch state is PROCESSED
+     */
+    @Test
+    public void resumeTestSipWithExpiredLease() throws Exception {
         Batch batch = new Batch();
         batch.setState(BatchState.SUSPENDED);
-        batch.setIds(asSet(sip.getId()));
         batchStore.save(batch);
 
+        Sip sip = new Sip();
+        sip.setState(SipState.PROCESSING);
+        sip.setLeaseExpiration(Instant.now().minus(1, ChronoUnit.HOURS));
+        sip.setBatchId(batch.getId());
+        sipStore.save(sip);
+
+        service.reconcile(batch.getId());
+
         final String[] result = new String[1];
 
         mvc(api).perform(post("/api/coordinator/" + batch.getId() + "/resume"))
                 .andExpect(status().is2xxSuccessful())
                 .andDo(r -> result[0] = r.getResponse().getContentAsString());
 
-        Boolean hasResumed = Boolean.getBoolean(result[0]);
+        Boolean hasResumed = Boolean.valueOf(result[0]);
 
         Thread.sleep(2000);
 
-        assertThat(hasResumed, is(false));
+        assertThat(hasResumed, is(true));
+
+        sip = sipStore.find(sip.getId());
+        assertThat(sip.getState(), is(SipState.PROCESSED));
+
         batch = batchStore.find(batch.getId());
-        assertThat(batch.getState(), is(BatchState.SUSPENDED));
+        assertThat(batch.getState(), is(BatchState.PROCESSED));
     }
 
     /**
@@ -242,18 +290,21 @@ public class CoordinatorIntegrationTest implements ApiTest {
      */
     @Test
     public void resumeTestNoSipWithStateProcessing() throws Exception {
+        Batch batch = new Batch();
+        batch.setState(BatchState.SUSPENDED);
+        batchStore.save(batch);
+
         Sip sip = new Sip();
         sip.setState(SipState.NEW);
+        sip.setBatchId(batch.getId());
         sipStore.save(sip);
 
         Sip sip2 = new Sip();
         sip2.setState(SipState.PROCESSED);
+        sip2.setBatchId(batch.getId());
         sipStore.save(sip2);
 
-        Batch batch = new Batch();
-        batch.setState(BatchState.SUSPENDED);
-        batch.setIds(asSet(sip.getId(), sip2.getId()));
-        batchStore.save(batch);
+        service.reconcile(batch.getId());
 
         final String[] result = new String[1];
 
@@ -276,6 +327,107 @@ public class CoordinatorIntegrationTest implements ApiTest {
         assertThat(sip2.getState(), is(SipState.PROCESSED));
     }
 
+    /**
+     * Test of ({@link CoordinatorService#reconcile(String)}) method. The method is passed ID of a batch whose SIP counters
+     * do not correspond to the states of its SIP packages.
+     *
+     * The test asserts that after the reconciliation the counters of the batch correspond to the states of the SIP packages.
+     */
+    @Test
+    public void reconcileTest() throws Exception {
+        Batch batch = new Batch();
+        batch.setState(BatchState.SUSPENDED);
+        batch.setNewCount(3);
+        batchStore.save(batch);
+
+        Sip sip = new Sip();
+        sip.setState(SipState.NEW);
+        sip.setBatchId(batch.getId());
+        sipStore.save(sip);
+
+        Sip sip2 = new Sip();
+        sip2.setState(SipState.PROCESSING);
+        sip2.setBatchId(batch.getId());
+        sipStore.save(sip2);
+
+        Sip sip3 = new Sip();
+        sip3.setState(SipState.FAILED);
+        sip3.setBatchId(batch.getId());
+        sipStore.save(sip3);
+
+        mvc(api).perform(post("/api/coordinator/" + batch.getId() + "/reconcile"))
+                .andExpect(status().is2xxSuccessful());
+
+        batch = batchStore.find(batch.getId());
+        assertThat(batch.getNewCount(), is(1));
+        assertThat(batch.getProcessingCount(), is(1));
+        assertThat(batch.getProcessedCount(), is(0));
+        assertThat(batch.getFailedCount(), is(1));
+    }
+
+    /**
+     * Test of ({@link CoordinatorService#reconcile(String)}) method. The method is passed ID of a batch left open for
+     * registering by a crash, all its SIP packages have already been processed.
+     *
+     * The test asserts that after the reconciliation the batch is closed for registering and its state is PROCESSED.
+     */
+    @Test
+    public void reconcileTestInterruptedRegistration() throws Exception {
+        Batch batch = new Batch();
+        batch.setState(BatchState.PROCESSING);
+        batch.setRegistering(true);
+        batchStore.save(batch);
+
+        Sip sip = new Sip();
+        sip.setState(SipState.PROCESSED);
+        sip.setBatchId(batch.getId());
+        sipStore.save(sip);
+
+        service.reconcile(batch.getId());
+
+        batch = batchStore.find(batch.getId());
+        assertThat(batch.isRegistering(), is(false));
+        assertThat(batch.getState(), is(BatchState.PROCESSED));
+        assertThat(batch.getProcessedCount(), is(1));
+    }
+
+    /**
+     * Test of ({@link CoordinatorService#start(String, int, Integer)}) method. The method is passed a path to a folder
+     * containing two copies of the same SIP package. The test asserts that:
+     *
+     * 1. the batch is processed
+     * 2. one of the SIP packages is PROCESSED and the other one is DUPLICATE, linked to the first one
+     * 3. the counters of the batch contain one processed and one duplicate SIP package
+     */
+    @Test
+    public void startTestDuplicateSip() throws Exception {
+        Path folder = Files.createTempDirectory("duplicates");
+        try {
+            Path template = Paths.get(SIP_SOURCES, "KPW01169310");
+            FileSystemUtils.copyRecursively(template.toFile(), folder.resolve("original").toFile());
+            FileSystemUtils.copyRecursively(template.toFile(), folder.resolve("resubmitted").toFile());
+
+            String batchId = service.start(folder.toString(), 1, null);
+
+            /*
+            wait until all the JMS communication is finished and the proper data is stored in DB
+             */
+            Thread.sleep(6000);
+
+            Batch batch = batchStore.find(batchId);
+            assertThat(batch.getState(), is(BatchState.PROCESSED));
+            assertThat(batch.getProcessedCount(), is(1));
+            assertThat(batch.getDuplicateCount(), is(1));
+
+            List<Sip> sips = sipStore.findByBatch(batchId, null, null, 10);
+            Sip processed = sips.stream().filter(sip -> sip.getState() == SipState.PROCESSED).findFirst().get();
+            Sip duplicate = sips.stream().filter(sip -> sip.getState() == SipState.DUPLICATE).findFirst().get();
+            assertThat(duplicate.getDuplicateOf(), is(processed.getId()));
+        } finally {
+            FileSystemUtils.deleteRecursively(folder.toFile());
+        }
+    }
+
     @After
     public void testTearDown() throws SQLException {
         sipStore.findAll().forEach(sipStore::delete);
@@ -19,12 +19,12 @@ public class CoordinatorServiceTest implements ApiTest {
     private CoordinatorService service;
 
     /**
-     * Test of ({@link CoordinatorService#start(String)}) method. The test asserts that a GeneralException is thrown when a non existent path
+     * Test of ({@link CoordinatorService#start(String, int, Integer)}) method. The test asserts that a GeneralException is thrown when a non existent path
      * is provided.
      */
     @Test
     public void startTestNonExistentPath() {
-        ThrowableAssertion.assertThrown(() -> service.start("/nonExistentPath"))
+        ThrowableAssertion.assertThrown(() -> service.start("/nonExistentPath", 1, null))
                 .isInstanceOf(GeneralException.class);
     }
 
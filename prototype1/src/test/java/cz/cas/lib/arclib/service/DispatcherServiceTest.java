@@ -0,0 +1,235 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.SipState;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jms.core.JmsTemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class DispatcherServiceTest {
+
+    private DispatcherService service;
+
+    private JmsTemplate template;
+
+    private Batch batch(String id, int priority) {
+        Batch batch = new Batch();
+        batch.setId(id);
+        batch.setPriority(priority);
+        return batch;
+    }
+
+    /**
+     * Completes the given number of SIPs in the order in which they were sent to workers.
+     */
+    private void complete(Deque<CoordinatorDto> sent, int count) {
+        for (int i = 0; i < count; i++) {
+            service.complete(sent.poll());
+        }
+    }
+
+    @Before
+    public void setUp() {
+        template = mock(JmsTemplate.class);
+
+        service = new DispatcherService();
+        service.setTemplate(template);
+        service.setMaxInFlight(3);
+        service.setMaxInFlightPerBatch(2);
+
+        CircuitBreakerFactory breakerFactory = new CircuitBreakerFactory();
+        breakerFactory.setWindowSize(4);
+        breakerFactory.setMinimumOutcomes(4);
+        breakerFactory.setFailureThreshold(0.5);
+        breakerFactory.setOpenDuration(60000);
+        breakerFactory.setProbes(1);
+        breakerFactory.checkSettings();
+        service.setBreakerFactory(breakerFactory);
+    }
+
+    /**
+     * Test of ({@link DispatcherService#enqueue(Batch, java.util.Collection)}) method. Five SIPs of one batch are queued.
+     * The test asserts that only the number of SIPs allowed by the per batch limit is sent to workers and the rest stays
+     * queued.
+     */
+    @Test
+    public void enqueueRespectsBatchLimitTest() {
+        service.enqueue(batch("batch1", 1), asList("sip1", "sip2", "sip3", "sip4", "sip5"));
+
+        verify(template, times(2)).convertAndSend(eq("worker"), any(CoordinatorDto.class));
+
+        DispatchStateDto state = service.getState();
+        assertThat(state.getInFlight(), is(2));
+        assertThat(state.getQueued(), is(3));
+        assertThat(state.getBatches().get("batch1").getInFlight(), is(2));
+    }
+
+    /**
+     * Test of ({@link DispatcherService#enqueue(Batch, java.util.Collection)}) method. SIPs of two batches are queued.
+     * The test asserts that the total number of SIPs in flight does not exceed the node limit.
+     */
+    @Test
+    public void enqueueRespectsNodeLimitTest() {
+        service.enqueue(batch("batch1", 1), asList("sip1", "sip2", "sip3"));
+        service.enqueue(batch("batch2", 1), asList("sip4", "sip5", "sip6"));
+
+        verify(template, times(3)).convertAndSend(eq("worker"), any(CoordinatorDto.class));
+
+        DispatchStateDto state = service.getState();
+        assertThat(state.getInFlight(), is(3));
+        assertThat(state.getQueued(), is(3));
+    }
+
+    /**
+     * Test of ({@link DispatcherService#enqueue(Batch, java.util.Collection)}) method. The test asserts that the sent
+     * messages name this node as their dispatcher, so the completions are reported back to it.
+     */
+    @Test
+    public void enqueueNamesDispatcherTest() {
+        List<CoordinatorDto> sent = new ArrayList<>();
+        doAnswer(invocation -> sent.add((CoordinatorDto) invocation.getArguments()[1]))
+                .when(template).convertAndSend(eq("worker"), any(CoordinatorDto.class));
+
+        service.enqueue(batch("batch1", 1), asList("sip1", "sip2"));
+
+        assertThat(sent.size(), is(2));
+        sent.forEach(dto -> assertThat(dto.getDispatcher(), is(ConcurrencyLimiter.NODE)));
+        assertThat(DispatcherService.completedDestination(sent.get(0).getDispatcher()),
+                is("completed." + ConcurrencyLimiter.NODE));
+    }
+
+    /**
+     * Test of ({@link DispatcherService#complete(CoordinatorDto)}) method. The test asserts that the completion of a SIP
+     * frees its credit and the next queued SIP is sent, and that a repeated completion of the same SIP is ignored.
+     */
+    @Test
+    public void completeFreesCreditTest() {
+        service.enqueue(batch("batch1", 1), asList("sip1", "sip2", "sip3"));
+        verify(template, times(2)).convertAndSend(eq("worker"), any(CoordinatorDto.class));
+
+        service.complete(new CoordinatorDto("sip1", "batch1"));
+        service.complete(new CoordinatorDto("sip1", "batch1"));
+
+        verify(template, times(3)).convertAndSend(eq("worker"), any(CoordinatorDto.class));
+
+        DispatchStateDto state = service.getState();
+        assertThat(state.getInFlight(), is(2));
+        assertThat(state.getQueued(), is(0));
+    }
+
+    /**
+     * Test of ({@link DispatcherService#complete(CoordinatorDto)}) method. Two batches are running, the SIPs of the first
+     * one fail and the SIPs of the second one are processed.
+     * <p>
+     * The test asserts that the circuit breaker of the failing batch opens after the minimal number of outcomes and no
+     * more of its SIPs is sent, while the other batch keeps being dispatched.
+     */
+    @Test
+    public void failingBatchPausedTest() {
+        Deque<CoordinatorDto> sent = new ArrayDeque<>();
+        doAnswer(invocation -> sent.add((CoordinatorDto) invocation.getArguments()[1]))
+                .when(template).convertAndSend(eq("worker"), any(CoordinatorDto.class));
+
+        service.enqueue(batch("broken", 1), IntStream.range(0, 1000)
+                .mapToObj(i -> "broken" + i)
+                .collect(Collectors.toList()));
+        service.enqueue(batch("healthy", 1), IntStream.range(0, 1000)
+                .mapToObj(i -> "healthy" + i)
+                .collect(Collectors.toList()));
+
+        int brokenSent = 0;
+        for (int i = 0; i < 100; i++) {
+            CoordinatorDto dto = sent.poll();
+            boolean broken = dto.getBatchId().equals("broken");
+            if (broken) {
+                brokenSent++;
+            }
+            service.complete(new CoordinatorDto(dto.getSipId(), dto.getBatchId(),
+                    broken ? SipState.FAILED : SipState.PROCESSED));
+        }
+
+        DispatchStateDto state = service.getState();
+        assertThat(state.getBatches().get("broken").getBreaker(), is(BreakerState.OPEN));
+        assertThat(state.getBatches().get("healthy").getBreaker(), is(BreakerState.CLOSED));
+        assertThat(brokenSent <= 4 + 2, is(true));
+        assertThat(state.getBatches().get("broken").getInFlight(), is(0));
+        assertThat(state.getBatches().get("healthy").getInFlight(), is(2));
+    }
+
+    /**
+     * Test of ({@link DispatcherService#enqueue(Batch, java.util.Collection)}) method. A batch of 100 000 SIPs is running
+     * when a batch of 10 SIPs is queued. Workers complete the SIPs in the order in which they were sent.
+     * <p>
+     * The test asserts that the small batch is completed within a bounded number of completions, i.e. it does not wait
+     * behind the SIPs of the huge batch, and that a batch with priority 3 gets about three times more of the workers than
+     * the huge batch with priority 1.
+     */
+    @Test
+    public void smallBatchNotStarvedTest() {
+        Deque<CoordinatorDto> sent = new ArrayDeque<>();
+        List<CoordinatorDto> all = new ArrayList<>();
+        doAnswer(invocation -> {
+            CoordinatorDto dto = (CoordinatorDto) invocation.getArguments()[1];
+            sent.add(dto);
+            return all.add(dto);
+        }).when(template).convertAndSend(eq("worker"), any(CoordinatorDto.class));
+
+        service.enqueue(batch("huge", 1), IntStream.range(0, 100000)
+                .mapToObj(i -> "huge" + i)
+                .collect(Collectors.toList()));
+        complete(sent, 1000);
+
+        service.enqueue(batch("small", 1), IntStream.range(0, 10)
+                .mapToObj(i -> "small" + i)
+                .collect(Collectors.toList()));
+
+        int completions = 0;
+        while (service.getState().getBatches().containsKey("small")) {
+            complete(sent, 1);
+            completions++;
+        }
+        assertThat(completions <= 2 * 10 + 3, is(true));
+
+        Batch urgent = batch("urgent", 3);
+        urgent.setMaxInFlight(3);
+        int sentBefore = all.size();
+        service.enqueue(urgent, IntStream.range(0, 100)
+                .mapToObj(i -> "urgent" + i)
+                .collect(Collectors.toList()));
+        complete(sent, 40);
+
+        List<CoordinatorDto> sentAfter = all.subList(sentBefore, all.size());
+        long urgentSent = sentAfter.stream().filter(dto -> dto.getBatchId().equals("urgent")).count();
+        long hugeSent = sentAfter.stream().filter(dto -> dto.getBatchId().equals("huge")).count();
+        assertThat(urgentSent >= 2 * hugeSent, is(true));
+    }
+
+    /**
+     * Test of ({@link DispatcherService#discard(String)}) method. The test asserts that the queued SIPs of the batch are
+     * dropped while the SIPs in flight keep their credits.
+     */
+    @Test
+    public void discardTest() {
+        service.enqueue(batch("batch1", 1), asList("sip1", "sip2", "sip3", "sip4"));
+
+        service.discard("batch1");
+
+        DispatchStateDto state = service.getState();
+        assertThat(state.getInFlight(), is(2));
+        assertThat(state.getQueued(), is(0));
+    }
+}
@@ -0,0 +1,90 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.domain.SipState;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class IngestMetricsTest {
+
+    private SimpleMeterRegistry registry;
+    private IngestMetrics metrics;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+
+        metrics = new IngestMetrics();
+        metrics.setRegistry(registry);
+    }
+
+    /**
+     * Test of ({@link IngestMetrics#sipTransition(SipState, SipState, int)}) and
+     * ({@link IngestMetrics#batchTransition(BatchState, BatchState)}) methods. The test asserts that the transitions
+     * are counted separately for each pair of states and that transitions to the same state are not counted.
+     */
+    @Test
+    public void transitionsTest() {
+        metrics.sipTransition(null, SipState.NEW, 3);
+        metrics.sipTransition(SipState.NEW, SipState.PROCESSING);
+        metrics.sipTransition(SipState.NEW, SipState.PROCESSING);
+        metrics.sipTransition(SipState.PROCESSED, SipState.PROCESSED);
+        metrics.batchTransition(null, BatchState.PROCESSING);
+
+        assertThat(registry.counter("arclib.sip.transitions", "from", "null", "to", "NEW").count(), is(3.0));
+        assertThat(registry.counter("arclib.sip.transitions", "from", "NEW", "to", "PROCESSING").count(), is(2.0));
+        assertThat(registry.counter("arclib.sip.transitions", "from", "PROCESSED", "to", "PROCESSED").count(), is(0.0));
+        assertThat(registry.counter("arclib.batch.transitions", "from", "null", "to", "PROCESSING").count(), is(1.0));
+    }
+
+    /**
+     * Test of ({@link IngestMetrics#recordStage(String, long)}) method. The test asserts that the durations are
+     * recorded by the timer of the stage and are listed by ({@link IngestMetrics#getMeters()}).
+     */
+    @Test
+    public void recordStageTest() {
+        metrics.recordStage(IngestMetrics.STAGE_STAGING, 10);
+        metrics.recordStage(IngestMetrics.STAGE_STAGING, 30);
+        metrics.recordStage(IngestMetrics.STAGE_CLEANUP, 5);
+
+        List<MeterDto> meters = metrics.getMeters();
+        MeterDto staging = meters.stream()
+                .filter(m -> IngestMetrics.STAGE_STAGING.equals(m.getTags().get("stage")))
+                .findFirst()
+                .get();
+
+        assertThat(meters.size(), is(2));
+        assertThat(staging.getName(), is("arclib.ingest.stage"));
+        assertThat(staging.getMeasurements().get("COUNT"), is(2.0));
+    }
+
+    /**
+     * Test of ({@link IngestMetrics#sipProcessed(String, long)}) method. The test asserts that the processed SIPs and
+     * bytes are summed per batch and that the rates are computed.
+     */
+    @Test
+    public void batchThroughputTest() throws InterruptedException {
+        metrics.batchStarted("batch1");
+        Thread.sleep(50);
+        metrics.sipProcessed("batch1", 100);
+        metrics.sipProcessed("batch1", 300);
+        metrics.sipProcessed("batch2", 50);
+
+        Map<String, BatchThroughputDto> throughput = metrics.getBatchThroughput();
+
+        assertThat(throughput.size(), is(2));
+        assertThat(throughput.get("batch1").getSips(), is(2L));
+        assertThat(throughput.get("batch1").getBytes(), is(400L));
+        assertThat(throughput.get("batch1").getSipsPerSecond(), greaterThan(0.0));
+        assertThat(throughput.get("batch1").getBytesPerSecond(), greaterThan(0.0));
+        assertThat(throughput.get("batch2").getSips(), is(1L));
+    }
+}
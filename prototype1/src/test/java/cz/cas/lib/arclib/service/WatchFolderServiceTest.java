@@ -0,0 +1,239 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.domain.Batch;
+import cz.cas.lib.arclib.domain.BatchState;
+import cz.cas.lib.arclib.store.BatchStore;
+import cz.cas.lib.arclib.store.SipStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+public class WatchFolderServiceTest {
+
+    private Path folder;
+    private WatchFolderService service;
+    private CoordinatorService coordinator;
+    private BatchStore batchStore;
+    private Batch batch;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = Files.createTempDirectory("watch");
+
+        batch = new Batch();
+        batch.setId("rolling");
+        batch.setState(BatchState.PROCESSING);
+
+        coordinator = mock(CoordinatorService.class);
+        when(coordinator.open(anyInt(), any(), eq(true))).thenReturn(batch);
+
+        SipStore sipStore = mock(SipStore.class);
+        when(sipStore.existsByPath(anyString())).thenReturn(false);
+
+        batchStore = mock(BatchStore.class);
+        when(batchStore.findWatchedRegistering()).thenReturn(Collections.emptyList());
+        when(batchStore.find("rolling")).thenReturn(batch);
+
+        service = new WatchFolderService();
+        service.setFolders(new String[]{folder.toString()});
+        service.setStableFor(0);
+        service.setBatchSize(2);
+        service.setIdleTimeout(60000);
+        service.setCoordinatorNode(true);
+        service.setCoordinator(coordinator);
+        service.setSipStore(sipStore);
+        service.setBatchStore(batchStore);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        service.stop();
+        FileSystemUtils.deleteRecursively(folder.toFile());
+    }
+
+    /**
+     * Test of ({@link WatchFolderService#checkCandidates()}) method. A SIP is found by the rescan of the folder. The test
+     * asserts that the SIP is not registered by the first check, which only takes its snapshot, and that it is appended
+     * to the rolling batch by the second check, because it has not changed.
+     */
+    @Test
+    public void stableSipRegisteredTest() throws IOException {
+        Path sip = createSip("sip1");
+
+        service.rescan();
+        service.checkCandidates();
+        verify(coordinator, never()).register(any(), any());
+
+        service.checkCandidates();
+        verify(coordinator).register(batch, Collections.singletonList(sip));
+
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+        verify(coordinator, times(1)).register(any(), any());
+    }
+
+    /**
+     * Test of ({@link WatchFolderService#checkCandidates()}) method. The test asserts that a SIP whose files are still
+     * being written is not registered until it stops changing.
+     */
+    @Test
+    public void changingSipNotRegisteredTest() throws IOException {
+        Path sip = createSip("sip1");
+
+        service.rescan();
+        service.checkCandidates();
+
+        Files.write(sip.resolve("file.txt"), "more content".getBytes());
+        Files.setLastModifiedTime(sip.resolve("file.txt"), FileTime.fromMillis(System.currentTimeMillis() + 1000));
+        service.checkCandidates();
+        verify(coordinator, never()).register(any(), any());
+
+        service.checkCandidates();
+        verify(coordinator).register(batch, Collections.singletonList(sip));
+    }
+
+    /**
+     * Test of ({@link WatchFolderService#checkCandidates()}) method. The test asserts that the rolling batch is closed
+     * and a new one is opened when the configured number of SIPs is appended.
+     */
+    @Test
+    public void rollingBatchTest() throws IOException {
+        Path sip1 = createSip("sip1");
+        Path sip2 = createSip("sip2");
+
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+        verify(coordinator, times(1)).open(anyInt(), any(), eq(true));
+        verify(coordinator, never()).close(anyString());
+
+        createSip("sip3");
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+
+        verify(coordinator).close(eq("rolling"));
+        verify(coordinator, times(2)).open(anyInt(), any(), eq(true));
+    }
+
+    /**
+     * Test of ({@link WatchFolderService#closeIdle()}) method. The test asserts that the rolling batch is closed when
+     * no SIP has been appended to it for the configured time, and that the next SIP opens a new rolling batch.
+     */
+    @Test
+    public void idleRollingBatchClosedTest() throws IOException {
+        createSip("sip1");
+
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+
+        service.closeIdle();
+        verify(coordinator, never()).close(anyString());
+
+        service.setIdleTimeout(0);
+        service.closeIdle();
+        verify(coordinator).close(eq("rolling"));
+
+        createSip("sip2");
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+        verify(coordinator, times(2)).open(anyInt(), any(), eq(true));
+    }
+
+    /**
+     * Test of ({@link WatchFolderService#start()}) method. The test asserts that the rolling batches left open by the
+     * previous run are closed on startup, the batches being processed are also resumed, the suspended ones are not.
+     */
+    @Test
+    public void leftoverRollingBatchClosedTest() throws IOException {
+        Batch processing = new Batch();
+        processing.setId("processing");
+        processing.setState(BatchState.PROCESSING);
+
+        Batch suspended = new Batch();
+        suspended.setId("suspended");
+        suspended.setState(BatchState.SUSPENDED);
+
+        when(batchStore.findWatchedRegistering()).thenReturn(Arrays.asList(processing, suspended));
+
+        service.start();
+
+        verify(batchStore).finishRegistration(eq("processing"));
+        verify(coordinator).resume(eq("processing"));
+        verify(coordinator).close(eq("suspended"));
+        verify(coordinator, never()).resume(eq("suspended"));
+    }
+
+    /**
+     * Test of ({@link WatchFolderService#checkCandidates()}) method. The test asserts that the SIPs found after the rolling
+     * batch has been canceled are appended to a new rolling batch, not to the canceled one.
+     */
+    @Test
+    public void canceledRollingBatchReplacedTest() throws IOException {
+        createSip("sip1");
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+
+        batch.setState(BatchState.CANCELED);
+        Batch next = new Batch();
+        next.setId("next");
+        next.setState(BatchState.PROCESSING);
+        when(coordinator.open(anyInt(), any(), eq(true))).thenReturn(next);
+
+        Path sip2 = createSip("sip2");
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+
+        verify(coordinator).close(eq("rolling"));
+        verify(coordinator).register(next, Collections.singletonList(sip2));
+    }
+
+    /**
+     * Test of ({@link WatchFolderService#start()}) method. The test asserts that a node other than the coordinator
+     * neither closes the rolling batches left open nor registers the SIPs of the folders.
+     */
+    @Test
+    public void otherNodeDoesNotWatchTest() throws IOException {
+        Batch leftover = new Batch();
+        leftover.setId("leftover");
+        leftover.setState(BatchState.PROCESSING);
+        when(batchStore.findWatchedRegistering()).thenReturn(Collections.singletonList(leftover));
+        service.setCoordinatorNode(false);
+
+        service.start();
+        createSip("sip1");
+        service.rescan();
+        service.checkCandidates();
+        service.checkCandidates();
+
+        verify(batchStore, never()).findWatchedRegistering();
+        verify(coordinator, never()).close(anyString());
+        verify(coordinator, never()).register(any(), any());
+    }
+
+    private Path createSip(String name) throws IOException {
+        Path sip = folder.resolve(name);
+        Files.createDirectories(sip);
+        Files.write(sip.resolve("file.txt"), "content".getBytes());
+        return sip;
+    }
+}
@@ -17,7 +17,6 @@ import org.springframework.test.context.junit4.SpringRunner;
 import javax.inject.Inject;
 import java.sql.SQLException;
 
-import static cz.cas.lib.arclib.util.Utils.asSet;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 
@@ -50,14 +49,16 @@ public class WorkerServiceTest {
      */
     @Test
     public void processSipTest() throws InterruptedException {
+        Batch batch = new Batch();
+        batch.setState(BatchState.PROCESSING);
+        batchStore.save(batch);
+
         Sip sip = new Sip();
         sip.setState(SipState.NEW);
+        sip.setBatchId(batch.getId());
         sipStore.save(sip);
 
-        Batch batch = new Batch();
-        batch.setState(BatchState.PROCESSING);
-        batch.setIds(asSet(sip.getId()));
-        batchStore.save(batch);
+        batchStore.recount(batch.getId());
 
         service.processSip(new CoordinatorDto(sip.getId(), batch.getId()));
 
@@ -82,14 +83,16 @@ public class WorkerServiceTest {
      */
     @Test
     public void processSipTestBatchStateSuspended() throws InterruptedException {
+        Batch batch = new Batch();
+        batch.setState(BatchState.SUSPENDED);
+        batchStore.save(batch);
+
         Sip sip = new Sip();
         sip.setState(SipState.NEW);
+        sip.setBatchId(batch.getId());
         sipStore.save(sip);
 
-        Batch batch = new Batch();
-        batch.setState(BatchState.SUSPENDED);
-        batch.setIds(asSet(sip.getId()));
-        batchStore.save(batch);
+        batchStore.recount(batch.getId());
 
         service.processSip(new CoordinatorDto(sip.getId(), batch.getId()));
 
@@ -114,14 +117,16 @@ public class WorkerServiceTest {
      */
     @Test
     public void processSipTestBatchStateCanceled() throws InterruptedException {
+        Batch batch = new Batch();
+        batch.setState(BatchState.CANCELED);
+        batchStore.save(batch);
+
         Sip sip = new Sip();
         sip.setState(SipState.NEW);
+        sip.setBatchId(batch.getId());
         sipStore.save(sip);
 
-        Batch batch = new Batch();
-        batch.setState(BatchState.CANCELED);
-        batch.setIds(asSet(sip.getId()));
-        batchStore.save(batch);
+        batchStore.recount(batch.getId());
 
         service.processSip(new CoordinatorDto(sip.getId(), batch.getId()));
 
@@ -141,18 +146,21 @@ public class WorkerServiceTest {
      */
     @Test
     public void stopAtMultipleFailuresTestHalfPackagesFailed() throws InterruptedException {
+        Batch batch = new Batch();
+        batch.setState(BatchState.PROCESSING);
+        batchStore.save(batch);
+
         Sip sip = new Sip();
         sip.setState(SipState.FAILED);
+        sip.setBatchId(batch.getId());
         sipStore.save(sip);
 
         Sip sip2 = new Sip();
         sip2.setState(SipState.NEW);
+        sip2.setBatchId(batch.getId());
         sipStore.save(sip2);
 
-        Batch batch = new Batch();
-        batch.setState(BatchState.PROCESSING);
-        batch.setIds(asSet(sip.getId(), sip2.getId()));
-        batchStore.save(batch);
+        batchStore.recount(batch.getId());
 
         service.processSip(new CoordinatorDto(sip2.getId(), batch.getId()));
 
@@ -171,22 +179,26 @@ public class WorkerServiceTest {
      */
     @Test
     public void stopAtMultipleFailuresTestMoreThanHalfPackagesFailed() throws InterruptedException {
+        Batch batch = new Batch();
+        batch.setState(BatchState.PROCESSING);
+        batchStore.save(batch);
+
         Sip sip = new Sip();
         sip.setState(SipState.PROCESSING);
+        sip.setBatchId(batch.getId());
         sipStore.save(sip);
 
         Sip sip2 = new Sip();
         sip2.setState(SipState.FAILED);
+        sip2.setBatchId(batch.getId());
         sipStore.save(sip2);
 
         Sip sip3 = new Sip();
         sip3.setState(SipState.FAILED);
+        sip3.setBatchId(batch.getId());
         sipStore.save(sip3);
 
-        Batch batch = new Batch();
-        batch.setState(BatchState.PROCESSING);
-        batch.setIds(asSet(sip.getId(), sip2.getId(), sip3.getId()));
-        batchStore.save(batch);
+        batchStore.recount(batch.getId());
 
         service.processSip(new CoordinatorDto(sip3.getId(), batch.getId()));
 
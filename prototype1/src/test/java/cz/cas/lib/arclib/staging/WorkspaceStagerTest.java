@@ -0,0 +1,121 @@
+package cz.cas.lib.arclib.staging;
+
+import cz.cas.lib.arclib.helper.ThrowableAssertion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class WorkspaceStagerTest {
+
+    private Path root;
+    private Path sip;
+    private WorkspaceStager stager;
+    private ParallelCopyStagingStrategy copyStrategy;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("staging");
+        sip = root.resolve("sip");
+        Files.createDirectories(sip.resolve("ALTO"));
+        Files.write(sip.resolve("info.xml"), "info".getBytes());
+        Files.write(sip.resolve("ALTO").resolve("page1.xml"), "page1".getBytes());
+
+        copyStrategy = new ParallelCopyStagingStrategy();
+        copyStrategy.setThreads(2);
+
+        stager = new WorkspaceStager();
+        stager.setWorkspace(root.resolve("workspace").toString());
+        stager.setLinkStrategy(new HardLinkStagingStrategy());
+        stager.setCopyStrategy(copyStrategy);
+        stager.setInPlaceStrategy(new InPlaceStagingStrategy());
+    }
+
+    @After
+    public void tearDown() {
+        copyStrategy.shutdown();
+        FileSystemUtils.deleteRecursively(root.toFile());
+    }
+
+    /**
+     * Test of ({@link WorkspaceStager#stage(String, String)}) method with the mode COPY. The test asserts that all the
+     * files of the SIP are copied to the workspace and that they are deleted on unstaging.
+     */
+    @Test
+    public void copyTest() throws IOException {
+        stager.setMode(StagingMode.COPY);
+
+        StagedSip staged = stager.stage(sip.toString(), "sipId");
+
+        assertStaged(staged);
+        assertThat(Files.isSameFile(staged.getPath().resolve("info.xml"), sip.resolve("info.xml")), is(false));
+
+        stager.unstage(staged);
+        assertThat(Files.exists(staged.getPath()), is(false));
+        assertThat(Files.exists(sip.resolve("info.xml")), is(true));
+    }
+
+    /**
+     * Test of ({@link WorkspaceStager#stage(String, String)}) method with the mode AUTO. The SIP and the workspace are on
+     * the same file store. The test asserts that the files of the SIP are hard linked to the workspace and that
+     * the original files survive the unstaging.
+     */
+    @Test
+    public void autoLinkTest() throws IOException {
+        stager.setMode(StagingMode.AUTO);
+
+        StagedSip staged = stager.stage(sip.toString(), "sipId");
+
+        assertThat(staged.getMode(), is(StagingMode.LINK));
+        assertStaged(staged);
+        assertThat(Files.isSameFile(staged.getPath().resolve("info.xml"), sip.resolve("info.xml")), is(true));
+
+        stager.unstage(staged);
+        assertThat(Files.exists(staged.getPath()), is(false));
+        assertThat(Files.exists(sip.resolve("ALTO").resolve("page1.xml")), is(true));
+    }
+
+    /**
+     * Test of ({@link WorkspaceStager#stage(String, String)}) method with the mode IN_PLACE. The test asserts that
+     * the SIP is processed at its original location and that it is not deleted on unstaging.
+     */
+    @Test
+    public void inPlaceTest() throws IOException {
+        stager.setMode(StagingMode.IN_PLACE);
+
+        StagedSip staged = stager.stage(sip.toString(), "sipId");
+
+        assertThat(staged.getPath(), is(sip));
+
+        stager.unstage(staged);
+        assertThat(Files.exists(sip.resolve("info.xml")), is(true));
+    }
+
+    /**
+     * Test of ({@link WorkspaceStager#stage(String, String)}) method with the mode COPY. The SIP contains a broken link,
+     * so one of the copies fails. The test asserts that the staging fails and that the partially staged SIP is deleted
+     * from the workspace.
+     */
+    @Test
+    public void failedCopyTest() throws IOException {
+        stager.setMode(StagingMode.COPY);
+        Files.createSymbolicLink(sip.resolve("broken.xml"), root.resolve("missing.xml"));
+
+        ThrowableAssertion.assertThrown(() -> stager.stage(sip.toString(), "sipId"))
+                .isInstanceOf(IOException.class);
+
+        assertThat(Files.exists(root.resolve("workspace").resolve("sipId")), is(false));
+    }
+
+    private void assertStaged(StagedSip staged) throws IOException {
+        assertThat(new String(Files.readAllBytes(staged.getPath().resolve("info.xml"))), is("info"));
+        assertThat(new String(Files.readAllBytes(staged.getPath().resolve("ALTO").resolve("page1.xml"))), is("page1"));
+    }
+}
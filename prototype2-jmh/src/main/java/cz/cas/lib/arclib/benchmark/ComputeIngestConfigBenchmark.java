@@ -0,0 +1,59 @@
+package cz.cas.lib.arclib.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.cas.lib.arclib.service.SampleService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.core.io.ByteArrayResource;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computation of the ingest config of a batch by {@link SampleService#computeIngestConfig(String)}, i.e. parsing of
+ * the batch ingest config, the merge and the serialization of the result.
+ * <p>
+ * With the cache size 0 every call computes the config, otherwise the same batch ingest config is found in the cache.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComputeIngestConfigBenchmark {
+    @Param({"1", "3", "5"})
+    public int depth;
+
+    @Param({"0", "10", "100"})
+    public int arraySize;
+
+    @Param({"0.05", "0.25", "1.0"})
+    public double overrideDensity;
+
+    @Param({"0", "256"})
+    public int cacheSize;
+
+    private SampleService service;
+    private String batchConfig;
+
+    @Setup
+    public void setUp() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode applicationConfig = ConfigGenerator.application(depth, arraySize);
+        batchConfig = mapper.writeValueAsString(
+                ConfigGenerator.override(applicationConfig, overrideDensity, new Random(42)));
+
+        service = new SampleService();
+        service.setApplicationIngestConfig(new ByteArrayResource(mapper.writeValueAsBytes(applicationConfig)));
+        service.setCacheSize(cacheSize);
+        service.setCheckInterval(5000);
+    }
+
+    @Benchmark
+    public String computeIngestConfig() throws IOException {
+        return service.computeIngestConfig(batchConfig);
+    }
+}
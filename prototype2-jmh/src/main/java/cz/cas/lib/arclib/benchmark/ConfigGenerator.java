@@ -0,0 +1,96 @@
+package cz.cas.lib.arclib.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generator of the synthetic ingest configs for the benchmarks.
+ */
+class ConfigGenerator {
+    /**
+     * Number of scalar attributes of every json object
+     */
+    private static final int ATTRIBUTES = 8;
+
+    /**
+     * Number of nested json objects of every json object above the maximal depth
+     */
+    private static final int SECTIONS = 2;
+
+    private static final JsonNodeFactory factory = JsonNodeFactory.instance;
+
+    /**
+     * Generates the application ingest config. Every json object has {@link #ATTRIBUTES} scalar attributes, an array
+     * of strings and, unless it is at the maximal depth, {@link #SECTIONS} nested json objects.
+     *
+     * @param depth     number of levels of the nested json objects, 1 for a flat config
+     * @param arraySize number of items of the arrays
+     * @return generated config
+     */
+    static ObjectNode application(int depth, int arraySize) {
+        ObjectNode node = factory.objectNode();
+        for (int i = 0; i < ATTRIBUTES; i++) {
+            switch (i % 3) {
+                case 0:
+                    node.put("attribute" + i, "value" + i);
+                    break;
+                case 1:
+                    node.put("attribute" + i, i);
+                    break;
+                default:
+                    node.put("attribute" + i, true);
+            }
+        }
+
+        ArrayNode items = node.putArray("items");
+        for (int i = 0; i < arraySize; i++) {
+            items.add("item" + i);
+        }
+
+        if (depth > 1) {
+            for (int i = 0; i < SECTIONS; i++) {
+                node.set("section" + i, application(depth - 1, arraySize));
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Generates the batch ingest config overriding the attributes of the application ingest config. Every scalar
+     * attribute and array is overridden with the given probability, the overriding arrays have a single item.
+     *
+     * @param application     application ingest config
+     * @param overrideDensity probability of overriding an attribute, between 0 and 1
+     * @param random          source of randomness, seeded for repeatable configs
+     * @return generated config
+     */
+    static ObjectNode override(JsonNode application, double overrideDensity, Random random) {
+        ObjectNode node = factory.objectNode();
+
+        Iterator<Map.Entry<String, JsonNode>> fields = application.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode value = field.getValue();
+
+            if (value.isObject()) {
+                ObjectNode nested = override(value, overrideDensity, random);
+                if (nested.size() > 0) {
+                    node.set(field.getKey(), nested);
+                }
+            } else if (random.nextDouble() < overrideDensity) {
+                if (value.isArray()) {
+                    node.putArray(field.getKey()).add("override");
+                } else {
+                    node.put(field.getKey(), "override");
+                }
+            }
+        }
+        return node;
+    }
+}
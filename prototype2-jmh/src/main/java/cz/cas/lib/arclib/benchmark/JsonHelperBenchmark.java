@@ -0,0 +1,51 @@
+package cz.cas.lib.arclib.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import cz.cas.lib.arclib.service.JsonHelper;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge of a batch ingest config into the application ingest config shared by all the batches.
+ * <p>
+ * {@link JsonHelper#merge(JsonNode, JsonNode)} modifies the target config, so the shared application ingest config
+ * has to be deep copied first, {@link JsonHelper#mergeShared(JsonNode, JsonNode)} copies only the merged paths.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonHelperBenchmark {
+    @Param({"1", "3", "5"})
+    public int depth;
+
+    @Param({"0", "10", "100"})
+    public int arraySize;
+
+    @Param({"0.05", "0.25", "1.0"})
+    public double overrideDensity;
+
+    private JsonNode applicationConfig;
+    private JsonNode batchConfig;
+
+    @Setup
+    public void setUp() {
+        applicationConfig = ConfigGenerator.application(depth, arraySize);
+        batchConfig = ConfigGenerator.override(applicationConfig, overrideDensity, new Random(42));
+    }
+
+    @Benchmark
+    public JsonNode merge() {
+        return JsonHelper.merge(applicationConfig.deepCopy(), batchConfig);
+    }
+
+    @Benchmark
+    public JsonNode mergeShared() {
+        return JsonHelper.mergeShared(applicationConfig, batchConfig);
+    }
+}
@@ -0,0 +1,22 @@
+package cz.cas.lib.arclib.exception;
+
+public class GeneralException extends RuntimeException {
+    public GeneralException() {
+    }
+
+    public GeneralException(String message) {
+        super(message);
+    }
+
+    public GeneralException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public GeneralException(Throwable cause) {
+        super(cause);
+    }
+
+    public GeneralException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+}
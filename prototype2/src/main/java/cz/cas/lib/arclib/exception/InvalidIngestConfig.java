@@ -0,0 +1,33 @@
+package cz.cas.lib.arclib.exception;
+
+/**
+ * Ingest config not conforming to the ingest config schema
+ */
+public class InvalidIngestConfig extends GeneralException {
+    private String attribute;
+
+    private Object value;
+
+    public InvalidIngestConfig(String message, String attribute, Object value) {
+        super(message);
+        this.attribute = attribute;
+        this.value = value;
+    }
+
+    @Override
+    public String toString() {
+        return "InvalidIngestConfig{" +
+                "message='" + getMessage() + '\'' +
+                ", attribute='" + attribute + '\'' +
+                ", value=" + value +
+                '}';
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,92 @@
+package cz.cas.lib.arclib.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Types of the attributes of the ingest config
+ */
+public enum ConfigType {
+    /**
+     * Json string, compiled to {@link String}
+     */
+    STRING,
+
+    /**
+     * Json integral number, compiled to {@link Long}
+     */
+    INTEGER,
+
+    /**
+     * Json number, compiled to {@link Double}
+     */
+    NUMBER,
+
+    /**
+     * Json boolean, compiled to {@link Boolean}
+     */
+    BOOLEAN,
+
+    /**
+     * Json array of strings, numbers or booleans, compiled to unmodifiable {@link List} of their compiled values
+     */
+    LIST;
+
+    /**
+     * Converts the json value to the value of this type.
+     *
+     * @param node json value
+     * @return converted value or null if the json value is not of this type
+     */
+    Object convert(JsonNode node) {
+        switch (this) {
+            case STRING:
+                return node.isTextual() ? node.textValue() : null;
+            case INTEGER:
+                return node.isIntegralNumber() && node.canConvertToLong() ? node.longValue() : null;
+            case NUMBER:
+                return node.isNumber() ? node.doubleValue() : null;
+            case BOOLEAN:
+                return node.isBoolean() ? node.booleanValue() : null;
+            case LIST:
+                if (!node.isArray()) {
+                    return null;
+                }
+
+                List<Object> items = new ArrayList<>(node.size());
+                for (JsonNode item : node) {
+                    Object value = scalar(item);
+                    if (value == null) {
+                        return null;
+                    }
+                    items.add(value);
+                }
+                return Collections.unmodifiableList(items);
+            default:
+                throw new IllegalStateException("Unknown type " + this);
+        }
+    }
+
+    /**
+     * Converts the json string, number or boolean to its compiled value.
+     *
+     * @param node json value
+     * @return converted value or null if the json value is not a string, number nor boolean
+     */
+    private static Object scalar(JsonNode node) {
+        if (node.isTextual()) {
+            return STRING.convert(node);
+        } else if (node.isIntegralNumber() && node.canConvertToLong()) {
+            return INTEGER.convert(node);
+        } else if (node.isNumber()) {
+            return NUMBER.convert(node);
+        } else if (node.isBoolean()) {
+            return BOOLEAN.convert(node);
+        } else {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package cz.cas.lib.arclib.service;
+
+import cz.cas.lib.arclib.exception.InvalidIngestConfig;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Compiled ingest config, created by {@link IngestConfigSchema#compile(com.fasterxml.jackson.databind.JsonNode)}.
+ * <p>
+ * The attributes are accessed by their flattened paths, e.g. "atribut3.vnorenyAtribut1", by a single hash lookup with
+ * no parsing. The config is immutable and may be passed between the stages of the ingest, e.g. as a process variable.
+ * Its serialized form contains only the paths and the values of the attributes, written in binary.
+ * </p>
+ */
+public class IngestConfig implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final byte STRING = 0;
+    private static final byte INTEGER = 1;
+    private static final byte NUMBER = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte LIST = 4;
+
+    private transient Map<String, Object> values;
+
+    IngestConfig(Map<String, Object> values) {
+        this.values = values;
+    }
+
+    public boolean contains(String path) {
+        return values.containsKey(path);
+    }
+
+    public String getString(String path) {
+        return get(path, String.class);
+    }
+
+    public Long getLong(String path) {
+        return get(path, Long.class);
+    }
+
+    public Integer getInteger(String path) {
+        Long value = getLong(path);
+        if (value != null && (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)) {
+            throw new InvalidIngestConfig("Attribute does not fit into integer.", path, value);
+        }
+        return value != null ? value.intValue() : null;
+    }
+
+    public Double getDouble(String path) {
+        return get(path, Double.class);
+    }
+
+    public Boolean getBoolean(String path) {
+        return get(path, Boolean.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<Object> getList(String path) {
+        return get(path, List.class);
+    }
+
+    /**
+     * Gets the value of the attribute.
+     *
+     * @param path flattened path of the attribute
+     * @param type expected type of the value
+     * @return the value or null if the attribute is missing and has no default value
+     * @throws InvalidIngestConfig if the value is of other type
+     */
+    private <T> T get(String path, Class<T> type) {
+        Object value = values.get(path);
+        if (value != null && !type.isInstance(value)) {
+            throw new InvalidIngestConfig("Attribute is not of type " + type.getSimpleName() + ".", path, value);
+        }
+        return type.cast(value);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(values.size());
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int size = in.readInt();
+        values = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            values.put(in.readUTF(), readValue(in));
+        }
+    }
+
+    private static void writeValue(ObjectOutputStream out, Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte(STRING);
+            out.writeObject(value);
+        } else if (value instanceof Long) {
+            out.writeByte(INTEGER);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(NUMBER);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else {
+            List<?> items = (List<?>) value;
+            out.writeByte(LIST);
+            out.writeInt(items.size());
+            for (Object item : items) {
+                writeValue(out, item);
+            }
+        }
+    }
+
+    private static Object readValue(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        byte type = in.readByte();
+        switch (type) {
+            case STRING:
+                return in.readObject();
+            case INTEGER:
+                return in.readLong();
+            case NUMBER:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case LIST:
+                int size = in.readInt();
+                List<Object> items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    items.add(readValue(in));
+                }
+                return Collections.unmodifiableList(items);
+            default:
+                throw new IOException("Unknown type of ingest config attribute " + type + ".");
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof IngestConfig && values.equals(((IngestConfig) o).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return values.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "IngestConfig" + values;
+    }
+}
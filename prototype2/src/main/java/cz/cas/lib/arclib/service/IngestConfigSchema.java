@@ -0,0 +1,139 @@
+package cz.cas.lib.arclib.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import cz.cas.lib.arclib.exception.InvalidIngestConfig;
+
+import java.util.*;
+
+/**
+ * Schema of the ingest config, compiles the ingest configs to {@link IngestConfig}.
+ * <p>
+ * The schema is a json object, its attributes are the flattened paths of the attributes of the ingest config, i.e. the
+ * names of the nested json objects joined by dots, and their values describe the attributes:
+ * </p>
+ * <pre>
+ * {
+ *   "atribut1": {"type": "STRING", "required": true},
+ *   "atribut3.vnorenyAtribut1": {"type": "INTEGER", "default": 5}
+ * }
+ * </pre>
+ * <p>
+ * The type is one of {@link ConfigType}, the attributes are optional unless they are required, the default value is
+ * used when the attribute is missing in the ingest config.
+ * </p>
+ */
+public class IngestConfigSchema {
+    private final Map<String, ConfigType> types;
+    private final Set<String> required;
+    private final Map<String, Object> defaults;
+
+    private IngestConfigSchema(Map<String, ConfigType> types, Set<String> required, Map<String, Object> defaults) {
+        this.types = types;
+        this.required = required;
+        this.defaults = defaults;
+    }
+
+    /**
+     * Parses the schema.
+     *
+     * @param schema json object with the schema
+     * @return parsed schema
+     * @throws InvalidIngestConfig if the schema is malformed or a default value does not match the type of its
+     *                             attribute
+     */
+    public static IngestConfigSchema parse(JsonNode schema) {
+        if (!schema.isObject()) {
+            throw new InvalidIngestConfig("Ingest config schema is not a json object.", null, schema);
+        }
+
+        Map<String, ConfigType> types = new HashMap<>();
+        Set<String> required = new HashSet<>();
+        Map<String, Object> defaults = new HashMap<>();
+
+        Iterator<Map.Entry<String, JsonNode>> fields = schema.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String path = field.getKey();
+            JsonNode description = field.getValue();
+
+            ConfigType type;
+            try {
+                type = ConfigType.valueOf(description.path("type").asText());
+            } catch (IllegalArgumentException e) {
+                throw new InvalidIngestConfig("Unknown type in ingest config schema.", path, description.get("type"));
+            }
+            types.put(path, type);
+
+            if (description.path("required").asBoolean()) {
+                required.add(path);
+            }
+
+            JsonNode defaultValue = description.get("default");
+            if (defaultValue != null && !defaultValue.isNull()) {
+                Object value = type.convert(defaultValue);
+                if (value == null) {
+                    throw new InvalidIngestConfig("Default value is not of type " + type + ".", path, defaultValue);
+                }
+                defaults.put(path, value);
+            }
+        }
+
+        return new IngestConfigSchema(types, required, defaults);
+    }
+
+    /**
+     * Compiles the ingest config, the missing attributes are filled with their default values.
+     *
+     * @param config json object with the ingest config
+     * @return compiled ingest config
+     * @throws InvalidIngestConfig if the config contains an attribute not declared in the schema, an attribute of
+     *                             other type than declared or if a required attribute is missing
+     */
+    public IngestConfig compile(JsonNode config) {
+        if (!config.isObject()) {
+            throw new InvalidIngestConfig("Ingest config is not a json object.", null, config);
+        }
+
+        Map<String, Object> values = new HashMap<>(defaults);
+        flatten(null, config, values);
+
+        for (String path : required) {
+            if (!values.containsKey(path)) {
+                throw new InvalidIngestConfig("Required attribute is missing in ingest config.", path, null);
+            }
+        }
+
+        return new IngestConfig(values);
+    }
+
+    /**
+     * Converts the attributes of the json object to their types and puts them to the values by their flattened paths,
+     * the nested json objects not declared in the schema are flattened recursively.
+     *
+     * @param prefix flattened path of the json object, null for the root object
+     * @param node   json object
+     * @param values compiled values
+     */
+    private void flatten(String prefix, JsonNode node, Map<String, Object> values) {
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            String path = prefix == null ? field.getKey() : prefix + "." + field.getKey();
+            JsonNode value = field.getValue();
+
+            ConfigType type = types.get(path);
+            if (type == null) {
+                if (!value.isObject()) {
+                    throw new InvalidIngestConfig("Attribute is not declared in ingest config schema.", path, value);
+                }
+                flatten(path, value, values);
+            } else if (!value.isNull()) {
+                Object converted = type.convert(value);
+                if (converted == null) {
+                    throw new InvalidIngestConfig("Attribute is not of type " + type + ".", path, value);
+                }
+                values.put(path, converted);
+            }
+        }
+    }
+}
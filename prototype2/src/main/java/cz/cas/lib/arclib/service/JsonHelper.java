@@ -2,6 +2,7 @@ package cz.cas.lib.arclib.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import lombok.extern.slf4j.Slf4j;
 
@@ -57,4 +58,57 @@ public class JsonHelper {
             return source.deepCopy();
         }
     }
+
+    /**
+     * Performs deep merge of two json objects without modifying any of them. If there are two equally named attributes
+     * in both objects, the source json has the priority over the target json.
+     * <p>
+     * Unlike {@link #merge(JsonNode, JsonNode)}, only the objects and arrays present in both jsons are created anew,
+     * all the other subtrees of the result are shared with the target and the source json. Therefore the inputs and
+     * the result must be treated as immutable, then the same target json, e.g. a parsed application config, may be
+     * merged by many threads at once with no copying.
+     * </p>
+     * @param target target json object
+     * @param source source json object
+     * @return resulting json object sharing the unchanged subtrees with the target and the source json
+     */
+    public static JsonNode mergeShared(final JsonNode target, final JsonNode source) {
+        if (target instanceof ArrayNode && source instanceof ArrayNode) {
+            // Both the target and source are array nodes, the result contains
+            // the items of the target array followed by the items of the source
+            // array, the items themselves are shared.
+            final ArrayNode result = JsonNodeFactory.instance.arrayNode(target.size() + source.size());
+            result.addAll((ArrayNode) target);
+            result.addAll((ArrayNode) source);
+            return result;
+        } else if (target instanceof ObjectNode && source instanceof ObjectNode) {
+            // Both the target and source are object nodes, the fields of the
+            // target node are copied to the result in their order, the fields
+            // present in both nodes are merged recursively. Unmatched fields
+            // of the source node are appended.
+            final ObjectNode result = JsonNodeFactory.instance.objectNode();
+            final Iterator<Map.Entry<String, JsonNode>> targetIterator = target.fields();
+            while (targetIterator.hasNext()) {
+                final Map.Entry<String, JsonNode> targetFieldEntry = targetIterator.next();
+                final JsonNode sourceFieldValue = source.get(targetFieldEntry.getKey());
+                result.set(targetFieldEntry.getKey(), sourceFieldValue != null
+                        ? mergeShared(targetFieldEntry.getValue(), sourceFieldValue)
+                        : targetFieldEntry.getValue());
+            }
+
+            final Iterator<Map.Entry<String, JsonNode>> sourceIterator = source.fields();
+            while (sourceIterator.hasNext()) {
+                final Map.Entry<String, JsonNode> sourceFieldEntry = sourceIterator.next();
+                if (!target.has(sourceFieldEntry.getKey())) {
+                    result.set(sourceFieldEntry.getKey(), sourceFieldEntry.getValue());
+                }
+            }
+            return result;
+        } else {
+            // The target and source nodes are of different types. The source
+            // node replaces the target node, no copy is needed because neither
+            // of them is ever modified.
+            return source;
+        }
+    }
 }
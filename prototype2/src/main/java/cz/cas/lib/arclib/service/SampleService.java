@@ -10,11 +10,53 @@ import org.springframework.stereotype.Service;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Computation of the ingest configs of the batches.
+ * <p>
+ * The application ingest config and the ingest config schema are parsed only once and parsed again when their files
+ * change, the modification times of the files are checked at most once per {@link #checkInterval} milliseconds. The computed ingest configs are kept in
+ * a LRU cache of {@link #cacheSize} entries, keyed by the batch ingest config, so the batches sharing the same batch
+ * ingest config get the computed config by a single hash lookup. The cache is cleared when the application ingest
+ * config or the ingest config schema changes.
+ * </p>
+ * <p>
+ * The parsed application ingest config is never copied nor modified, it is merged with the batch ingest configs by
+ * {@link JsonHelper#mergeShared(JsonNode, JsonNode)}.
+ * </p>
+ * <p>
+ * The stages of the ingest may get the computed config compiled by the ingest config schema, see
+ * {@link IngestConfigSchema}, the compiled configs are cached together with the computed configs.
+ * </p>
+ */
 @Slf4j
 @Service
 public class SampleService {
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Computed ingest configs by the batch ingest configs, the application ingest config alone is stored under
+     * the key null
+     */
+    private final Map<String, ComputedConfig> cache = new LinkedHashMap<String, ComputedConfig>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ComputedConfig> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
     private Resource applicationIngestConfig;
+    private Resource ingestConfigSchema;
+    private int cacheSize;
+    private long checkInterval;
+
+    private volatile JsonNode applicationIngestConfigJson;
+    private volatile IngestConfigSchema schema;
+    private volatile long lastModified;
+    private volatile long schemaLastModified;
+    private volatile long lastCheck;
 
     /**
      * Computes resulting ingest config by merging application ingest config and batch ingest config,
@@ -24,29 +66,176 @@ public class SampleService {
      * @throws IOException if the application config is inaccessible or the batch ingest config cannot be parsed
      */
     public String computeIngestConfig(String batchIngestConfig) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
+        return compute(batchIngestConfig).json;
+    }
+
+    /**
+     * Computes resulting ingest config the same way as {@link #computeIngestConfig(String)} and compiles it by
+     * the ingest config schema. The compiled config is cached together with the computed config.
+     *
+     * @param batchIngestConfig ingest config provided with the given batch
+     * @return compiled ingest config
+     * @throws IOException if the application config or the schema is inaccessible or the batch ingest config cannot
+     *                     be parsed
+     * @throws cz.cas.lib.arclib.exception.InvalidIngestConfig if the computed config does not conform to the schema
+     */
+    public IngestConfig compileIngestConfig(String batchIngestConfig) throws IOException {
+        ComputedConfig computed = compute(batchIngestConfig);
+
+        IngestConfig compiled = computed.compiled;
+        if (compiled == null) {
+            compiled = ingestConfigSchema().compile(computed.tree);
+            computed.compiled = compiled;
+        }
+        return compiled;
+    }
 
-        JsonNode ingestConfig;
-        try (InputStream in = applicationIngestConfig.getInputStream()) {
-            ingestConfig = mapper.readTree(in);
-            log.info("");
-            log.info("Application ingest config json: " + ingestConfig);
+    private ComputedConfig compute(String batchIngestConfig) throws IOException {
+        JsonNode applicationConfig = applicationIngestConfig();
 
-            if (batchIngestConfig != null) {
-                JsonNode batchIngestConfigJson = mapper.readTree(batchIngestConfig);
-                log.info("Batch ingest config json: " + batchIngestConfigJson);
+        ComputedConfig computed;
+        synchronized (cache) {
+            computed = cache.get(batchIngestConfig);
+        }
+        if (computed != null) {
+            log.debug("Ingest config found in cache.");
+            return computed;
+        }
 
-                ingestConfig = JsonHelper.merge(ingestConfig, batchIngestConfigJson);
-            } else {
-                log.info("Batch ingest config json is empty.");
+        JsonNode ingestConfigJson;
+        if (batchIngestConfig != null) {
+            JsonNode batchIngestConfigJson = mapper.readTree(batchIngestConfig);
+            log.info("Batch ingest config json: " + batchIngestConfigJson);
+
+            ingestConfigJson = JsonHelper.mergeShared(applicationConfig, batchIngestConfigJson);
+        } else {
+            log.info("Batch ingest config json is empty.");
+            ingestConfigJson = applicationConfig;
+        }
+        log.info("Result ingest config json: " + ingestConfigJson);
+
+        computed = new ComputedConfig(ingestConfigJson, mapper.writeValueAsString(ingestConfigJson));
+        synchronized (cache) {
+            if (applicationConfig == applicationIngestConfigJson) {
+                cache.put(batchIngestConfig, computed);
             }
         }
-        log.info("Result ingest config json: " + ingestConfig);
-        return mapper.writeValueAsString(ingestConfig);
+        return computed;
+    }
+
+    /**
+     * Gets the parsed ingest config schema, the schema is parsed on the first use and parsed again after its file has
+     * been modified, see {@link #applicationIngestConfig()}.
+     */
+    private IngestConfigSchema ingestConfigSchema() throws IOException {
+        IngestConfigSchema parsed = schema;
+        if (parsed == null) {
+            long modified = modificationTime(ingestConfigSchema);
+            try (InputStream in = ingestConfigSchema.getInputStream()) {
+                parsed = IngestConfigSchema.parse(mapper.readTree(in));
+            }
+            schemaLastModified = modified;
+            schema = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Gets the parsed application ingest config. The config is parsed again if its file has been modified since it
+     * was parsed last time. The parsed ingest config schema is dropped if its file has been modified, so it is parsed
+     * again on the next use.
+     *
+     * @return the application ingest config, must not be modified
+     * @throws IOException if the application config is inaccessible
+     */
+    private JsonNode applicationIngestConfig() throws IOException {
+        long now = System.currentTimeMillis();
+        if (applicationIngestConfigJson != null && now - lastCheck < checkInterval) {
+            return applicationIngestConfigJson;
+        }
+
+        synchronized (this) {
+            if (applicationIngestConfigJson != null && now - lastCheck < checkInterval) {
+                return applicationIngestConfigJson;
+            }
+
+            if (schema != null && modificationTime(ingestConfigSchema) != schemaLastModified) {
+                log.info("Ingest config schema has been modified.");
+
+                synchronized (cache) {
+                    schema = null;
+                    cache.clear();
+                }
+            }
+
+            long modified = modificationTime(applicationIngestConfig);
+            if (applicationIngestConfigJson == null || modified != lastModified) {
+                try (InputStream in = applicationIngestConfig.getInputStream()) {
+                    JsonNode parsed = mapper.readTree(in);
+                    log.info("Application ingest config json: " + parsed);
+
+                    synchronized (cache) {
+                        applicationIngestConfigJson = parsed;
+                        cache.clear();
+                    }
+                }
+                lastModified = modified;
+            }
+            lastCheck = now;
+
+            return applicationIngestConfigJson;
+        }
+    }
+
+    /**
+     * Gets the modification time of the resource, 0 if the resource does not provide it, e.g. when it is packed
+     * in a jar.
+     */
+    private long modificationTime(Resource resource) {
+        try {
+            return resource.lastModified();
+        } catch (IOException e) {
+            return 0;
+        }
     }
 
     @Inject
     public void setApplicationIngestConfig(@Value("${arclib.applicationIngestConfig}") Resource applicationIngestConfig) {
         this.applicationIngestConfig = applicationIngestConfig;
+        this.applicationIngestConfigJson = null;
+    }
+
+    @Inject
+    public void setIngestConfigSchema(@Value("${arclib.ingestConfigSchema}") Resource ingestConfigSchema) {
+        synchronized (cache) {
+            this.ingestConfigSchema = ingestConfigSchema;
+            this.schema = null;
+            cache.clear();
+        }
+    }
+
+    @Inject
+    public void setCacheSize(@Value("${arclib.ingestConfigCacheSize}") int cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    @Inject
+    public void setCheckInterval(@Value("${arclib.applicationIngestConfigCheckInterval}") long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Computed ingest config, its json tree shares the unchanged subtrees with the application ingest config and must
+     * not be modified
+     */
+    private static class ComputedConfig {
+        private final JsonNode tree;
+        private final String json;
+        private volatile IngestConfig compiled;
+
+        private ComputedConfig(JsonNode tree, String json) {
+            this.tree = tree;
+            this.json = json;
+        }
     }
 }
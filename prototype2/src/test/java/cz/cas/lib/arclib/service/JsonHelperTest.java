@@ -12,6 +12,7 @@ import java.io.IOException;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
 
 @Slf4j
 @RunWith(SpringRunner.class)
@@ -78,4 +79,46 @@ public class JsonHelperTest {
 
         assertThat(mergedJson, is(expectedResult));
     }
+
+    @Test
+    public void sharedMergeTest() throws IOException {
+        log.info("");
+        log.info("Shared merge test: ");
+
+        ObjectMapper mapper = new ObjectMapper();
+
+        JsonNode targetJson = mapper.readTree("{\n" +
+                "  \"atribut1\": \"hodnota1\",\n" +
+                "  \"atribut2\": [\"hodnota2\"],\n" +
+                "  \"atribut3\": {\n" +
+                "    \"vnorenyAtribut1\": \"hodnota3\",\n" +
+                "    \"vnorenyAtribut2\": {\"hlubokyAtribut\": \"hodnota4\"}\n" +
+                "  }\n" +
+                "}");
+        log.info("Application JSON: " + targetJson);
+
+        JsonNode sourceJson = mapper.readTree("{\n" +
+                "  \"atribut2\": [\"hodnota5\"],\n" +
+                "  \"atribut3\": {\n" +
+                "    \"vnorenyAtribut1\": \"hodnota6\"\n" +
+                "  },\n" +
+                "  \"atribut4\": {\"vnorenyAtribut3\": \"hodnota7\"}\n" +
+                "}");
+        log.info("Batch JSON: " + sourceJson);
+
+        JsonNode targetCopy = targetJson.deepCopy();
+        JsonNode sourceCopy = sourceJson.deepCopy();
+
+        JsonNode mergedJson = JsonHelper.mergeShared(targetJson, sourceJson);
+        log.info("Result JSON: " + mergedJson);
+
+        assertThat(mergedJson, is(JsonHelper.merge(targetCopy.deepCopy(), sourceCopy)));
+        assertThat(targetJson, is(targetCopy));
+        assertThat(sourceJson, is(sourceCopy));
+
+        assertThat(mergedJson.get("atribut3").get("vnorenyAtribut2"),
+                is(sameInstance(targetJson.get("atribut3").get("vnorenyAtribut2"))));
+        assertThat(mergedJson.get("atribut4"), is(sameInstance(sourceJson.get("atribut4"))));
+        assertThat(mergedJson.get("atribut2").get(0), is(sameInstance(targetJson.get("atribut2").get(0))));
+    }
 }
@@ -2,17 +2,26 @@ package cz.cas.lib.arclib.service;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import cz.cas.lib.arclib.exception.InvalidIngestConfig;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.io.ByteArrayResource;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.test.context.junit4.SpringRunner;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
 
 @RunWith(SpringRunner.class)
 @SpringBootTest
@@ -25,6 +34,15 @@ public class SampleServiceTest {
         service = new SampleService();
         applicationIngestConfig = new ClassPathResource("applicationIngestConfig.json");
         service.setApplicationIngestConfig(applicationIngestConfig);
+        service.setCacheSize(2);
+        service.setCheckInterval(0);
+        service.setIngestConfigSchema(new ByteArrayResource(("{\n" +
+                "  \"atribut1\": {\"type\": \"STRING\", \"required\": true},\n" +
+                "  \"atribut2\": {\"type\": \"STRING\"},\n" +
+                "  \"atribut3.vnorenyAtribut1\": {\"type\": \"INTEGER\", \"default\": 5},\n" +
+                "  \"atribut3.vnorenyAtribut2\": {\"type\": \"LIST\"},\n" +
+                "  \"atribut4\": {\"type\": \"BOOLEAN\", \"default\": false}\n" +
+                "}").getBytes()));
     }
 
     @Test
@@ -52,4 +70,107 @@ public class SampleServiceTest {
         String computedIngestConfig2 = service.computeIngestConfig(batchConfig);
         assertThat(computedIngestConfig2, is(mapper.writeValueAsString(expectedIngestConfigJson)));
     }
+
+    @Test
+    public void computeIngestConfigCached() throws IOException {
+        String batchConfig = "{\"atribut2\": \"hodnota3\"}";
+
+        String computedIngestConfig = service.computeIngestConfig(batchConfig);
+        assertThat(service.computeIngestConfig(batchConfig), is(sameInstance(computedIngestConfig)));
+
+        service.computeIngestConfig("{\"atribut3\": \"hodnota4\"}");
+        service.computeIngestConfig("{\"atribut4\": \"hodnota5\"}");
+        assertThat(service.computeIngestConfig(batchConfig), is(not(sameInstance(computedIngestConfig))));
+    }
+
+    @Test
+    public void computeIngestConfigApplicationIngestConfigChanged() throws IOException {
+        Path file = Files.createTempFile("applicationIngestConfig", ".json");
+        try {
+            Files.write(file, "{\"atribut1\": \"hodnota1\"}".getBytes());
+            service.setApplicationIngestConfig(new FileSystemResource(file.toFile()));
+
+            String batchConfig = "{\"atribut2\": \"hodnota2\"}";
+            assertThat(service.computeIngestConfig(batchConfig), is("{\"atribut1\":\"hodnota1\",\"atribut2\":\"hodnota2\"}"));
+
+            Files.write(file, "{\"atribut1\": \"hodnota3\"}".getBytes());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+            assertThat(service.computeIngestConfig(batchConfig), is("{\"atribut1\":\"hodnota3\",\"atribut2\":\"hodnota2\"}"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void compileIngestConfig() throws IOException {
+        String batchConfig = "{\n" +
+                "  \"atribut3\": {\n" +
+                "    \"vnorenyAtribut2\": [\"hodnota5\", 6, true]\n" +
+                "  },\n" +
+                "  \"atribut4\": true\n" +
+                "}";
+
+        IngestConfig config = service.compileIngestConfig(batchConfig);
+        assertThat(config.getString("atribut1"), is("hodnota1"));
+        assertThat(config.getString("atribut2"), is("hodnota2"));
+        assertThat(config.getInteger("atribut3.vnorenyAtribut1"), is(5));
+        assertThat(config.getList("atribut3.vnorenyAtribut2"), is(Arrays.<Object>asList("hodnota5", 6L, true)));
+        assertThat(config.getBoolean("atribut4"), is(true));
+
+        assertThat(service.compileIngestConfig(batchConfig), is(sameInstance(config)));
+    }
+
+    @Test(expected = InvalidIngestConfig.class)
+    public void compileIngestConfigUnknownAttribute() throws IOException {
+        service.compileIngestConfig("{\"atribut3\": {\"vnorenyAtribut3\": \"hodnota4\"}}");
+    }
+
+    @Test(expected = InvalidIngestConfig.class)
+    public void compileIngestConfigInvalidType() throws IOException {
+        service.compileIngestConfig("{\"atribut3\": {\"vnorenyAtribut1\": \"hodnota4\"}}");
+    }
+
+    @Test(expected = InvalidIngestConfig.class)
+    public void compileIngestConfigSchemaChanged() throws IOException {
+        service.compileIngestConfig(null);
+
+        service.setIngestConfigSchema(new ByteArrayResource(("{\n" +
+                "  \"atribut1\": {\"type\": \"STRING\"},\n" +
+                "  \"atribut2\": {\"type\": \"INTEGER\"}\n" +
+                "}").getBytes()));
+        service.compileIngestConfig(null);
+    }
+
+    @Test(expected = InvalidIngestConfig.class)
+    public void compileIngestConfigSchemaFileChanged() throws IOException {
+        Path file = Files.createTempFile("ingestConfigSchema", ".json");
+        try {
+            Files.write(file, "{\"atribut1\": {\"type\": \"STRING\"}, \"atribut2\": {\"type\": \"STRING\"}}".getBytes());
+            service.setIngestConfigSchema(new FileSystemResource(file.toFile()));
+
+            String batchConfig = "{\"atribut2\": \"hodnota2\"}";
+            assertThat(service.compileIngestConfig(batchConfig).getString("atribut2"), is("hodnota2"));
+
+            Files.write(file, "{\"atribut1\": {\"type\": \"STRING\"}, \"atribut2\": {\"type\": \"INTEGER\"}}".getBytes());
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+            service.compileIngestConfig(batchConfig);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void compileIngestConfigSerialization() throws IOException, ClassNotFoundException {
+        IngestConfig config = service.compileIngestConfig("{\"atribut3\": {\"vnorenyAtribut2\": [1.5, \"hodnota5\"]}}");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(config);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            IngestConfig deserialized = (IngestConfig) in.readObject();
+            assertThat(deserialized, is(config));
+            assertThat(deserialized.getList("atribut3.vnorenyAtribut2"), is(Arrays.<Object>asList(1.5, "hodnota5")));
+        }
+    }
 }
@@ -0,0 +1,22 @@
+package cz.cas.lib.arclib;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.file.Path;
+
+/**
+ * Result of the antivirus scan of a single file
+ */
+@Getter
+@AllArgsConstructor
+public class FileVerdict {
+    private Path file;
+
+    private boolean infected;
+
+    /**
+     * Name of the detected threat, null if the file is clean or the scanner does not report it
+     */
+    private String signature;
+}
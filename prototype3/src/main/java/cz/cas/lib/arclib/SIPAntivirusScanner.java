@@ -4,6 +4,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.function.Consumer;
 
 public interface SIPAntivirusScanner {
     /**
@@ -18,6 +19,41 @@ public interface SIPAntivirusScanner {
      */
     List<Path> scan(String pathToSIP) throws IOException, InterruptedException, SIPAntivirusScannerException;
 
+    /**
+     * Scans SIP package for viruses and passes the verdict of every file to the listener as soon as it is known, e.g.
+     * so that the infected files are moved to quarantine while the scan is still running. The listener is called by
+     * the calling thread.
+     * <p>
+     * Scanners which cannot report the verdicts of single files pass the verdicts of the infected files after the
+     * whole SIP is scanned.
+     * </p>
+     *
+     * @param pathToSIP absoulte path to SIP
+     * @param listener  listener of the verdicts
+     * @return list with paths to corrupted files if threat was detected, empty list otherwise
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws SIPAntivirusScannerException if error occurs during the antivirus scan process
+     */
+    default List<Path> scan(String pathToSIP, Consumer<FileVerdict> listener) throws IOException, InterruptedException,
+            SIPAntivirusScannerException {
+        List<Path> infectedFiles = scan(pathToSIP);
+        infectedFiles.forEach(file -> listener.accept(new FileVerdict(file, true, null)));
+        return infectedFiles;
+    }
+
+    /**
+     * Scans SIP packed in a ZIP archive for viruses.
+     *
+     * @param pathToArchive absoulte path to ZIP archive with SIP
+     * @return list with paths inside the archive of the infected entries if threat was detected, empty list otherwise
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws SIPAntivirusScannerException if error occurs during the antivirus scan process
+     */
+    List<String> scanArchive(String pathToArchive) throws IOException, InterruptedException,
+            SIPAntivirusScannerException;
+
     /**
      * Moves infected files to quarantine.
      *
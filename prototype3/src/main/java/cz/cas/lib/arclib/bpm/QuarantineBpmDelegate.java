@@ -22,11 +22,16 @@ public class QuarantineBpmDelegate implements JavaDelegate {
      * Moves infected files to quarantine.
      * <p>
      * Task expects that list with String paths to infected files is stored in process variable <i>infectedFiles</i>.
+     * Files listed in process variable <i>quarantinedFiles</i> were already moved to quarantine during the scan and
+     * are skipped.
      */
     @Override
     public void execute(DelegateExecution execution) throws IOException {
         List<String> infectedFiles = (List<String>) execution.getVariable("infectedFiles");
-        scanner.moveToQuarantine(infectedFiles.stream().map(
+        List<String> quarantinedFiles = (List<String>) execution.getVariable("quarantinedFiles");
+        scanner.moveToQuarantine(infectedFiles.stream().filter(
+                pathString -> quarantinedFiles == null || !quarantinedFiles.contains(pathString)
+        ).map(
                 pathString -> Paths.get(pathString)
         ).collect(Collectors.toList()));
     }
@@ -5,25 +5,42 @@ import cz.cas.lib.arclib.SIPAntivirusScannerException;
 import lombok.extern.slf4j.Slf4j;
 import org.camunda.bpm.engine.delegate.DelegateExecution;
 import org.camunda.bpm.engine.delegate.JavaDelegate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.inject.Inject;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.stream.Collectors;
 
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+
 @Slf4j
 @Component
 public class ScanBpmDelegate implements JavaDelegate {
 
     private SIPAntivirusScanner scanner;
+    private boolean earlyQuarantine;
 
     /**
      * Scans SIP package for viruses.
      * <p>
      * Task expects String path to SIP stored in process variable <i>pathToSip</i>.
      * Task sets process variable <i>infectedFiles</i>  with list with String paths to infected files.
+     * <p>
+     * If early quarantine is enabled, every infected file is moved to quarantine as soon as the scanner reports it,
+     * while the rest of the SIP is still being scanned. Task then sets process variable <i>quarantinedFiles</i> with
+     * list with String paths to the infected files already moved to quarantine.
+     * <p>
+     * If the SIP is a ZIP archive, its entries are scanned without unpacking the archive. Task then sets process
+     * variable <i>infectedEntries</i> with list with paths inside the archive of the infected entries and the archive
+     * itself is the only infected file if any of its entries is infected.
      *
      * @throws IOException
      * @throws InterruptedException
@@ -31,17 +48,53 @@ public class ScanBpmDelegate implements JavaDelegate {
      */
     @Override
     public void execute(DelegateExecution execution) throws InterruptedException, SIPAntivirusScannerException, IOException {
-        List<Path> infectedFiles = scanner.scan((String) execution.getVariable("pathToSip"));
+        String pathToSip = (String) execution.getVariable("pathToSip");
+        List<Path> quarantinedFiles = new ArrayList<>();
+        List<Path> infectedFiles;
+        if (isArchive(pathToSip)) {
+            List<String> infectedEntries = scanner.scanArchive(pathToSip);
+            execution.setVariable("infectedEntries", infectedEntries);
+            infectedFiles = infectedEntries.isEmpty() ? emptyList() : singletonList(Paths.get(pathToSip));
+        } else {
+            try {
+                infectedFiles = scanner.scan(pathToSip, verdict -> {
+                    if (earlyQuarantine && verdict.isInfected()) {
+                        try {
+                            scanner.moveToQuarantine(singletonList(verdict.getFile()));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        quarantinedFiles.add(verdict.getFile());
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
 
         execution.setVariable("infectedFiles",
                 infectedFiles.stream().map(
                         filePath -> filePath.toString()
                 ).collect(Collectors.toList())
         );
+        execution.setVariable("quarantinedFiles",
+                quarantinedFiles.stream().map(
+                        filePath -> filePath.toString()
+                ).collect(Collectors.toList())
+        );
+    }
+
+    private static boolean isArchive(String pathToSip) {
+        return pathToSip != null && pathToSip.toLowerCase().endsWith(".zip") && Files.isRegularFile(Paths.get(pathToSip));
     }
 
     @Inject
     public void setScanner(SIPAntivirusScanner scanner) {
         this.scanner = scanner;
     }
+
+    @Inject
+    public void setEarlyQuarantine(@Value("${arclib.earlyQuarantine}") boolean earlyQuarantine) {
+        this.earlyQuarantine = earlyQuarantine;
+    }
 }
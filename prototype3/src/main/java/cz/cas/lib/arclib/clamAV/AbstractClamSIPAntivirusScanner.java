@@ -0,0 +1,108 @@
+package cz.cas.lib.arclib.clamAV;
+
+import cz.cas.lib.arclib.SIPAntivirusScanner;
+import cz.cas.lib.arclib.SIPAntivirusScannerException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static cz.cas.lib.arclib.Util.Utils.notNull;
+
+/**
+ * Common part of the ClamAV scanners, the quarantine is the folder <i>quarantine</i> inside the ClamAV folder.
+ */
+@Slf4j
+public abstract class AbstractClamSIPAntivirusScanner implements SIPAntivirusScanner {
+
+    /**
+     * Checks that the SIP to scan exists.
+     *
+     * @param pathToSIP absoulte path to SIP
+     * @throws FileNotFoundException if there is no file/folder at the path
+     */
+    protected void checkSIP(String pathToSIP) throws FileNotFoundException {
+        notNull(pathToSIP, () -> {
+            throw new IllegalArgumentException("null path to SIP package");
+        });
+        if (!new File(pathToSIP).exists())
+            throw new FileNotFoundException("no file/folder found at: " + pathToSIP);
+    }
+
+    /**
+     * Scans SIP packed in a ZIP archive by unpacking it to a temporary folder, scanning the folder and deleting it.
+     * Scanners able to scan the entries without unpacking override this method.
+     *
+     * @param pathToArchive absoulte path to ZIP archive with SIP
+     * @return list with paths inside the archive of the infected entries if threat was detected, empty list otherwise
+     * @throws IOException                  if the archive cannot be unpacked or contains entry outside of its root
+     * @throws InterruptedException
+     * @throws SIPAntivirusScannerException if error occurs during the antivirus scan process
+     */
+    @Override
+    public List<String> scanArchive(String pathToArchive) throws IOException, InterruptedException,
+            SIPAntivirusScannerException {
+        checkSIP(pathToArchive);
+
+        Path folder = Files.createTempDirectory("arclib-av");
+        try {
+            try (ZipFile zip = new ZipFile(pathToArchive)) {
+                for (ZipEntry entry : Collections.list(zip.entries())) {
+                    Path target = folder.resolve(entry.getName()).normalize();
+                    if (!target.startsWith(folder))
+                        throw new IOException("entry outside of the archive root: " + entry.getName());
+
+                    if (entry.isDirectory()) {
+                        Files.createDirectories(target);
+                    } else {
+                        Files.createDirectories(target.getParent());
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            Files.copy(in, target);
+                        }
+                    }
+                }
+            }
+
+            Path root = folder.toRealPath();
+            return scan(root.toString()).stream()
+                    .map(file -> root.relativize(file.toAbsolutePath()).toString().replace(File.separatorChar, '/'))
+                    .collect(Collectors.toList());
+        } finally {
+            try (Stream<Path> walk = Files.walk(folder)) {
+                walk.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * Moves files to quarantine. There must be CLAMAV environment variable pointing to CLAMAV directory.
+     *
+     * @param infectedFiles
+     */
+    @Override
+    public void moveToQuarantine(List<Path> infectedFiles) throws IOException {
+        log.info("moving " + infectedFiles.size() + " infected files to quarantine at " + System.getenv("CLAMAV") + "/quarantine");
+        infectedFiles.stream().forEach(
+                path -> {
+                    try {
+                        log.info("moving " + path.getFileName() + " to quarantine");
+                        Files.move(path, Paths.get(System.getenv("CLAMAV"), "quarantine").resolve(path.getFileName()));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+        );
+    }
+}
@@ -1,12 +1,11 @@
 package cz.cas.lib.arclib.clamAV;
 
-import cz.cas.lib.arclib.SIPAntivirusScanner;
 import cz.cas.lib.arclib.SIPAntivirusScannerException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -14,11 +13,13 @@ import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import static cz.cas.lib.arclib.Util.Utils.notNull;
-
+/**
+ * Scanner running <i>clamscan</i> for every SIP, used unless <i>arclib.antivirus</i> is set to <i>clamd</i>.
+ */
 @Service
 @Slf4j
-public class ClamSIPAntivirusScanner implements SIPAntivirusScanner {
+@ConditionalOnProperty(name = "arclib.antivirus", havingValue = "clamscan", matchIfMissing = true)
+public class ClamSIPAntivirusScanner extends AbstractClamSIPAntivirusScanner {
 
     private static final String CMD = "clamscan";
 
@@ -36,11 +37,7 @@ public class ClamSIPAntivirusScanner implements SIPAntivirusScanner {
     @Override
     public List<Path> scan(String pathToSIP) throws IOException, InterruptedException, SIPAntivirusScannerException {
         log.info("scanning file at path: " + pathToSIP);
-        notNull(pathToSIP, () -> {
-            throw new IllegalArgumentException("null path to SIP package");
-        });
-        if (!new File(pathToSIP).exists())
-            throw new FileNotFoundException("no file/folder found at: " + pathToSIP);
+        checkSIP(pathToSIP);
         BufferedReader br;
         StringBuilder sb;
         String line;
@@ -78,24 +75,4 @@ public class ClamSIPAntivirusScanner implements SIPAntivirusScanner {
                 throw new SIPAntivirusScannerException(sb.toString());
         }
     }
-
-    /**
-     * Moves files to quarantine. There must be CLAMAV environment variable pointing to CLAMAV directory.
-     *
-     * @param infectedFiles
-     */
-    @Override
-    public void moveToQuarantine(List<Path> infectedFiles) throws IOException {
-        log.info("moving " + infectedFiles.size() + " infected files to quarantine at " + System.getenv("CLAMAV") + "/quarantine");
-        infectedFiles.stream().forEach(
-                path -> {
-                    try {
-                        log.info("moving " + path.getFileName() + " to quarantine");
-                        Files.move(path, Paths.get(System.getenv("CLAMAV"), "quarantine").resolve(path.getFileName()));
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                }
-        );
-    }
 }
@@ -0,0 +1,279 @@
+package cz.cas.lib.arclib.clamAV;
+
+import cz.cas.lib.arclib.SIPAntivirusScannerException;
+import lombok.extern.slf4j.Slf4j;
+import org.newsclub.net.unix.AFUNIXSocket;
+import org.newsclub.net.unix.AFUNIXSocketAddress;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client of a long running clamd daemon, so the signature database is loaded only once by clamd instead of once per
+ * scan.
+ * <p>
+ * clamd is reached by the UNIX socket {@link #socket} if it is set, otherwise by TCP at {@link #host}:{@link #port}.
+ * The INSTREAM commands use a pool of at most {@link #poolSize} session connections, connections idle for
+ * {@link #idleTimeout} milliseconds are not reused because clamd closes them. The MULTISCAN commands cannot be sent
+ * in a session and use a new connection every time.
+ * </p>
+ * <p>
+ * A connection whose INSTREAM command does not finish within the scan timeout is closed by a watchdog, so a scan
+ * blocked on a write to clamd ends too.
+ * </p>
+ */
+@Slf4j
+@Component
+public class ClamdClient {
+    private final Deque<ClamdConnection> idle = new ConcurrentLinkedDeque<>();
+    private final ScheduledThreadPoolExecutor watchdogs = newWatchdogs();
+
+    private String socket;
+    private String host;
+    private int port;
+    private int timeout;
+    private long idleTimeout;
+    private int chunkSize;
+    private Semaphore permits;
+
+    /**
+     * Scans the data by the INSTREAM command.
+     *
+     * @param data        data to scan, not closed
+     * @param scanTimeout time in milliseconds to stream the data and receive the reply, not counting the wait for
+     *                    a free connection
+     * @return reply of clamd without the stream name, i.e. <i>OK</i> or <i>signature FOUND</i>
+     * @throws java.net.SocketTimeoutException if the scan does not finish within the timeout
+     * @throws IOException                     if the communication with clamd fails
+     * @throws InterruptedException            if interrupted while waiting for a connection
+     * @throws SIPAntivirusScannerException    if clamd reports an error
+     */
+    public String instream(InputStream data, long scanTimeout) throws IOException, InterruptedException,
+            SIPAntivirusScannerException {
+        if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            throw new SIPAntivirusScannerException("no free connection to clamd within " + timeout + " ms");
+        }
+
+        ClamdConnection connection = null;
+        Watchdog watchdog = null;
+        try {
+            connection = borrow();
+            watchdog = new Watchdog(connection, scanTimeout);
+            long deadline = System.currentTimeMillis() + scanTimeout;
+
+            String reply;
+            try {
+                reply = connection.instream(data, new byte[chunkSize], deadline);
+            } catch (IOException e) {
+                if (watchdog.expired()) {
+                    throw new SocketTimeoutException("scan timed out after " + scanTimeout + " ms");
+                }
+                throw e;
+            }
+
+            String result = reply(reply);
+            if (watchdog.stop()) {
+                idle.push(connection);
+                connection = null;
+            }
+            return result;
+        } finally {
+            if (watchdog != null) {
+                watchdog.stop();
+            }
+            if (connection != null) {
+                connection.close();
+            }
+            permits.release();
+        }
+    }
+
+    /**
+     * Strips the stream name from the reply of clamd. A connection whose reply is an error is not reused, clamd may
+     * have ended the session.
+     *
+     * @throws SIPAntivirusScannerException if clamd reports an error
+     */
+    private static String reply(String reply) throws SIPAntivirusScannerException {
+        if (reply.endsWith("ERROR")) {
+            throw new SIPAntivirusScannerException(reply);
+        }
+        return reply.startsWith("stream: ") ? reply.substring("stream: ".length()) : reply;
+    }
+
+    /**
+     * Scans the file or folder by the MULTISCAN command, clamd must be able to read it at the given path.
+     *
+     * @param path        absolute path to the file or folder
+     * @param scanTimeout time in milliseconds to receive all the replies, i.e. to scan the whole file or folder
+     * @return replies of clamd, one per infected file, <i>path: signature FOUND</i>, or <i>path: OK</i> if there is no
+     * infected file
+     * @throws java.net.SocketTimeoutException if the scan does not finish within the timeout
+     * @throws IOException                     if the communication with clamd fails
+     */
+    public List<String> multiscan(Path path, long scanTimeout) throws IOException {
+        try (ClamdConnection connection = new ClamdConnection(connect(), false)) {
+            return connection.command("MULTISCAN " + path, System.currentTimeMillis() + scanTimeout);
+        }
+    }
+
+    /**
+     * Gets the version of clamd and of its signature database.
+     *
+     * @return reply of clamd, e.g. <i>ClamAV 0.99.2/23825/Thu Oct 12 10:32:40 2017</i>
+     * @throws IOException if the communication with clamd fails
+     */
+    public String version() throws IOException {
+        try (ClamdConnection connection = new ClamdConnection(connect(), false)) {
+            List<String> replies = connection.command("VERSION", System.currentTimeMillis() + timeout);
+            return replies.isEmpty() ? null : replies.get(0);
+        }
+    }
+
+    /**
+     * Closes the idle connections.
+     */
+    @PreDestroy
+    public void close() {
+        watchdogs.shutdownNow();
+
+        ClamdConnection connection;
+        while ((connection = idle.poll()) != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                log.warn("closing of connection to clamd failed", e);
+            }
+        }
+    }
+
+    private static ScheduledThreadPoolExecutor newWatchdogs() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "clamd-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Closes the connection when the scan does not finish in time. The timeout of the socket applies only to the reads,
+     * a write blocked because clamd stopped reading the stream is ended only by closing the socket.
+     */
+    private class Watchdog {
+        private static final int RUNNING = 0;
+        private static final int STOPPED = 1;
+        private static final int EXPIRED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private final ScheduledFuture<?> alarm;
+
+        private Watchdog(ClamdConnection connection, long timeout) {
+            alarm = watchdogs.schedule(() -> {
+                if (state.compareAndSet(RUNNING, EXPIRED)) {
+                    try {
+                        connection.abort();
+                    } catch (IOException e) {
+                        log.warn("closing of timed out connection to clamd failed", e);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Stops the watchdog.
+         *
+         * @return true if the connection has not been closed by the watchdog
+         */
+        private boolean stop() {
+            if (state.compareAndSet(RUNNING, STOPPED)) {
+                alarm.cancel(false);
+            }
+            return state.get() == STOPPED;
+        }
+
+        private boolean expired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection or opens a new one. The idle connections too old to be reused are
+     * closed.
+     */
+    private ClamdConnection borrow() throws IOException {
+        long now = System.currentTimeMillis();
+        ClamdConnection connection;
+        while ((connection = idle.poll()) != null) {
+            if (now - connection.getLastUsed() < idleTimeout) {
+                return connection;
+            }
+            connection.close();
+        }
+
+        log.debug("opening new connection to clamd");
+        return new ClamdConnection(connect(), true);
+    }
+
+    private Socket connect() throws IOException {
+        Socket connection;
+        if (!socket.isEmpty()) {
+            connection = AFUNIXSocket.newInstance();
+            connection.connect(new AFUNIXSocketAddress(new File(socket)), timeout);
+        } else {
+            connection = new Socket();
+            connection.connect(new InetSocketAddress(host, port), timeout);
+        }
+        connection.setSoTimeout(timeout);
+        return connection;
+    }
+
+    @Inject
+    public void setSocket(@Value("${arclib.clamd.socket}") String socket) {
+        this.socket = socket.trim();
+    }
+
+    @Inject
+    public void setHost(@Value("${arclib.clamd.host}") String host) {
+        this.host = host;
+    }
+
+    @Inject
+    public void setPort(@Value("${arclib.clamd.port}") int port) {
+        this.port = port;
+    }
+
+    @Inject
+    public void setPoolSize(@Value("${arclib.clamd.poolSize}") int poolSize) {
+        this.permits = new Semaphore(poolSize, true);
+    }
+
+    @Inject
+    public void setTimeout(@Value("${arclib.clamd.timeout}") int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Inject
+    public void setIdleTimeout(@Value("${arclib.clamd.idleTimeout}") long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    @Inject
+    public void setChunkSize(@Value("${arclib.clamd.chunkSize}") int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+}
@@ -0,0 +1,165 @@
+package cz.cas.lib.arclib.clamAV;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Connection to clamd using the null terminated commands.
+ * <p>
+ * A session connection is opened by IDSESSION and accepts multiple INSTREAM commands, their replies are prefixed
+ * by the number of the command in the session. Other connections accept a single command and are closed by clamd
+ * after the reply.
+ * </p>
+ */
+class ClamdConnection implements Closeable {
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final InputStream in;
+    private final boolean session;
+
+    private int commands;
+    private long lastUsed;
+
+    ClamdConnection(Socket socket, boolean session) throws IOException {
+        this.socket = socket;
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.session = session;
+        this.lastUsed = System.currentTimeMillis();
+
+        if (session) {
+            send("IDSESSION");
+            out.flush();
+        }
+    }
+
+    /**
+     * Streams the data to clamd by the INSTREAM command.
+     *
+     * @param data     data to scan
+     * @param buffer   buffer for the chunks of the data
+     * @param deadline time in milliseconds until which the reply must be received
+     * @return reply of clamd without the number of the command, e.g. <i>stream: OK</i>
+     * @throws SocketTimeoutException if the deadline passes, the connection must not be used any more
+     * @throws IOException            if the connection fails, e.g. when the data exceed the StreamMaxLength of clamd
+     */
+    String instream(InputStream data, byte[] buffer, long deadline) throws IOException {
+        send("INSTREAM");
+        int read;
+        while ((read = data.read(buffer)) > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                throw new SocketTimeoutException("scan timed out while streaming to clamd");
+            }
+            out.writeInt(read);
+            out.write(buffer, 0, read);
+        }
+        out.writeInt(0);
+        out.flush();
+
+        String reply = readReply(deadline);
+        if (reply == null) {
+            throw new EOFException("clamd closed the connection without reply");
+        }
+        lastUsed = System.currentTimeMillis();
+
+        String prefix = ++commands + ": ";
+        return session && reply.startsWith(prefix) ? reply.substring(prefix.length()) : reply;
+    }
+
+    /**
+     * Sends the command and reads all the replies until clamd closes the connection. Must not be used on a session
+     * connection.
+     *
+     * @param command  command with its arguments, e.g. <i>MULTISCAN /path</i>
+     * @param deadline time in milliseconds until which all the replies must be received
+     * @return replies of clamd
+     * @throws SocketTimeoutException if the deadline passes
+     * @throws IOException            if the connection fails
+     */
+    List<String> command(String command, long deadline) throws IOException {
+        send(command);
+        out.flush();
+
+        List<String> replies = new ArrayList<>();
+        String reply;
+        while ((reply = readReply(deadline)) != null) {
+            replies.add(reply);
+        }
+        return replies;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    private void send(String command) throws IOException {
+        out.write(("z" + command + "\0").getBytes(UTF_8));
+    }
+
+    /**
+     * Reads the reply terminated by the null character, waiting at most until the deadline instead of the timeout
+     * of the socket, because clamd replies only after the scan.
+     *
+     * @return the reply or null if clamd closed the connection
+     * @throws SocketTimeoutException if the deadline passes
+     */
+    private String readReply(long deadline) throws IOException {
+        int soTimeout = socket.getSoTimeout();
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("timed out while waiting for the reply of clamd");
+        }
+        socket.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+        try {
+            return readReply();
+        } finally {
+            socket.setSoTimeout(soTimeout);
+        }
+    }
+
+    /**
+     * Reads the reply terminated by the null character.
+     *
+     * @return the reply or null if clamd closed the connection
+     */
+    private String readReply() throws IOException {
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) {
+            reply.write(b);
+        }
+        if (b < 0 && reply.size() == 0) {
+            return null;
+        }
+        return new String(reply.toByteArray(), UTF_8).trim();
+    }
+
+    /**
+     * Closes the socket without ending the session, e.g. from another thread when the scan times out.
+     */
+    void abort() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Ends the session, if any, and closes the socket.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (session && !socket.isClosed()) {
+                send("END");
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the connection is closed anyway
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package cz.cas.lib.arclib.clamAV;
+
+import cz.cas.lib.arclib.FileVerdict;
+import cz.cas.lib.arclib.SIPAntivirusScannerException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Scanner using a long running clamd, see {@link ClamdClient}, used if <i>arclib.antivirus</i> is set to <i>clamd</i>.
+ * <p>
+ * In the mode {@link ClamdScanMode#INSTREAM} the files of the SIP are streamed to clamd in parallel by a pool of
+ * {@link #threads} threads shared by all the scans, so a large SIP is scanned at the aggregate throughput of the clamd
+ * connections. The verdict of every file is reported as soon as it is known, the scan of a single file must finish
+ * within {@link #fileTimeout} milliseconds. In the mode {@link ClamdScanMode#MULTISCAN} clamd scans the SIP itself and
+ * the verdicts are reported after the whole SIP is scanned, the scan of the SIP must finish within {@link #scanTimeout}
+ * milliseconds.
+ * </p>
+ * <p>
+ * In the mode {@link ClamdScanMode#INSTREAM} the verdicts of the files are cached by the {@link VerdictCache}, the files
+ * with the content already scanned by the current signature database are not streamed again.
+ * </p>
+ * <p>
+ * ZIP archives are scanned by {@link #scanArchive(String)} entry by entry, streamed straight from the archive.
+ * </p>
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "arclib.antivirus", havingValue = "clamd")
+public class ClamdSIPAntivirusScanner extends AbstractClamSIPAntivirusScanner {
+    private static final Pattern FOUND = Pattern.compile("(.+): (.+) FOUND");
+    private static final Pattern ERROR = Pattern.compile("(.+): .+ ERROR");
+
+    private ClamdClient client;
+    private VerdictCache verdictCache;
+    private ClamdScanMode mode;
+    private int threads;
+    private long fileTimeout;
+    private long scanTimeout;
+
+    private ExecutorService executor;
+
+    /**
+     * Scans SIP package for viruses.
+     *
+     * @param pathToSIP absoulte path to SIP
+     * @return list with paths to infected files if threat was detected, empty list otherwise
+     * @throws IOException                  if the SIP cannot be read or the communication with clamd fails
+     * @throws InterruptedException         if interrupted while waiting for the scan
+     * @throws SIPAntivirusScannerException if clamd reports an error or the scan of a file times out
+     */
+    @Override
+    public List<Path> scan(String pathToSIP) throws IOException, InterruptedException, SIPAntivirusScannerException {
+        return scan(pathToSIP, verdict -> {
+        });
+    }
+
+    /**
+     * Scans SIP package for viruses and passes the verdict of every file to the listener as soon as it is known.
+     * <p>
+     * Files whose scan fails or times out are not reported to the listener, the scan of the other files continues
+     * and the failure is thrown at the end. If the listener throws an exception, the scan of the remaining files is
+     * canceled.
+     * </p>
+     *
+     * @param pathToSIP absoulte path to SIP
+     * @param listener  listener of the verdicts, called by the calling thread
+     * @return list with paths to infected files if threat was detected, empty list otherwise
+     * @throws IOException                  if the SIP cannot be read or the communication with clamd fails
+     * @throws InterruptedException         if interrupted while waiting for the scan
+     * @throws SIPAntivirusScannerException if clamd reports an error or the scan of a file times out
+     */
+    @Override
+    public List<Path> scan(String pathToSIP, Consumer<FileVerdict> listener) throws IOException, InterruptedException,
+            SIPAntivirusScannerException {
+        log.info("scanning file at path: " + pathToSIP + " by clamd");
+        checkSIP(pathToSIP);
+
+        List<Path> infectedFiles = mode == ClamdScanMode.MULTISCAN
+                ? multiscan(Paths.get(pathToSIP), listener)
+                : instream(Paths.get(pathToSIP), listener);
+
+        log.info(infectedFiles.size() + " infected files found");
+        return infectedFiles;
+    }
+
+    /**
+     * Scans the entries of the ZIP archive by streaming them from the archive to clamd in parallel, the archive is not
+     * unpacked. The verdicts of the entries are cached by the {@link VerdictCache} the same way as the verdicts of the
+     * files, so every entry is inflated twice if the cache is enabled and its verdict is not cached, once for its
+     * digest and once for the scan.
+     *
+     * @param pathToArchive absolute path to the ZIP archive with SIP
+     * @return list with paths inside the archive of the infected entries, empty list otherwise
+     * @throws IOException                  if the archive cannot be read or the communication with clamd fails
+     * @throws InterruptedException         if interrupted while waiting for the scan
+     * @throws SIPAntivirusScannerException if clamd reports an error or the scan of an entry times out
+     */
+    @Override
+    public List<String> scanArchive(String pathToArchive) throws IOException, InterruptedException,
+            SIPAntivirusScannerException {
+        log.info("scanning archive at path: " + pathToArchive + " by clamd");
+        checkSIP(pathToArchive);
+
+        try (ZipFile zip = new ZipFile(pathToArchive)) {
+            Map<Path, String> names = new HashMap<>();
+            List<Callable<FileVerdict>> tasks = new ArrayList<>();
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+
+                Path name = Paths.get(entry.getName());
+                names.put(name, entry.getName());
+                tasks.add(() -> scanContent(name, Math.max(entry.getSize(), 0), () -> zip.getInputStream(entry)));
+            }
+
+            List<String> infectedEntries = scanParallel(tasks, verdict -> {
+            }).stream()
+                    .map(verdict -> names.get(verdict.getFile()))
+                    .collect(Collectors.toList());
+
+            log.info(infectedEntries.size() + " infected entries found");
+            return infectedEntries;
+        }
+    }
+
+    private List<Path> instream(Path sip, Consumer<FileVerdict> listener) throws IOException, InterruptedException,
+            SIPAntivirusScannerException {
+        List<Callable<FileVerdict>> tasks;
+        try (Stream<Path> walk = Files.walk(sip)) {
+            tasks = walk.filter(Files::isRegularFile)
+                    .map(file -> (Callable<FileVerdict>) () ->
+                            scanContent(file, Files.size(file), () -> Files.newInputStream(file)))
+                    .collect(Collectors.toList());
+        }
+
+        return scanParallel(tasks, listener).stream()
+                .map(FileVerdict::getFile)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Runs the scans by the pool of threads and passes the verdicts to the listener in the order of their completion.
+     * When the scanning ends early, e.g. because the thread is interrupted, the scans not started yet are skipped and
+     * the method returns only after the running ones have stopped, so the sources of their content can be closed.
+     * A running scan stops at the latest when its {@link #fileTimeout} passes.
+     *
+     * @param tasks    scans of the single files
+     * @param listener listener of the verdicts
+     * @return verdicts of the infected files
+     */
+    private List<FileVerdict> scanParallel(List<Callable<FileVerdict>> tasks, Consumer<FileVerdict> listener)
+            throws InterruptedException, SIPAntivirusScannerException {
+        CompletionService<FileVerdict> completion = new ExecutorCompletionService<>(executor);
+        List<Scan> scans = new ArrayList<>();
+        for (Callable<FileVerdict> task : tasks) {
+            Scan scan = new Scan(task);
+            scan.future = completion.submit(scan);
+            scans.add(scan);
+        }
+
+        List<FileVerdict> infected = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                FileVerdict verdict;
+                try {
+                    verdict = completion.take().get();
+                } catch (ExecutionException e) {
+                    log.error("scan of file failed", e.getCause());
+                    failures.add(e.getCause().getMessage());
+                    continue;
+                }
+
+                if (verdict.isInfected()) {
+                    log.info(verdict.getFile() + " is infected");
+                    infected.add(verdict);
+                }
+                listener.accept(verdict);
+            }
+        } finally {
+            stop(scans);
+        }
+
+        if (!failures.isEmpty()) {
+            throw new SIPAntivirusScannerException("scan of " + failures.size() + " files failed: " + failures);
+        }
+        return infected;
+    }
+
+    /**
+     * Skips the scans not started yet, interrupts the running ones and waits until they stop.
+     */
+    private static void stop(List<Scan> scans) {
+        boolean interrupted = false;
+
+        for (Scan scan : scans) {
+            if (scan.started.compareAndSet(false, true)) {
+                scan.future.cancel(false);
+                continue;
+            }
+
+            scan.future.cancel(true);
+            while (true) {
+                try {
+                    scan.finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Scan of a single file which can be skipped before it starts and waited for after it has been cancelled
+     */
+    private static class Scan implements Callable<FileVerdict> {
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final Callable<FileVerdict> task;
+        private Future<FileVerdict> future;
+
+        private Scan(Callable<FileVerdict> task) {
+            this.task = task;
+        }
+
+        @Override
+        public FileVerdict call() throws Exception {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+
+            try {
+                return task.call();
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * Scans the content of a file, unless its verdict is found in the {@link VerdictCache}. The digest of the content
+     * is computed locally and the cache is looked up before connecting to clamd, so a hit neither streams the content
+     * nor takes a connection to clamd.
+     *
+     * @param file    path to the file reported in the verdict
+     * @param size    size of the content in bytes
+     * @param content source of the content, opened once for the digest and once for the scan on a miss
+     */
+    private FileVerdict scanContent(Path file, long size, Content content) throws InterruptedException,
+            SIPAntivirusScannerException {
+        String reply;
+        try {
+            String version = null;
+            String digest = null;
+            if (verdictCache.isEnabled()) {
+                version = verdictCache.signatureVersion();
+                try (InputStream in = content.open()) {
+                    digest = VerdictCache.digest(in);
+                }
+                reply = verdictCache.get(digest, version);
+                if (reply != null) {
+                    verdictCache.hit(size);
+                    return verdict(file, reply);
+                }
+            }
+
+            long start = System.nanoTime();
+            try (InputStream in = content.open()) {
+                reply = client.instream(in, fileTimeout);
+            }
+
+            if (verdictCache.isEnabled()) {
+                verdictCache.miss(size, System.nanoTime() - start);
+                verdictCache.put(digest, version, reply);
+            }
+        } catch (IOException | SIPAntivirusScannerException e) {
+            throw new SIPAntivirusScannerException(file + ": " + e.getMessage());
+        }
+        return verdict(file, reply);
+    }
+
+    private static FileVerdict verdict(Path file, String reply) {
+        boolean infected = reply.endsWith(" FOUND");
+        return new FileVerdict(file, infected, infected ? reply.substring(0, reply.length() - " FOUND".length()) : null);
+    }
+
+    private List<Path> multiscan(Path sip, Consumer<FileVerdict> listener) throws IOException,
+            SIPAntivirusScannerException {
+        List<FileVerdict> verdicts = new ArrayList<>();
+        for (String reply : client.multiscan(sip.toAbsolutePath(), scanTimeout)) {
+            Matcher matcher = FOUND.matcher(reply);
+            if (matcher.matches()) {
+                log.info(matcher.group(1) + " is infected");
+                verdicts.add(new FileVerdict(Paths.get(matcher.group(1)), true, matcher.group(2)));
+            } else if (ERROR.matcher(reply).matches()) {
+                throw new SIPAntivirusScannerException(reply);
+            }
+        }
+
+        verdicts.forEach(listener);
+        return verdicts.stream().map(FileVerdict::getFile).collect(Collectors.toList());
+    }
+
+    /**
+     * Source of the content to scan
+     */
+    @FunctionalInterface
+    private interface Content {
+        InputStream open() throws IOException;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Inject
+    public void setClient(ClamdClient client) {
+        this.client = client;
+    }
+
+    @Inject
+    public void setVerdictCache(VerdictCache verdictCache) {
+        this.verdictCache = verdictCache;
+    }
+
+    @Inject
+    public void setMode(@Value("${arclib.clamd.mode}") ClamdScanMode mode) {
+        this.mode = mode;
+    }
+
+    @Inject
+    public void setThreads(@Value("${arclib.clamd.threads}") int threads) {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @Inject
+    public void setFileTimeout(@Value("${arclib.clamd.fileTimeout}") long fileTimeout) {
+        this.fileTimeout = fileTimeout;
+    }
+
+    @Inject
+    public void setScanTimeout(@Value("${arclib.clamd.scanTimeout}") long scanTimeout) {
+        this.scanTimeout = scanTimeout;
+    }
+}
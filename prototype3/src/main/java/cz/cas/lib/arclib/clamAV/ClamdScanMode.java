@@ -0,0 +1,17 @@
+package cz.cas.lib.arclib.clamAV;
+
+/**
+ * Way the files of a SIP are passed to clamd
+ */
+public enum ClamdScanMode {
+    /**
+     * Contents of the files are streamed to clamd through the pooled connections, clamd may run on another machine
+     */
+    INSTREAM,
+
+    /**
+     * Path to the SIP is sent to clamd, which scans the files with multiple threads, clamd must see the SIP at the same
+     * path
+     */
+    MULTISCAN
+}
@@ -0,0 +1,217 @@
+package cz.cas.lib.arclib.clamAV;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent cache of the replies of clamd keyed by the SHA-256 digest of the scanned content and the version of
+ * the signature database, so the files present in many SIPs are scanned only once per signature database.
+ * <p>
+ * The version is read from clamd at most once per {@link #versionCheckInterval} milliseconds. When it changes, the
+ * cached verdicts of the previous versions stop matching and are deleted.
+ * </p>
+ * <p>
+ * The hits, misses, hit rate and the estimated time saved by the hits are published as metrics
+ * <i>arclib.verdictCache.*</i>. The saved time of a hit is the size of the file multiplied by the average scan time
+ * of a byte of the missed files.
+ * </p>
+ * <p>
+ * The verdicts are stored in the table <i>arclib_av_verdict</i> of the configured datasource, created by the Liquibase
+ * changelog.
+ * </p>
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "arclib.antivirus", havingValue = "clamd")
+public class VerdictCache implements PublicMetrics {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong scannedBytes = new AtomicLong();
+    private final AtomicLong scanNanos = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    private boolean enabled;
+    private long versionCheckInterval;
+    private JdbcTemplate jdbcTemplate;
+    private ClamdClient client;
+
+    private volatile String version;
+    private volatile long versionChecked;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the version of clamd and its signature database, e.g. <i>ClamAV 0.99.2/23825</i>.
+     *
+     * @return the version
+     * @throws IOException if the communication with clamd fails
+     */
+    public String signatureVersion() throws IOException {
+        long now = System.currentTimeMillis();
+        if (version != null && now - versionChecked < versionCheckInterval) {
+            return version;
+        }
+
+        synchronized (this) {
+            if (version == null || now - versionChecked >= versionCheckInterval) {
+                String reply = client.version();
+                String current = reply.lastIndexOf('/') > 0 ? reply.substring(0, reply.lastIndexOf('/')) : reply;
+
+                if (!current.equals(version)) {
+                    int deleted = jdbcTemplate.update("DELETE FROM arclib_av_verdict WHERE version <> ?", current);
+                    log.info("signature version changed to " + current + ", " + deleted + " cached verdicts deleted");
+                }
+                version = current;
+                versionChecked = now;
+            }
+            return version;
+        }
+    }
+
+    /**
+     * Gets the cached reply of clamd.
+     *
+     * @param digest  digest of the content, see {@link #digest(InputStream)}
+     * @param version version of the signature database
+     * @return the reply, i.e. <i>OK</i> or <i>signature FOUND</i>, or null if not cached
+     */
+    public String get(String digest, String version) {
+        List<String> replies = jdbcTemplate.queryForList(
+                "SELECT reply FROM arclib_av_verdict WHERE digest = ? AND version = ?", String.class, digest, version);
+        return replies.isEmpty() ? null : replies.get(0);
+    }
+
+    /**
+     * Caches the reply of clamd, the reply may have been cached in the meantime by another scan.
+     *
+     * @param digest  digest of the content, see {@link #digest(InputStream)}
+     * @param version version of the signature database
+     * @param reply   reply of clamd
+     */
+    public void put(String digest, String version, String reply) {
+        try {
+            jdbcTemplate.update("INSERT INTO arclib_av_verdict (digest, version, reply) VALUES (?, ?, ?)",
+                    digest, version, reply);
+        } catch (DuplicateKeyException e) {
+            // cached by a concurrent scan of the same content
+        }
+    }
+
+    /**
+     * Records a cache hit.
+     *
+     * @param size size of the file in bytes
+     */
+    public void hit(long size) {
+        hits.incrementAndGet();
+
+        long bytes = scannedBytes.get();
+        if (bytes > 0) {
+            savedNanos.addAndGet((long) (size * ((double) scanNanos.get() / bytes)));
+        }
+    }
+
+    /**
+     * Records a cache miss.
+     *
+     * @param size  size of the file in bytes
+     * @param nanos time of the scan in nanoseconds
+     */
+    public void miss(long size, long nanos) {
+        misses.incrementAndGet();
+        scannedBytes.addAndGet(size);
+        scanNanos.addAndGet(nanos);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public double getHitRate() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public long getSavedMillis() {
+        return savedNanos.get() / 1_000_000;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>("arclib.verdictCache.hits", getHits()),
+                new Metric<>("arclib.verdictCache.misses", getMisses()),
+                new Metric<>("arclib.verdictCache.hitRate", getHitRate()),
+                new Metric<>("arclib.verdictCache.savedMillis", getSavedMillis()));
+    }
+
+    /**
+     * Computes the SHA-256 digest of the content.
+     *
+     * @param in the content, not closed
+     * @return hexadecimal digest
+     * @throws IOException if the content cannot be read
+     */
+    public static String digest(InputStream in) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+        }
+
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Inject
+    public void setEnabled(@Value("${arclib.verdictCache.enabled}") boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Inject
+    public void setVersionCheckInterval(@Value("${arclib.verdictCache.versionCheckInterval}") long versionCheckInterval) {
+        this.versionCheckInterval = versionCheckInterval;
+    }
+
+    @Inject
+    public void setJdbcTemplate(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Inject
+    public void setClient(ClamdClient client) {
+        this.client = client;
+    }
+}
@@ -0,0 +1,362 @@
+package cz.cas.lib.arclib.clamAV;
+
+import cz.cas.lib.arclib.FileVerdict;
+import cz.cas.lib.arclib.SIPAntivirusScannerException;
+import liquibase.exception.LiquibaseException;
+import liquibase.integration.spring.SpringLiquibase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ClamdSIPAntivirusScannerTest {
+    private static final Path RESOURCES = Paths.get("src/test/resources");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeClamd clamd;
+    private ClamdClient client;
+    private VerdictCache verdictCache;
+    private ClamdSIPAntivirusScanner scanner;
+    private Path sip;
+
+    @Before
+    public void before() throws IOException {
+        clamd = new FakeClamd();
+
+        client = new ClamdClient();
+        client.setSocket("");
+        client.setHost("127.0.0.1");
+        client.setPort(clamd.getPort());
+        client.setPoolSize(2);
+        client.setTimeout(5000);
+        client.setIdleTimeout(25000);
+        client.setChunkSize(16);
+
+        verdictCache = new VerdictCache();
+        verdictCache.setEnabled(false);
+        verdictCache.setVersionCheckInterval(0);
+        verdictCache.setJdbcTemplate(new JdbcTemplate(verdictDataSource()));
+        verdictCache.setClient(client);
+
+        scanner = new ClamdSIPAntivirusScanner();
+        scanner.setClient(client);
+        scanner.setVerdictCache(verdictCache);
+        scanner.setMode(ClamdScanMode.INSTREAM);
+        scanner.setThreads(4);
+        scanner.setFileTimeout(5000);
+        scanner.setScanTimeout(5000);
+
+        sip = folder.newFolder("sip").toPath();
+        Files.copy(RESOURCES.resolve("testSIP/clean.txt"), sip.resolve("clean.txt"));
+        Files.copy(RESOURCES.resolve("eicar.com"), sip.resolve("eicar.com"));
+        Files.createDirectory(sip.resolve("nested"));
+        Files.copy(RESOURCES.resolve("eicar2.com"), sip.resolve("nested").resolve("eicar2.com"));
+    }
+
+    @After
+    public void after() throws IOException {
+        scanner.shutdown();
+        client.close();
+        clamd.close();
+    }
+
+    @Test
+    public void fileNotFoundPathTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        assertThrown(() -> scanner.scan("invalid path")).isInstanceOf(FileNotFoundException.class);
+    }
+
+    /**
+     * Tests that the files streamed to clamd are scanned and the infected files inside the folder and its subfolder
+     * are recognized.
+     */
+    @Test
+    public void instreamTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        List<Path> infectedFiles = scanner.scan(sip.toString());
+        assertThat(infectedFiles, containsInAnyOrder(sip.resolve("eicar.com"), sip.resolve("nested").resolve("eicar2.com")));
+        assertThat(clamd.getStreams(), equalTo(3));
+    }
+
+    /**
+     * Tests that a clean file is not evaluated as infected. Called on single file.
+     */
+    @Test
+    public void instreamOkFileTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        List<Path> infectedFiles = scanner.scan(sip.resolve("clean.txt").toString());
+        assertThat(infectedFiles, empty());
+    }
+
+    /**
+     * Tests that the infected files are recognized when clamd scans the folder itself.
+     */
+    @Test
+    public void multiscanTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        scanner.setMode(ClamdScanMode.MULTISCAN);
+
+        List<Path> infectedFiles = scanner.scan(sip.toString());
+        assertThat(infectedFiles, containsInAnyOrder(sip.resolve("eicar.com").toAbsolutePath(),
+                sip.resolve("nested").resolve("eicar2.com").toAbsolutePath()));
+    }
+
+    /**
+     * Tests that the scan by clamd of the folder itself may take longer than the timeout of the communication with
+     * clamd, only the timeout of the scan applies.
+     */
+    @Test
+    public void multiscanLongerThanTimeoutTest() throws InterruptedException, SIPAntivirusScannerException,
+            IOException {
+        scanner.setMode(ClamdScanMode.MULTISCAN);
+        client.setTimeout(200);
+        clamd.setDelay(1000);
+
+        assertThat(scanner.scan(sip.toString()), hasSize(2));
+    }
+
+    /**
+     * Tests that the scan by clamd of the folder itself fails if it does not finish within the timeout of the scan.
+     */
+    @Test
+    public void multiscanTimeoutTest() {
+        scanner.setMode(ClamdScanMode.MULTISCAN);
+        scanner.setScanTimeout(200);
+        clamd.setDelay(2000);
+
+        assertThrown(() -> scanner.scan(sip.toString())).isInstanceOf(SocketTimeoutException.class);
+    }
+
+    /**
+     * Tests that the session connections to clamd are reused by the subsequent scans instead of opening a connection
+     * per file, at most as many connections as the size of the pool are opened.
+     */
+    @Test
+    public void connectionReusedTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        for (int i = 0; i < 20; i++) {
+            Files.write(sip.resolve("clean" + i + ".txt"), ("clean file " + i).getBytes());
+        }
+
+        scanner.scan(sip.toString());
+        scanner.scan(sip.toString());
+
+        assertThat(clamd.getStreams(), equalTo(2 * 23));
+        assertThat(clamd.getConnections(), lessThanOrEqualTo(2));
+    }
+
+    /**
+     * Tests that the files are scanned in parallel, limited by the size of the connection pool.
+     */
+    @Test
+    public void parallelScanTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        for (int i = 0; i < 10; i++) {
+            Files.write(sip.resolve("clean" + i + ".txt"), ("clean file " + i).getBytes());
+        }
+        clamd.setDelay(100);
+
+        List<Path> infectedFiles = scanner.scan(sip.toString());
+        assertThat(infectedFiles, hasSize(2));
+        assertThat(clamd.getMaxActiveStreams(), equalTo(2));
+    }
+
+    /**
+     * Tests that the verdict of every file is passed to the listener with the name of the detected threat.
+     */
+    @Test
+    public void verdictsReportedTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        List<FileVerdict> verdicts = new ArrayList<>();
+        List<Path> infectedFiles = scanner.scan(sip.toString(), verdicts::add);
+
+        assertThat(verdicts, hasSize(3));
+        List<FileVerdict> infected = verdicts.stream().filter(FileVerdict::isInfected).collect(Collectors.toList());
+        assertThat(infected.stream().map(FileVerdict::getFile).collect(Collectors.toList()),
+                containsInAnyOrder(infectedFiles.toArray()));
+        assertThat(infected.get(0).getSignature(), equalTo("Eicar-Test-Signature"));
+    }
+
+    /**
+     * Tests that the scan fails within the timeout of a file if clamd stops reading the stream and the writes block.
+     */
+    @Test
+    public void blockedWriteTimeoutTest() throws IOException {
+        Files.write(sip.resolve("large.bin"), new byte[64 * 1024 * 1024]);
+        client.setChunkSize(65536);
+        clamd.setStalled(true);
+        scanner.setFileTimeout(500);
+
+        long start = System.currentTimeMillis();
+        assertThrown(() -> scanner.scan(sip.toString())).isInstanceOf(SIPAntivirusScannerException.class);
+        assertThat(System.currentTimeMillis() - start, lessThan(5000L));
+
+        clamd.setStalled(false);
+    }
+
+    /**
+     * Tests that the scan fails if clamd replies with an error and the connection is not reused by the next scan.
+     */
+    @Test
+    public void errorReplyTest() {
+        scanner.setThreads(1);
+        clamd.setStreamMaxLength(0);
+
+        assertThrown(() -> scanner.scan(sip.toString())).isInstanceOf(SIPAntivirusScannerException.class);
+        assertThat(clamd.getConnections(), equalTo(3));
+    }
+
+    /**
+     * Tests that the scan of a file may take longer than the timeout of the communication with clamd, only the
+     * timeout of the file applies.
+     */
+    @Test
+    public void instreamLongerThanTimeoutTest() throws InterruptedException, SIPAntivirusScannerException,
+            IOException {
+        client.setTimeout(200);
+        clamd.setDelay(1000);
+
+        assertThat(scanner.scan(sip.resolve("clean.txt").toString()), empty());
+    }
+
+    /**
+     * Tests that the scan fails if clamd does not reply within the timeout of a file.
+     */
+    @Test
+    public void fileTimeoutTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        clamd.setDelay(2000);
+        scanner.setFileTimeout(200);
+
+        assertThrown(() -> scanner.scan(sip.toString())).isInstanceOf(SIPAntivirusScannerException.class);
+    }
+
+    /**
+     * Tests that the entries of a ZIP archive are streamed to clamd without unpacking the archive and the infected
+     * entries are reported by their paths inside the archive.
+     */
+    @Test
+    public void archiveTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        Path archive = folder.getRoot().toPath().resolve("sip.zip");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            zip.putNextEntry(new ZipEntry("sip/"));
+            zip.closeEntry();
+            zipEntry(zip, "sip/clean.txt", sip.resolve("clean.txt"));
+            zipEntry(zip, "sip/nested/eicar.com", sip.resolve("eicar.com"));
+        }
+
+        List<String> infectedEntries = scanner.scanArchive(archive.toString());
+        assertThat(infectedEntries, contains("sip/nested/eicar.com"));
+        assertThat(clamd.getStreams(), equalTo(2));
+        assertThat(Files.exists(folder.getRoot().toPath().resolve("sip/nested/eicar.com")), is(false));
+    }
+
+    private static void zipEntry(ZipOutputStream zip, String name, Path file) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        Files.copy(file, zip);
+        zip.closeEntry();
+    }
+
+    /**
+     * Tests that the version of clamd and its signature database is read.
+     */
+    @Test
+    public void versionTest() throws IOException {
+        assertThat(client.version(), equalTo(FakeClamd.VERSION));
+    }
+
+    /**
+     * Tests that the files whose content was already scanned are not streamed to clamd again and the cached verdicts
+     * are the same as the verdicts of clamd, files with the same content are scanned once. Also tests that the hits
+     * are counted.
+     */
+    @Test
+    public void verdictCachedTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        verdictCache.setEnabled(true);
+        scanner.setThreads(1);
+        Files.copy(sip.resolve("clean.txt"), sip.resolve("nested").resolve("clean.txt"));
+
+        List<Path> infectedFiles = scanner.scan(sip.toString());
+        assertThat(infectedFiles, hasSize(2));
+        assertThat(clamd.getStreams(), equalTo(2));
+
+        int streams = clamd.getStreams();
+        List<FileVerdict> verdicts = new ArrayList<>();
+        assertThat(scanner.scan(sip.toString(), verdicts::add), containsInAnyOrder(infectedFiles.toArray()));
+        assertThat(clamd.getStreams(), equalTo(streams));
+        assertThat(verdicts.stream().filter(FileVerdict::isInfected).findAny().get().getSignature(),
+                equalTo("Eicar-Test-Signature"));
+
+        assertThat(verdictCache.getHits(), equalTo(6L));
+        assertThat(verdictCache.getHitRate(), equalTo(0.75));
+    }
+
+    /**
+     * Tests that the content of the files with a cached verdict does not reach clamd at all, the cache is looked up
+     * before a connection to clamd is taken.
+     */
+    @Test
+    public void verdictCacheHitNotStreamedTest() throws InterruptedException, SIPAntivirusScannerException,
+            IOException {
+        verdictCache.setEnabled(true);
+        verdictCache.setVersionCheckInterval(60000);
+        scanner.scan(sip.toString());
+
+        int connections = clamd.getConnections();
+        long streamedBytes = clamd.getStreamedBytes();
+        assertThat(scanner.scan(sip.toString()), hasSize(2));
+        assertThat(clamd.getConnections(), equalTo(connections));
+        assertThat(clamd.getStreamedBytes(), equalTo(streamedBytes));
+        assertThat(verdictCache.getHits(), equalTo(3L));
+    }
+
+    /**
+     * Tests that the cached verdicts are not used after the signature database of clamd changes.
+     */
+    @Test
+    public void verdictCacheInvalidatedTest() throws InterruptedException, SIPAntivirusScannerException, IOException {
+        verdictCache.setEnabled(true);
+        scanner.setThreads(1);
+
+        scanner.scan(sip.toString());
+        assertThat(clamd.getStreams(), equalTo(2));
+
+        clamd.setVersion("ClamAV 0.99.2/23826/Fri Oct 13 10:32:40 2017");
+        scanner.scan(sip.toString());
+        assertThat(clamd.getStreams(), equalTo(4));
+    }
+
+    /**
+     * Creates an in-memory database with the schema of the Liquibase changelog.
+     */
+    private static DataSource verdictDataSource() {
+        DataSource dataSource = new DriverManagerDataSource("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+
+        SpringLiquibase liquibase = new SpringLiquibase();
+        liquibase.setDataSource(dataSource);
+        liquibase.setChangeLog("classpath:/dbchangelog.arclib.xml");
+        liquibase.setResourceLoader(new DefaultResourceLoader());
+        try {
+            liquibase.afterPropertiesSet();
+        } catch (LiquibaseException e) {
+            throw new IllegalStateException(e);
+        }
+        return dataSource;
+    }
+}
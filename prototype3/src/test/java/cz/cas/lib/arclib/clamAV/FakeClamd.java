@@ -0,0 +1,222 @@
+package cz.cas.lib.arclib.clamAV;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Fake clamd listening on a TCP port of the loopback. Supports the null terminated commands IDSESSION, END, INSTREAM,
+ * MULTISCAN and VERSION, the files containing the EICAR test signature are reported as infected.
+ */
+public class FakeClamd implements Closeable {
+    public static final String VERSION = "ClamAV 0.99.2/23825/Thu Oct 12 10:32:40 2017";
+
+    private static final String EICAR = "EICAR-STANDARD-ANTIVIRUS-TEST-FILE";
+
+    private final ServerSocket server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final AtomicInteger streams = new AtomicInteger();
+    private final AtomicLong streamedBytes = new AtomicLong();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final AtomicInteger maxActiveStreams = new AtomicInteger();
+
+    private volatile long delay;
+    private volatile int streamMaxLength = Integer.MAX_VALUE;
+    private volatile boolean stalled;
+    private volatile String version = VERSION;
+
+    public FakeClamd() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        executor.submit(this::accept);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Gets the number of the accepted connections.
+     */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    /**
+     * Gets the number of the scanned streams, streams abandoned by the client before their end are not scanned.
+     */
+    public int getStreams() {
+        return streams.get();
+    }
+
+    /**
+     * Gets the number of the bytes received by INSTREAM, including the streams abandoned by the client.
+     */
+    public long getStreamedBytes() {
+        return streamedBytes.get();
+    }
+
+    /**
+     * Gets the highest number of the streams scanned at the same time.
+     */
+    public int getMaxActiveStreams() {
+        return maxActiveStreams.get();
+    }
+
+    /**
+     * Sets the time in milliseconds to wait before replying to INSTREAM and MULTISCAN.
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    /**
+     * Sets whether INSTREAM stops reading the stream, so the writes of the client block once the buffers are full.
+     */
+    public void setStalled(boolean stalled) {
+        this.stalled = stalled;
+    }
+
+    /**
+     * Sets the maximal length of the stream in bytes, INSTREAM of longer data is replied with an error.
+     */
+    public void setStreamMaxLength(int streamMaxLength) {
+        this.streamMaxLength = streamMaxLength;
+    }
+
+    /**
+     * Sets the version reported by VERSION.
+     */
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                connections.incrementAndGet();
+                executor.submit(() -> serve(socket));
+            }
+        } catch (IOException e) {
+            // server closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            OutputStream out = s.getOutputStream();
+            boolean session = false;
+            int id = 0;
+
+            String command;
+            while ((command = read(in)) != null) {
+                String reply;
+                if (command.equals("zIDSESSION")) {
+                    session = true;
+                    continue;
+                } else if (command.equals("zEND")) {
+                    return;
+                } else if (command.equals("zINSTREAM")) {
+                    int active = activeStreams.incrementAndGet();
+                    maxActiveStreams.accumulateAndGet(active, Math::max);
+                    try {
+                        while (stalled) {
+                            Thread.sleep(100);
+                        }
+                        byte[] data = readStream(in);
+                        streams.incrementAndGet();
+                        reply = data.length > streamMaxLength
+                                ? "INSTREAM size limit exceeded. ERROR"
+                                : "stream: " + verdict(data);
+                        Thread.sleep(delay);
+                    } finally {
+                        activeStreams.decrementAndGet();
+                    }
+                } else if (command.equals("zVERSION")) {
+                    reply = version;
+                } else if (command.startsWith("zMULTISCAN ") && !session) {
+                    multiscan(Paths.get(command.substring("zMULTISCAN ".length())), out);
+                    return;
+                } else {
+                    reply = "UNKNOWN COMMAND";
+                }
+
+                out.write(((session ? ++id + ": " : "") + reply + "\0").getBytes(UTF_8));
+                out.flush();
+                if (!session) {
+                    return;
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // connection closed by the client or the server closed
+        }
+    }
+
+    private void multiscan(Path path, OutputStream out) throws IOException, InterruptedException {
+        Thread.sleep(delay);
+
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(path)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+
+        boolean found = false;
+        for (Path file : files) {
+            String verdict = verdict(Files.readAllBytes(file));
+            if (!verdict.equals("OK")) {
+                out.write((file + ": " + verdict + "\0").getBytes(UTF_8));
+                found = true;
+            }
+        }
+        if (!found) {
+            out.write((path + ": OK\0").getBytes(UTF_8));
+        }
+        out.flush();
+    }
+
+    private static String verdict(byte[] data) {
+        return new String(data, UTF_8).contains(EICAR) ? "Eicar-Test-Signature FOUND" : "OK";
+    }
+
+    private byte[] readStream(DataInputStream in) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int length;
+        while ((length = in.readInt()) > 0) {
+            byte[] chunk = new byte[length];
+            in.readFully(chunk);
+            streamedBytes.addAndGet(length);
+            data.write(chunk);
+        }
+        return data.toByteArray();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream command = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) {
+            command.write(b);
+        }
+        return b < 0 ? null : new String(command.toByteArray(), UTF_8);
+    }
+}
@@ -0,0 +1,230 @@
+package cz.cas.lib.arclib.fixity;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static cz.cas.lib.arclib.utils.Utils.notNull;
+
+/**
+ * Computation of several digests of a file in a single pass.
+ * <p>
+ * The file is read by a {@link FileChannel} to {@link #buffers} direct buffers of {@link #bufferSize} bytes, used
+ * round-robin. Every algorithm is computed by its own thread which digests the filled buffers in the order of reading,
+ * so the reading of the next buffers overlaps with the digesting of the previous ones and the algorithms are computed
+ * in parallel. A buffer is filled again only after all the algorithms have digested it. Files fitting into a single
+ * buffer are digested by the calling thread.
+ * </p>
+ * <p>
+ * The buffers are allocated once per calling thread and reused for all the files read by the thread.
+ * </p>
+ */
+@Slf4j
+@Service
+public class DigestEngine {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "digest-engine");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ThreadLocal<ByteBuffer[]> threadBuffers = new ThreadLocal<>();
+
+    private int bufferSize = 1 << 20;
+    private int buffers = 4;
+
+    /**
+     * Computes digests of the file by the given algorithms, the file is read once.
+     *
+     * @param pathToFile Path to file which digests have to be computed.
+     * @param algorithms Names of the {@link MessageDigest} algorithms, e.g. MD5, SHA-256, SHA-512.
+     * @return map of the computed digests by the algorithms, in the order of the algorithms
+     * @throws FileNotFoundException    if there is no file at the path
+     * @throws IOException              if the file cannot be read
+     * @throws IllegalArgumentException if some of the algorithms is not supported
+     */
+    public Map<String, byte[]> computeDigests(Path pathToFile, Collection<String> algorithms) throws IOException {
+        notNull(pathToFile, () -> {
+            throw new IllegalArgumentException();
+        });
+        notNull(algorithms, () -> {
+            throw new IllegalArgumentException();
+        });
+
+        Map<String, MessageDigest> digests = new LinkedHashMap<>();
+        for (String algorithm : algorithms) {
+            try {
+                digests.put(algorithm, MessageDigest.getInstance(algorithm));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("unsupported digest algorithm: " + algorithm, e);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(pathToFile, StandardOpenOption.READ)) {
+            ByteBuffer[] buffers = buffers();
+            if (channel.size() <= bufferSize || digests.size() == 0) {
+                digestInline(channel, buffers[0], digests.values());
+            } else {
+                digestPipelined(channel, buffers, digests.values());
+            }
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("no file found at: " + pathToFile);
+        }
+
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        digests.forEach((algorithm, digest) -> result.put(algorithm, digest.digest()));
+        return result;
+    }
+
+    private void digestInline(FileChannel channel, ByteBuffer buffer, Collection<MessageDigest> digests)
+            throws IOException {
+        while (fill(channel, buffer)) {
+            for (MessageDigest digest : digests) {
+                digest.update(buffer.duplicate());
+            }
+        }
+    }
+
+    private void digestPipelined(FileChannel channel, ByteBuffer[] buffers, Collection<MessageDigest> digests)
+            throws IOException {
+        Semaphore[] digested = new Semaphore[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            digested[i] = new Semaphore(digests.size());
+        }
+
+        List<Lane> lanes = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        for (MessageDigest digest : digests) {
+            Lane lane = new Lane(digest, digested);
+            lanes.add(lane);
+            futures.add(executor.submit(lane));
+        }
+
+        try {
+            for (int slot = 0; ; slot = (slot + 1) % buffers.length) {
+                digested[slot].acquire(digests.size());
+
+                ByteBuffer buffer = buffers[slot];
+                if (!fill(channel, buffer)) {
+                    digested[slot].release(digests.size());
+                    break;
+                }
+                for (Lane lane : lanes) {
+                    lane.chunks.add(new Chunk(slot, buffer.duplicate()));
+                }
+            }
+
+            lanes.forEach(lane -> lane.chunks.add(Chunk.END));
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("digesting interrupted");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    /**
+     * Reads the channel to the buffer until the buffer is full or the end of the channel is reached.
+     *
+     * @return true if some bytes were read, the buffer is then flipped for reading
+     */
+    private static boolean fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Gets the buffers of the calling thread, the buffers are allocated on the first use or when the configuration
+     * changes.
+     */
+    private ByteBuffer[] buffers() {
+        ByteBuffer[] allocated = threadBuffers.get();
+        if (allocated == null || allocated.length != buffers || allocated[0].capacity() != bufferSize) {
+            log.debug("allocating " + buffers + " buffers of " + bufferSize + " bytes");
+            allocated = new ByteBuffer[buffers];
+            for (int i = 0; i < buffers; i++) {
+                allocated[i] = ByteBuffer.allocateDirect(bufferSize);
+            }
+            threadBuffers.set(allocated);
+        }
+        return allocated;
+    }
+
+    /**
+     * Filled buffer waiting to be digested
+     */
+    private static class Chunk {
+        private static final Chunk END = new Chunk(-1, null);
+
+        private final int slot;
+        private final ByteBuffer data;
+
+        private Chunk(int slot, ByteBuffer data) {
+            this.slot = slot;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Digesting of the chunks of a file by a single algorithm
+     */
+    private static class Lane implements Callable<Void> {
+        private final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>();
+        private final MessageDigest digest;
+        private final Semaphore[] digested;
+
+        private Lane(MessageDigest digest, Semaphore[] digested) {
+            this.digest = digest;
+            this.digested = digested;
+        }
+
+        @Override
+        public Void call() throws InterruptedException {
+            Chunk chunk;
+            while ((chunk = chunks.take()) != Chunk.END) {
+                digest.update(chunk.data);
+                digested[chunk.slot].release();
+            }
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Inject
+    public void setBufferSize(@Value("${arclib.fixity.bufferSize}") int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @Inject
+    public void setBuffers(@Value("${arclib.fixity.buffers}") int buffers) {
+        this.buffers = buffers;
+    }
+}
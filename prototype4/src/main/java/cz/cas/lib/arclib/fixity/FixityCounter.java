@@ -2,6 +2,7 @@ package cz.cas.lib.arclib.fixity;
 
 import lombok.extern.slf4j.Slf4j;
 
+import javax.inject.Inject;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,10 +10,13 @@ import java.nio.file.Path;
 
 import static cz.cas.lib.arclib.utils.Utils.bytesToHexString;
 import static cz.cas.lib.arclib.utils.Utils.notNull;
+import static java.util.Collections.singletonList;
 
 @Slf4j
 public abstract class FixityCounter {
 
+    private DigestEngine digestEngine;
+
     /**
      * Abstract method to compute digest from a file. The type of digest depends on subclass implementation. Eg. MD5, CRC32, SHA-512 etc.
      *
@@ -22,8 +26,22 @@ public abstract class FixityCounter {
      */
     public abstract byte[] computeDigest(InputStream fileStream) throws IOException;
 
+    /**
+     * Name of the {@link java.security.MessageDigest} algorithm computed by the counter, counters computing other
+     * digests return null.
+     *
+     * @return name of the algorithm or null
+     */
+    public String getAlgorithm() {
+        return null;
+    }
+
     /**
      * Computes digest from a file. The type of digest depends on subclass implementation. Eg. MD5, CRC32, SHA-512 etc.
+     * <p>
+     * If the counter computes a {@link java.security.MessageDigest} algorithm, the file is read by the
+     * {@link DigestEngine}.
+     * </p>
      *
      * @param pathToFile Path to file which digest has to be computed.
      * @return byte array with computed digest
@@ -33,6 +51,9 @@ public abstract class FixityCounter {
         notNull(pathToFile, () -> {
             throw new IllegalArgumentException();
         });
+        if (digestEngine != null && getAlgorithm() != null) {
+            return digestEngine.computeDigests(pathToFile, singletonList(getAlgorithm())).get(getAlgorithm());
+        }
         try (FileInputStream is = new FileInputStream(pathToFile.toAbsolutePath().toString())) {
             return computeDigest(is);
         }
@@ -84,4 +105,9 @@ public abstract class FixityCounter {
         log.info("digests matches: " + matches);
         return matches;
     }
+
+    @Inject
+    public void setDigestEngine(DigestEngine digestEngine) {
+        this.digestEngine = digestEngine;
+    }
 }
\ No newline at end of file
@@ -2,7 +2,6 @@ package cz.cas.lib.arclib.fixity;
 
 import org.springframework.stereotype.Service;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.MessageDigest;
@@ -11,6 +10,11 @@ import java.security.NoSuchAlgorithmException;
 @Service
 public class Md5FixityCounter extends FixityCounter {
 
+    @Override
+    public String getAlgorithm() {
+        return "MD5";
+    }
+
     /**
      * Computes MD5 digest from a file.
      *
@@ -20,12 +24,12 @@ public class Md5FixityCounter extends FixityCounter {
      */
     @Override
     public byte[] computeDigest(InputStream fileStream) throws IOException {
-        try (BufferedInputStream bis = new BufferedInputStream(fileStream)) {
-            byte[] buffer = new byte[1024];
-            MessageDigest complete = MessageDigest.getInstance("MD5");
+        try (InputStream is = fileStream) {
+            byte[] buffer = new byte[65536];
+            MessageDigest complete = MessageDigest.getInstance(getAlgorithm());
             int numRead;
             do {
-                numRead = bis.read(buffer);
+                numRead = is.read(buffer);
                 if (numRead > 0) {
                     complete.update(buffer, 0, numRead);
                 }
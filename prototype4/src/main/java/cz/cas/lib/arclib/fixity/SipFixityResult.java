@@ -0,0 +1,27 @@
+package cz.cas.lib.arclib.fixity;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of the verification of fixity of SIP files.
+ */
+@Getter
+@AllArgsConstructor
+public class SipFixityResult {
+    /**
+     * Paths to files with invalid checksum, in the order of the files in SIP META XML
+     */
+    private List<Path> invalidChecksumFiles;
+
+    /**
+     * Time spent by the verification of every verified file, in the order of the files in SIP META XML, times of a file
+     * referenced repeatedly are summed
+     */
+    private Map<Path, Duration> timings;
+}
@@ -2,12 +2,14 @@ package cz.cas.lib.arclib.fixity;
 
 import cz.cas.lib.arclib.exception.GeneralException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
@@ -18,21 +20,37 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
 
 import static cz.cas.lib.arclib.utils.Utils.notNull;
 
+/**
+ * Verification of fixity of files specified in SIP META XML.
+ * <p>
+ * The files are verified in parallel by a pool of <i>arclib.fixity.threads</i> threads shared by all the verifications.
+ * Every verification limits the number of its files verified at once, both in total and per device, i.e. per
+ * {@link FileStore}, so the callers may pick the parallelism which suits the storage of the SIP, e.g. a SAN volume
+ * serves many concurrent reads while a single local drive may be saturated by a few. The files wait for a free slot
+ * of their device in a queue of the device, so a saturated device does not hold back the files on the other devices.
+ * </p>
+ */
 @Slf4j
 @Service
 public class SipFixityVerifier {
 
     private Md5FixityCounter md5Counter;
+    private ExecutorService executor;
+    private int parallelism;
+    private int deviceParallelism;
 
     /**
-     * Verifies fixity of files specified in SIP META XML.
+     * Verifies fixity of files specified in SIP META XML with the default parallelism.
      * <p>
      * Currently supports MD5 checksum type. Verification of file with other checksum type will be skipped.
      * </p>
@@ -42,11 +60,105 @@ public class SipFixityVerifier {
      * @throws IOException
      */
     public List<Path> verifySIP(Path pathToXmlFile) throws IOException {
+        return verifySIP(pathToXmlFile, parallelism, deviceParallelism).getInvalidChecksumFiles();
+    }
+
+    /**
+     * Verifies fixity of files specified in SIP META XML.
+     * <p>
+     * Currently supports MD5 checksum type. Verification of file with other checksum type will be skipped.
+     * </p>
+     *
+     * @param pathToXmlFile     Path to SIP META XML.
+     * @param parallelism       Maximal number of files verified at once.
+     * @param deviceParallelism Maximal number of files on the same device verified at once.
+     * @return Paths to files with invalid checksum and the time spent by the verification of every file.
+     * @throws IOException
+     */
+    public SipFixityResult verifySIP(Path pathToXmlFile, int parallelism, int deviceParallelism) throws IOException {
         log.info("Verifying fixity of SIP, META XML: " + pathToXmlFile);
         notNull(pathToXmlFile, () -> {
             throw new IllegalArgumentException();
         });
+        if (parallelism < 1 || deviceParallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        List<FileReference> references = parseChecksums(pathToXmlFile);
+
+        Map<Path, FileStore> fileStores = new HashMap<>();
+        Map<FileStore, Device> devices = new LinkedHashMap<>();
+        for (FileReference reference : references) {
+            reference.device = devices.computeIfAbsent(fileStore(reference.path, fileStores), store -> new Device());
+            reference.device.pending.add(reference);
+        }
+
+        CompletionService<FileReference> completion = new ExecutorCompletionService<>(executor);
+        List<Future<FileReference>> futures = new ArrayList<>();
         List<Path> invalidChecksumFiles = new ArrayList<>();
+        Map<Path, Duration> timings = new LinkedHashMap<>();
+        try {
+            int running = 0;
+            while (true) {
+                for (Device device : devices.values()) {
+                    while (running < parallelism && device.running < deviceParallelism && !device.pending.isEmpty()) {
+                        FileReference reference = device.pending.poll();
+                        futures.add(completion.submit(() -> verify(reference)));
+                        device.running++;
+                        running++;
+                    }
+                }
+                if (running == 0)
+                    break;
+                FileReference verified = completion.take().get();
+                verified.device.running--;
+                running--;
+            }
+
+            for (FileReference reference : references) {
+                if (!reference.valid) {
+                    invalidChecksumFiles.add(reference.path);
+                }
+                timings.merge(reference.path, reference.timing, Duration::plus);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("verification of fixity interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new GeneralException(e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        log.info("Verified fixity of " + references.size() + " files, " + invalidChecksumFiles.size() + " invalid");
+        return new SipFixityResult(invalidChecksumFiles, timings);
+    }
+
+    /**
+     * Verifies the file of the reference, the outcome is stored to the reference.
+     */
+    private FileReference verify(FileReference reference) throws IOException {
+        long start = System.nanoTime();
+        reference.valid = md5Counter.verifyFixity(reference.path, reference.checksum);
+        reference.timing = Duration.ofNanos(System.nanoTime() - start);
+        return reference;
+    }
+
+    /**
+     * Gets the expected MD5 checksums of the files specified in SIP META XML.
+     * <p>
+     * Every <i>METS:FLocat</i> is returned as a separate reference, so a file referenced repeatedly is verified once
+     * per reference.
+     * </p>
+     *
+     * @param pathToXmlFile Path to SIP META XML.
+     * @return references to the files with their checksums, in the order of the files in SIP META XML
+     * @throws IOException
+     */
+    private List<FileReference> parseChecksums(Path pathToXmlFile) throws IOException {
+        List<FileReference> references = new ArrayList<>();
         DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
         factory.setNamespaceAware(true);
         Document xml = null;
@@ -59,8 +171,6 @@ public class SipFixityVerifier {
 
         NodeList elems = null;
         try {
-            String s = "//METS:file";
-
             elems = (NodeList) xpath.evaluate("//METS:file", xml, XPathConstants.NODESET);
         } catch (XPathExpressionException e) {
             throw new GeneralException(e);
@@ -76,14 +186,25 @@ public class SipFixityVerifier {
                 String fileRelativePath = fileLocItem.getAttributes().getNamedItem("xlink:href").getNodeValue();
                 Path filePath = pathToXmlFile.getParent().resolve(fileRelativePath).normalize().toAbsolutePath();
                 if (checksumType.toUpperCase().equals("MD5")) {
-                    if (!md5Counter.verifyFixity(filePath, checksum)) {
-                        invalidChecksumFiles.add(filePath);
-                    }
+                    references.add(new FileReference(filePath, checksum));
                 } else
                     log.info("Found unsupported checksum type: " + checksumType + ", verificaion of file " + fileRelativePath + " skipped");
             }
         }
-        return invalidChecksumFiles;
+        return references;
+    }
+
+    /**
+     * Gets the device of the file, the devices are cached by the folders of the files.
+     */
+    private static FileStore fileStore(Path filePath, Map<Path, FileStore> fileStores) throws IOException {
+        Path folder = filePath.getParent();
+        FileStore store = fileStores.get(folder);
+        if (store == null) {
+            store = Files.exists(folder) ? Files.getFileStore(folder) : null;
+            fileStores.put(folder, store);
+        }
+        return store;
     }
 
     private XPath getMetsXpath() {
@@ -116,8 +237,55 @@ public class SipFixityVerifier {
         return xpath;
     }
 
+    /**
+     * Reference to a file in SIP META XML with the outcome of its verification
+     */
+    private static class FileReference {
+        private final Path path;
+        private final String checksum;
+        private Device device;
+        private boolean valid;
+        private Duration timing;
+
+        private FileReference(Path path, String checksum) {
+            this.path = path;
+            this.checksum = checksum;
+        }
+    }
+
+    /**
+     * References waiting for the verification on a single device and the number of its references being verified
+     */
+    private static class Device {
+        private final Deque<FileReference> pending = new ArrayDeque<>();
+        private int running;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
     @Inject
     public void setMd5FixityCounter(Md5FixityCounter counter) {
         this.md5Counter = counter;
     }
+
+    @Inject
+    public void setThreads(@Value("${arclib.fixity.threads}") int threads) {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @Inject
+    public void setParallelism(@Value("${arclib.fixity.parallelism}") int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    @Inject
+    public void setDeviceParallelism(@Value("${arclib.fixity.deviceParallelism}") int deviceParallelism) {
+        this.deviceParallelism = deviceParallelism;
+    }
 }
\ No newline at end of file
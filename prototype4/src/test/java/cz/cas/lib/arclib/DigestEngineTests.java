@@ -0,0 +1,109 @@
+package cz.cas.lib.arclib;
+
+import cz.cas.lib.arclib.fixity.DigestEngine;
+import cz.cas.lib.arclib.fixity.Md5FixityCounter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Random;
+
+import static cz.cas.lib.arclib.utils.Utils.bytesToHexString;
+import static helper.ThrowableAssertion.assertThrown;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class DigestEngineTests {
+
+    private static final String DIGEST = "6f1ed002ab5595859014ebf0951522d9";
+    private static final Path PATH_TO_FILE = Paths.get("src/test/resources/sample.txt");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DigestEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new DigestEngine();
+        engine.setBufferSize(4096);
+        engine.setBuffers(3);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    private static String digest(String algorithm, byte[] content) throws NoSuchAlgorithmException {
+        return bytesToHexString(MessageDigest.getInstance(algorithm).digest(content));
+    }
+
+    /**
+     * Tests that the digests of a file fitting into a single buffer are computed and returned in the order of the
+     * algorithms.
+     */
+    @Test
+    public void testSmallFile() throws IOException, NoSuchAlgorithmException {
+        Map<String, byte[]> digests = engine.computeDigests(PATH_TO_FILE, asList("SHA-256", "MD5"));
+
+        assertThat(digests.keySet(), contains("SHA-256", "MD5"));
+        assertThat(bytesToHexString(digests.get("MD5")), equalTo(DIGEST));
+        assertThat(bytesToHexString(digests.get("SHA-256")),
+                equalTo(digest("SHA-256", Files.readAllBytes(PATH_TO_FILE))));
+    }
+
+    /**
+     * Tests that the digests of a file read to many buffers, the last one filled partially, are the same as
+     * the digests of its content computed at once.
+     */
+    @Test
+    public void testLargeFile() throws IOException, NoSuchAlgorithmException {
+        byte[] content = new byte[1000 * 1000 + 123];
+        new Random(42).nextBytes(content);
+        Path file = folder.newFile("large.bin").toPath();
+        Files.write(file, content);
+
+        Map<String, byte[]> digests = engine.computeDigests(file, asList("MD5", "SHA-256", "SHA-512"));
+
+        for (String algorithm : asList("MD5", "SHA-256", "SHA-512")) {
+            assertThat(bytesToHexString(digests.get(algorithm)), equalTo(digest(algorithm, content)));
+        }
+    }
+
+    /**
+     * Tests that the fixity counter computes the digest by the engine when it is set.
+     */
+    @Test
+    public void testFixityCounter() throws IOException {
+        Md5FixityCounter fixityCounter = new Md5FixityCounter();
+        fixityCounter.setDigestEngine(engine);
+
+        assertThat(fixityCounter.verifyFixity(PATH_TO_FILE, DIGEST), equalTo(true));
+    }
+
+    @Test
+    public void testNotFound() throws IOException {
+        assertThrown(() -> engine.computeDigests(Paths.get("invalidpath"), singletonList("MD5")))
+                .isInstanceOf(FileNotFoundException.class);
+    }
+
+    @Test
+    public void testUnsupportedAlgorithm() throws IOException {
+        assertThrown(() -> engine.computeDigests(PATH_TO_FILE, singletonList("FOO")))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
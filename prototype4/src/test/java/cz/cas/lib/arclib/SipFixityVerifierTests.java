@@ -0,0 +1,106 @@
+package cz.cas.lib.arclib;
+
+import cz.cas.lib.arclib.fixity.DigestEngine;
+import cz.cas.lib.arclib.fixity.Md5FixityCounter;
+import cz.cas.lib.arclib.fixity.SipFixityResult;
+import cz.cas.lib.arclib.fixity.SipFixityVerifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static helper.ThrowableAssertion.assertThrown;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasItems;
+import static org.junit.Assert.assertThat;
+
+public class SipFixityVerifierTests {
+
+    private static final Path PATH_TO_SIP_META_XML = Paths.get("../SIP_packages/KPW01169310/METS_KPW01169310.xml");
+    private static final Path INVALID_CHECKSUM_FILE_1 = PATH_TO_SIP_META_XML.getParent().resolve("./TXT/TXT_KPW01169310_0002.TXT").normalize().toAbsolutePath();
+    private static final Path INVALID_CHECKSUM_FILE_2 = PATH_TO_SIP_META_XML.getParent().resolve("./amdSec/AMD_METS_KPW01169310_0004.xml").normalize().toAbsolutePath();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DigestEngine engine;
+    private SipFixityVerifier verifier;
+
+    @Before
+    public void setUp() {
+        engine = new DigestEngine();
+        engine.setBufferSize(4096);
+        engine.setBuffers(2);
+
+        Md5FixityCounter counter = new Md5FixityCounter();
+        counter.setDigestEngine(engine);
+
+        verifier = new SipFixityVerifier();
+        verifier.setMd5FixityCounter(counter);
+        verifier.setThreads(4);
+        verifier.setParallelism(4);
+        verifier.setDeviceParallelism(2);
+    }
+
+    @After
+    public void tearDown() {
+        verifier.shutdown();
+        engine.shutdown();
+    }
+
+    /**
+     * Tests that the files with invalid checksum are found in the order of the SIP META XML regardless of
+     * the parallelism and that every verified file has its timing.
+     */
+    @Test
+    public void testParallelism() throws IOException {
+        SipFixityResult sequential = verifier.verifySIP(PATH_TO_SIP_META_XML, 1, 1);
+        SipFixityResult parallel = verifier.verifySIP(PATH_TO_SIP_META_XML, 8, 4);
+
+        assertThat(sequential.getInvalidChecksumFiles(), hasItems(INVALID_CHECKSUM_FILE_1, INVALID_CHECKSUM_FILE_2));
+        assertThat(parallel.getInvalidChecksumFiles(), equalTo(sequential.getInvalidChecksumFiles()));
+        assertThat(parallel.getTimings().keySet(), equalTo(sequential.getTimings().keySet()));
+        assertThat(parallel.getTimings().size(), equalTo(39));
+    }
+
+    /**
+     * Tests that the verification with the default parallelism returns the files with invalid checksum.
+     */
+    @Test
+    public void testDefaultParallelism() throws IOException {
+        List<Path> invalidChecksumFiles = verifier.verifySIP(PATH_TO_SIP_META_XML);
+        assertThat(invalidChecksumFiles, hasItems(INVALID_CHECKSUM_FILE_1, INVALID_CHECKSUM_FILE_2));
+    }
+
+    @Test
+    public void testInvalidParallelism() throws IOException {
+        assertThrown(() -> verifier.verifySIP(PATH_TO_SIP_META_XML, 0, 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    /**
+     * Tests that a file referenced repeatedly in SIP META XML is verified once per reference.
+     */
+    @Test
+    public void testRepeatedReference() throws IOException {
+        Path sip = folder.getRoot().toPath();
+        Path file = sip.resolve("file.txt").toAbsolutePath();
+        Files.write(file, "content".getBytes());
+        Path metaXml = sip.resolve("METS.xml");
+        Files.write(metaXml, ("<METS:mets xmlns:METS=\"http://www.loc.gov/METS/\" xmlns:xlink=\"http://www.w3.org/1999/xlink\">" +
+                "<METS:file CHECKSUM=\"00000000000000000000000000000000\" CHECKSUMTYPE=\"MD5\">" +
+                "<METS:FLocat xlink:href=\"./file.txt\"/><METS:FLocat xlink:href=\"file.txt\"/>" +
+                "</METS:file></METS:mets>").getBytes());
+
+        SipFixityResult result = verifier.verifySIP(metaXml, 4, 2);
+        assertThat(result.getInvalidChecksumFiles(), contains(file, file));
+        assertThat(result.getTimings().keySet(), contains(file));
+    }
+}
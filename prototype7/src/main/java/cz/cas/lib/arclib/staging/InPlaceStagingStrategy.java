@@ -0,0 +1,21 @@
+package cz.cas.lib.arclib.staging;
+
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Skips the staging, the SIP is processed read-only at its original location.
+ */
+@Component
+public class InPlaceStagingStrategy implements StagingStrategy {
+
+    @Override
+    public Path stage(Path source, Path target) {
+        return source;
+    }
+
+    @Override
+    public void clean(Path staged) {
+    }
+}
@@ -0,0 +1,152 @@
+package cz.cas.lib.arclib.staging;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stages the SIP by copying its files to the workspace. The files are copied in parallel by a shared pool of threads,
+ * each of them using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, which lets
+ * the operating system move the data without passing them through the JVM heap.
+ * <p>
+ * When a copy fails, the walk of the SIP fails or the staging is interrupted, the copies not started yet are skipped
+ * and the running ones are interrupted. The staging returns only after all the copies of the SIP have stopped, so
+ * the caller can safely delete the partially staged SIP.
+ * </p>
+ */
+@Component
+public class ParallelCopyStagingStrategy implements StagingStrategy {
+
+    private ExecutorService executor;
+
+    @Override
+    public Path stage(Path source, Path target) throws IOException {
+        List<Copy> copies = new ArrayList<>();
+
+        try {
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    Copy copy = new Copy(file, target.resolve(source.relativize(file).toString()));
+                    copy.future = executor.submit(copy);
+                    copies.add(copy);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            stop(copies);
+            throw e;
+        }
+
+        try {
+            for (Copy copy : copies) {
+                copy.future.get();
+            }
+        } catch (InterruptedException e) {
+            stop(copies);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Staging of " + source + " has been interrupted.");
+        } catch (ExecutionException e) {
+            stop(copies);
+            throw new IOException("Staging of " + source + " failed.", e.getCause());
+        }
+
+        return target;
+    }
+
+    /**
+     * Skips the copies not started yet, interrupts the running ones and waits until they stop.
+     */
+    private static void stop(List<Copy> copies) {
+        boolean interrupted = false;
+
+        for (Copy copy : copies) {
+            if (copy.started.compareAndSet(false, true)) {
+                copy.future.cancel(false);
+                continue;
+            }
+
+            copy.future.cancel(true);
+            while (true) {
+                try {
+                    copy.finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void copy(Path source, Path destination) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /**
+     * Copy of a single file of the SIP
+     */
+    private static class Copy implements Callable<Void> {
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private final Path source;
+        private final Path destination;
+        private Future<?> future;
+
+        private Copy(Path source, Path destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (!started.compareAndSet(false, true)) {
+                return null;
+            }
+
+            try {
+                copy(source, destination);
+            } finally {
+                finished.countDown();
+            }
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Inject
+    public void setThreads(@Value("${arclib.staging.threads}") int threads) {
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+}
@@ -0,0 +1,39 @@
+package cz.cas.lib.arclib.staging;
+
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Strategy of making a SIP available to the processing in the workspace.
+ * <p>
+ * The processing must treat the staged SIP as read-only, because depending on the strategy the staged files may be
+ * hard links to or the very same files as the original SIP files.
+ * </p>
+ */
+public interface StagingStrategy {
+
+    /**
+     * Stages the SIP.
+     *
+     * @param source path to the SIP, either a folder or a single file
+     * @param target path in the workspace reserved for the SIP
+     * @return path where the processing reads the SIP from
+     * @throws IOException
+     */
+    Path stage(Path source, Path target) throws IOException;
+
+    /**
+     * Releases the staged SIP. By default deletes the staged files.
+     *
+     * @param staged path returned by {@link #stage(Path, Path)}
+     * @throws IOException
+     */
+    default void clean(Path staged) throws IOException {
+        if (Files.exists(staged)) {
+            FileSystemUtils.deleteRecursively(staged.toFile());
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package cz.cas.lib.arclib.staging;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+/**
+ * Stages SIPs to the workspace using the {@link StagingStrategy} selected by the configured {@link StagingMode}.
+ */
+@Slf4j
+@Service
+public class WorkspaceStager {
+
+    private String workspace;
+    private StagingMode mode;
+
+    private HardLinkStagingStrategy linkStrategy;
+    private ParallelCopyStagingStrategy copyStrategy;
+    private InPlaceStagingStrategy inPlaceStrategy;
+
+    /**
+     * Stages the SIP to the workspace folder reserved for the SIP. Leftovers of a previous unfinished staging of the same
+     * SIP are deleted first, the partially staged SIP is deleted when the staging fails or is interrupted.
+     *
+     * @param sipPath path to the folder where the SIP is located
+     * @param sipId   id of the SIP
+     * @return the staged SIP
+     * @throws IOException
+     */
+    public StagedSip stage(String sipPath, String sipId) throws IOException {
+        Path source = Paths.get(sipPath);
+        Path folder = Paths.get(workspace);
+        Path target = folder.resolve(sipId);
+
+        Files.createDirectories(folder);
+
+        StagingMode usedMode = resolveMode(source, folder);
+        StagingStrategy strategy = strategy(usedMode);
+
+        long start = System.currentTimeMillis();
+        if (usedMode != StagingMode.IN_PLACE) {
+            strategy.clean(target);
+        }
+        Path staged;
+        try {
+            staged = strategy.stage(source, target);
+        } catch (IOException | RuntimeException e) {
+            if (usedMode != StagingMode.IN_PLACE) {
+                try {
+                    strategy.clean(target);
+                } catch (IOException cleanError) {
+                    e.addSuppressed(cleanError);
+                }
+            }
+            throw e;
+        }
+        long duration = System.currentTimeMillis() - start;
+
+        log.info("SIP " + sipId + " has been staged to workspace in " + duration + " ms using the mode " + usedMode + ".");
+
+        return new StagedSip(staged, usedMode, duration, sizeOf(staged));
+    }
+
+    /**
+     * Releases the staged SIP from the workspace.
+     *
+     * @param sip the staged SIP
+     * @throws IOException
+     */
+    public void unstage(StagedSip sip) throws IOException {
+        strategy(sip.getMode()).clean(sip.getPath());
+    }
+
+    private long sizeOf(Path path) throws IOException {
+        try (Stream<Path> files = Files.walk(path)) {
+            return files.filter(Files::isRegularFile)
+                    .mapToLong(file -> file.toFile().length())
+                    .sum();
+        }
+    }
+
+    private StagingMode resolveMode(Path source, Path folder) throws IOException {
+        if (mode != StagingMode.AUTO) {
+            return mode;
+        }
+
+        boolean sameStore = Files.getFileStore(source).equals(Files.getFileStore(folder));
+        return sameStore ? StagingMode.LINK : StagingMode.COPY;
+    }
+
+    private StagingStrategy strategy(StagingMode mode) {
+        switch (mode) {
+            case LINK:
+                return linkStrategy;
+            case IN_PLACE:
+                return inPlaceStrategy;
+            default:
+                return copyStrategy;
+        }
+    }
+
+    @Inject
+    public void setWorkspace(@Value("${arclib.workspace}") String workspace) {
+        this.workspace = workspace;
+    }
+
+    @Inject
+    public void setMode(@Value("${arclib.staging.mode}") StagingMode mode) {
+        this.mode = mode;
+    }
+
+    @Inject
+    public void setLinkStrategy(HardLinkStagingStrategy linkStrategy) {
+        this.linkStrategy = linkStrategy;
+    }
+
+    @Inject
+    public void setCopyStrategy(ParallelCopyStagingStrategy copyStrategy) {
+        this.copyStrategy = copyStrategy;
+    }
+
+    @Inject
+    public void setInPlaceStrategy(InPlaceStagingStrategy inPlaceStrategy) {
+        this.inPlaceStrategy = inPlaceStrategy;
+    }
+}